@@ -50,6 +50,15 @@ public class DigesterTask extends Task
         _storealias = alias;
     }
 
+    /**
+     * Sets the file in which resource attributes are cached between runs. If set, resources that
+     * are unchanged since the previous run are not rehashed.
+     */
+    public void setStatcache (File path)
+    {
+        _statcache = path;
+    }
+
     /**
      * Performs the actual work of the task.
      */
@@ -69,7 +78,7 @@ public class DigesterTask extends Task
         }
 
         try {
-            Digester.createDigests(_appdir, _storepath, _storepass, _storealias);
+            Digester.createDigests(_appdir, _statcache, _storepath, _storepass, _storealias);
         } catch (IOException ioe) {
             throw new BuildException("Error creating digest: " + ioe.getMessage(), ioe);
         } catch (GeneralSecurityException gse) {
@@ -88,4 +97,7 @@ public class DigesterTask extends Task
 
     /** The private key alias. */
     protected String _storealias;
+
+    /** The file in which resource attributes are cached between runs, if any. */
+    protected File _statcache;
 }
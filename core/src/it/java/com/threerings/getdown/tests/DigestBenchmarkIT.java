@@ -0,0 +1,111 @@
+//
+// Getdown - application installer, patcher and launcher
+// Copyright (C) 2004-2018 Getdown authors
+// https://github.com/threerings/getdown/blob/master/LICENSE
+
+package com.threerings.getdown.tests;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.Random;
+
+import com.threerings.getdown.data.Digest;
+import com.threerings.getdown.data.Resource;
+import com.threerings.getdown.util.ProgressObserver;
+import com.threerings.getdown.util.StringUtil;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Benchmarks the hashing of plain files of various sizes by {@link Resource#computeDigest}
+ * against the small buffered stream reads it formerly used, and checks that both produce the
+ * same digest.
+ */
+public class DigestBenchmarkIT {
+
+    @Test
+    public void testPlainFileThroughput () throws Exception {
+        // warm up both code paths so that compilation doesn't skew the comparison
+        File warm = createFile("warm.bin", 4 * MB);
+        for (int ii = 0; ii < 5; ii++) {
+            hashLegacy(warm);
+            hashCurrent(warm);
+        }
+
+        for (int size : SIZES) {
+            File file = createFile("data" + size + ".bin", size);
+            int reps = Math.max(1, 64 * MB / size);
+            String legacy = null, current = null;
+
+            long start = System.nanoTime();
+            for (int ii = 0; ii < reps; ii++) {
+                legacy = hashLegacy(file);
+            }
+            long legacyNanos = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int ii = 0; ii < reps; ii++) {
+                current = hashCurrent(file);
+            }
+            long currentNanos = System.nanoTime() - start;
+
+            System.out.println("Hashed " + size + " bytes x" + reps + ": legacy " +
+                               throughput(size, reps, legacyNanos) + " MB/s, current " +
+                               throughput(size, reps, currentNanos) + " MB/s");
+            assertEquals(legacy, current);
+        }
+    }
+
+    protected String hashCurrent (File file) throws IOException {
+        return Resource.computeDigest(VERSION, file, Digest.getMessageDigest(VERSION), OBSERVER);
+    }
+
+    /** Hashes {@code file} the way plain files were hashed prior to the channel based reads. */
+    protected String hashLegacy (File file) throws IOException {
+        MessageDigest md = Digest.getMessageDigest(VERSION);
+        byte[] buffer = new byte[5 * 1025];
+        long totalSize = file.length(), position = 0L;
+        try (FileInputStream fin = new FileInputStream(file)) {
+            int read;
+            while ((read = fin.read(buffer)) != -1) {
+                md.update(buffer, 0, read);
+                position += read;
+                OBSERVER.progress((int)(100 * position / totalSize));
+            }
+        }
+        return StringUtil.hexlate(md.digest());
+    }
+
+    protected File createFile (String name, int size) throws IOException {
+        byte[] data = new byte[size];
+        new Random(size).nextBytes(data);
+        File file = new File(_folder.getRoot(), name);
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(data);
+        }
+        return file;
+    }
+
+    protected static long throughput (int size, int reps, long nanos) {
+        return (long)size * reps * 1000L / Math.max(nanos, 1L);
+    }
+
+    @Rule public final TemporaryFolder _folder = new TemporaryFolder();
+
+    protected static final int MB = 1024 * 1024;
+    protected static final int[] SIZES = { 16 * 1024, 256 * 1024, MB, 16 * MB, 64 * MB };
+    protected static final int VERSION = Digest.VERSION;
+
+    /** Stands in for the progress display, which does a little work for every report. */
+    protected static final ProgressObserver OBSERVER = new ProgressObserver() {
+        public void progress (int percent) {
+            _progress += percent;
+        }
+    };
+    protected static volatile long _progress;
+}
@@ -5,16 +5,24 @@
 
 package com.threerings.getdown.tests;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 
+import com.threerings.getdown.data.Digest;
 import com.threerings.getdown.tools.Digester;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
 
 public class DigesterIT {
 
@@ -50,5 +58,77 @@ public class DigesterIT {
             "script.sh = cca1c5c7628d9bf7533f655a9cfa6573d64afb8375f81960d1d832dc5135c988",
             "digest2.txt = 41eacdabda8909bdbbf61e4f980867f4003c16a12f6770e6fc619b6af100e05b"
         ), digest2Lines);
+
+        Path digest3 = appdir.resolve("digest3.txt");
+        List<String> digest3Lines = Files.readAllLines(digest3, StandardCharsets.UTF_8);
+        Files.delete(digest3);
+        // the newer digest files are checked by testIncrementalDigester
+        for (int version = 4; version <= Digest.LATEST_VERSION; version++) {
+            Files.delete(appdir.resolve(Digest.digestFile(version)));
+        }
+
+        assertEquals(Arrays.asList(
+            "getdown.txt = 1efecfae2a189002a6658f17d162b1922c7bde978944949276dc038a0df2461f 1222",
+            "testapp.jar = c9cb1906afbf48f8654b416c3f831046bd3752a76137e5bf0a9af2f790bf48e0 823",
+            "funny%test dir/some=file.txt = f2ca1bb6c7e907d06dafe4687e579fce76b37e4e93b7605022da52e6ccc26fd2 5",
+            "crazyhashfile#txt = 6816889f922de38f145db215a28ad7c5e1badf7354b5cdab225a27486789fa3b 19",
+            "foo.jar = ea188b872e0496debcbe00aaadccccb12a8aa9b025bb62c130cd3d9b8540b062 670",
+            "script.sh = cca1c5c7628d9bf7533f655a9cfa6573d64afb8375f81960d1d832dc5135c988 31",
+            "digest3.txt = 3ee11f285ab8edd52429d547a3425bf9407895af9b449fab0216a90e21fe9530"
+        ), digest3Lines);
+    }
+
+    @Test
+    public void testIncrementalDigester () throws Exception {
+        File appdir = _folder.newFolder("testapp");
+        copyDir(new File("src/it/resources/testapp"), appdir);
+        File cache = new File(_folder.getRoot(), "stats.dat");
+
+        // a full run produces the same digests as a non-incremental run
+        Digester.createDigests(appdir, cache, null, null, null);
+        List<String> full = readDigests(appdir);
+        Digester.createDigests(appdir, null, null, null);
+        assertEquals(full, readDigests(appdir));
+
+        // rewrite the contents of a resource in place, restoring its modification time, so that
+        // only rehashing it would reveal the change
+        File script = new File(appdir, "script.sh");
+        long modified = script.lastModified();
+        try (RandomAccessFile raf = new RandomAccessFile(script, "rw")) {
+            raf.write('X');
+        }
+        script.setLastModified(modified);
+        Digester.createDigests(appdir, cache, null, null, null);
+        assertEquals(full, readDigests(appdir));
+
+        // but a visible modification is noticed
+        script.setLastModified(modified - 10000L);
+        Digester.createDigests(appdir, cache, null, null, null);
+        assertNotEquals(full, readDigests(appdir));
+    }
+
+    protected static List<String> readDigests (File appdir) throws IOException {
+        List<String> lines = new ArrayList<>();
+        for (int version = 1; version <= Digest.LATEST_VERSION; version++) {
+            File digest = new File(appdir, Digest.digestFile(version));
+            lines.addAll(Files.readAllLines(digest.toPath(), StandardCharsets.UTF_8));
+        }
+        return lines;
     }
+
+    protected static void copyDir (File source, File target) throws IOException {
+        for (File file : source.listFiles()) {
+            File copy = new File(target, file.getName());
+            if (file.isDirectory()) {
+                copy.mkdir();
+                copyDir(file, copy);
+            } else {
+                Files.copy(file.toPath(), copy.toPath());
+                // date the copies so that they're not considered to be in flux
+                copy.setLastModified(System.currentTimeMillis() - 60000L);
+            }
+        }
+    }
+
+    @Rule public final TemporaryFolder _folder = new TemporaryFolder();
 }
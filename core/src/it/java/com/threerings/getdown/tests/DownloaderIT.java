@@ -0,0 +1,543 @@
+//
+// Getdown - application installer, patcher and launcher
+// Copyright (C) 2004-2018 Getdown authors
+// https://github.com/threerings/getdown/blob/master/LICENSE
+
+package com.threerings.getdown.tests;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.threerings.getdown.data.Resource;
+import com.threerings.getdown.net.Connector;
+import com.threerings.getdown.net.Downloader;
+import com.threerings.getdown.net.PriorityDownloadOrder;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import static com.threerings.getdown.Log.log;
+
+/**
+ * Benchmarks downloading many small resources from a local HTTP server with and without reuse of
+ * keep-alive connections, and checks that pooled connections are shared between the size check
+ * and download phases. Also checks that streaming downloads download resources as they're added,
+ * in priority order, that interrupted downloads are resumed correctly, and that large resources
+ * are downloaded in segments (or in full, from servers that don't support that).
+ */
+public class DownloaderIT {
+
+    @BeforeClass public static void configurePool () {
+        Connector.configurePool(POOL_SIZE, 5);
+    }
+
+    @Before public void startServer () throws IOException {
+        _server = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        Thread acceptor = new Thread("DownloaderIT server") {
+            @Override public void run () {
+                while (!_server.isClosed()) {
+                    try {
+                        final Socket sock = _server.accept();
+                        _connections.incrementAndGet();
+                        new Thread() {
+                            @Override public void run () {
+                                serve(sock);
+                            }
+                        }.start();
+                    } catch (IOException ioe) {
+                        // server closed
+                    }
+                }
+            }
+        };
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    @After public void stopServer () throws IOException {
+        _server.close();
+    }
+
+    @Test
+    public void testKeepAliveReuse () throws Exception {
+        // warm up both code paths so that class loading doesn't skew the comparison
+        download(new Connector(), "warm");
+        download(new ClosingConnector(), "warmc");
+
+        long start = System.nanoTime();
+        int fresh = download(new ClosingConnector(), "fresh");
+        long freshTime = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        int pooled = download(new Connector(), "pooled");
+        long pooledTime = System.nanoTime() - start;
+
+        log.info("Downloaded resources", "count", RESOURCES,
+                 "fresh", fresh + " connections in " + freshTime / 1000000 + "ms",
+                 "pooled", pooled + " connections in " + pooledTime / 1000000 + "ms");
+
+        // every HEAD and GET needs its own connection if they're not reused...
+        assertEquals(2 * RESOURCES, fresh);
+        // ...whereas pooled connections should be shared by (nearly) all of them
+        assertTrue("Too many connections: " + pooled, pooled <= 2 * CONCURRENCY);
+    }
+
+    @Test
+    public void testStreamingDownload () throws Exception {
+        File local = _folder.newFolder("streaming");
+        URL base = new URL("http://127.0.0.1:" + _server.getLocalPort() + "/");
+        final Set<Resource> completed = new ConcurrentSkipListSet<>();
+        final CountDownLatch first = new CountDownLatch(1);
+        Downloader dl = new Downloader(new Connector()) {
+            @Override protected void downloadFailed (Resource rsrc, Exception e) {
+                throw new AssertionError("Download failed: " + rsrc + ": " + e);
+            }
+            @Override protected void downloadCompleted (Resource rsrc) {
+                assertEquals(DATA.length, rsrc.getLocalNew().length());
+                completed.add(rsrc);
+                first.countDown();
+            }
+        };
+
+        // resources enqueued after the download has started are downloaded all the same, and
+        // each is reported as it completes
+        dl.start(CONCURRENCY);
+        List<Resource> rsrcs = new ArrayList<>();
+        for (int ii = 0; ii < 50; ii++) {
+            String path = "rsrc" + ii + ".txt";
+            Resource rsrc = new Resource(path, new URL(base, path), new File(local, path),
+                                         Resource.NORMAL);
+            rsrcs.add(rsrc);
+            dl.enqueue(rsrc);
+            if (ii == 0) {
+                assertTrue(first.await(10, TimeUnit.SECONDS));
+            }
+        }
+        assertTrue(dl.finish());
+        assertEquals(new HashSet<>(rsrcs), completed);
+    }
+
+    @Test
+    public void testEnqueuedCodeDownloadedFirst () throws Exception {
+        File local = _folder.newFolder("priority");
+        URL base = new URL("http://127.0.0.1:" + _server.getLocalPort() + "/");
+        final Resource media = createResource(base, local, "media.pak");
+        final List<Resource> completed = Collections.synchronizedList(new ArrayList<Resource>());
+        Downloader dl = new Downloader(new Connector()) {
+            @Override protected void downloadFailed (Resource rsrc, Exception e) {
+                throw new AssertionError("Download failed: " + rsrc + ": " + e);
+            }
+            @Override protected long expectedSize (Resource rsrc) {
+                return (rsrc == media) ? 1024L * 1024 * 1024 : -1L;
+            }
+            @Override protected void downloadCompleted (Resource rsrc) {
+                completed.add(rsrc);
+            }
+        };
+        List<Resource> code = new ArrayList<>();
+        for (int ii = 0; ii < 3; ii++) {
+            code.add(createResource(base, local, "code" + ii + ".jar"));
+        }
+        dl.setOrder(new PriorityDownloadOrder(code));
+
+        // while our only download thread is busy, a large media resource is enqueued followed by
+        // the code, as happens when verification (which goes largest first) overlaps downloading
+        dl.start(1);
+        Resource blocked = createResource(base, local, BLOCKED_PATH);
+        dl.enqueue(blocked);
+        assertTrue(_blocking.await(10, TimeUnit.SECONDS));
+        dl.enqueue(media);
+        for (Resource rsrc : code) {
+            dl.enqueue(rsrc);
+        }
+        _release.countDown();
+        assertTrue(dl.finish());
+
+        // the code is nonetheless downloaded before the media
+        List<Resource> expect = new ArrayList<>();
+        expect.add(blocked);
+        expect.addAll(code);
+        expect.add(media);
+        assertEquals(expect, completed);
+    }
+
+    @Test
+    public void testResumeDownload () throws Exception {
+        Resource rsrc = interruptedDownload("ok", "resume.dat");
+        File part = new File(rsrc.getLocalNew().getPath() + ".part");
+        assertTrue(part.exists());
+
+        // only the remainder is requested, conditional on the resource being unchanged
+        assertTrue(resumingDownloader().download(Collections.singletonList(rsrc), 1));
+        assertEquals(Arrays.asList(request(rsrc, "bytes=" + RESUME_OFFSET + "-", ETAG)),
+                     _requests);
+        assertArrayEquals(_ranged, Files.readAllBytes(rsrc.getLocalNew().toPath()));
+        // and the validators are tossed once the download is complete
+        assertFalse(part.exists());
+    }
+
+    @Test
+    public void testResumeChangedResource () throws Exception {
+        Resource rsrc = interruptedDownload("ok", "changed.dat");
+        _ranged = createData(RANGED_SIZE, 2);
+        _etag = "\"v2\"";
+
+        // the server sends the whole new resource, which replaces what we have
+        assertTrue(resumingDownloader().download(Collections.singletonList(rsrc), 1));
+        assertEquals(Arrays.asList(request(rsrc, "bytes=" + RESUME_OFFSET + "-", ETAG)),
+                     _requests);
+        assertArrayEquals(_ranged, Files.readAllBytes(rsrc.getLocalNew().toPath()));
+        assertFalse(new File(rsrc.getLocalNew().getPath() + ".part").exists());
+    }
+
+    @Test
+    public void testResumeWrongRange () throws Exception {
+        Resource rsrc = interruptedDownload("wrongstart", "wrong.dat");
+
+        // the server answers with a range other than the one we asked for, so we start over
+        assertTrue(resumingDownloader().download(Collections.singletonList(rsrc), 1));
+        assertEquals(Arrays.asList(request(rsrc, "bytes=" + RESUME_OFFSET + "-", ETAG),
+                                   request(rsrc, null, null)), _requests);
+        assertArrayEquals(_ranged, Files.readAllBytes(rsrc.getLocalNew().toPath()));
+        assertFalse(new File(rsrc.getLocalNew().getPath() + ".part").exists());
+    }
+
+    @Test
+    public void testSegmentedDownload () throws Exception {
+        Resource rsrc = rangedResource("ok", "segmented.dat");
+        assertTrue(segmentingDownloader(null).download(Collections.singletonList(rsrc),
+                                                       CONCURRENCY));
+
+        // each segment is requested separately and written into place
+        Set<String> expect = new HashSet<>();
+        int segsize = RANGED_SIZE / CONCURRENCY;
+        for (int start = 0; start < RANGED_SIZE; start += segsize) {
+            expect.add(request(rsrc, "bytes=" + start + "-" + (start + segsize - 1), null));
+        }
+        assertEquals(expect, new HashSet<>(_requests));
+        assertEquals(CONCURRENCY, _requests.size());
+        assertArrayEquals(_ranged, Files.readAllBytes(rsrc.getLocalNew().toPath()));
+    }
+
+    @Test
+    public void testSegmentedDownloadRangesIgnored () throws Exception {
+        Resource rsrc = rangedResource("ignore", "ignored.dat");
+        assertTrue(segmentingDownloader(null).download(Collections.singletonList(rsrc),
+                                                       CONCURRENCY));
+
+        // every segment gets the whole resource, after which it is downloaded in full, once
+        assertEquals(CONCURRENCY + 1, _requests.size());
+        assertEquals(request(rsrc, null, null), _requests.get(CONCURRENCY));
+        assertArrayEquals(_ranged, Files.readAllBytes(rsrc.getLocalNew().toPath()));
+    }
+
+    @Test
+    public void testSegmentedDownloadFailure () throws Exception {
+        Resource rsrc = rangedResource("fail", "failed.dat");
+        List<Resource> failed = new ArrayList<>();
+        segmentingDownloader(failed).download(Collections.singletonList(rsrc), CONCURRENCY);
+
+        // the failure of a segment fails the resource (and does not complete it)
+        assertEquals(Collections.singleton(rsrc), new HashSet<>(failed));
+    }
+
+    /**
+     * Creates a downloader which splits resources larger than a few kilobytes into segments and
+     * notes those that fail in {@code failed}, or fails the test if {@code failed} is null.
+     */
+    protected Downloader segmentingDownloader (final List<Resource> failed) {
+        Downloader dl = new Downloader(new Connector()) {
+            @Override protected void downloadFailed (Resource rsrc, Exception e) {
+                if (failed == null) {
+                    throw new AssertionError("Download failed: " + rsrc + ": " + e);
+                }
+                synchronized (failed) {
+                    failed.add(rsrc);
+                }
+            }
+            @Override protected void downloadCompleted (Resource rsrc) {
+                if (failed != null) {
+                    throw new AssertionError("Download completed: " + rsrc);
+                }
+            }
+        };
+        dl.setSegmentThreshold(4096);
+        return dl;
+    }
+
+    protected Resource rangedResource (String mode, String name) throws Exception {
+        URL base = new URL("http://127.0.0.1:" + _server.getLocalPort() + "/");
+        return createResource(base, _folder.newFolder(name), RANGED_PATH + mode + "/" + name);
+    }
+
+    /**
+     * Downloads a resource served in {@code mode} (see {@link #serveRanged}), with the server
+     * cutting the download off part way through, and then truncates what was downloaded to
+     * {@link #RESUME_OFFSET} bytes, as an interruption might. Clears the recorded requests.
+     */
+    protected Resource interruptedDownload (String mode, String name) throws Exception {
+        Resource rsrc = rangedResource(mode, name);
+        _cut.add("/" + rsrc.getPath());
+
+        List<Resource> failed = new ArrayList<>();
+        // (a failed download is not an aborted one, so this still returns true)
+        assertTrue(resumingDownloader(failed).download(Collections.singletonList(rsrc), 1));
+        assertEquals(Collections.singletonList(rsrc), failed);
+        assertEquals(Arrays.asList(request(rsrc, null, null)), _requests);
+        assertTrue(rsrc.getLocalNew().length() > RESUME_OFFSET);
+        assertTrue(rsrc.getLocalNew().length() < RANGED_SIZE);
+
+        try (RandomAccessFile raf = new RandomAccessFile(rsrc.getLocalNew(), "rw")) {
+            raf.setLength(RESUME_OFFSET);
+        }
+        _requests.clear();
+        return rsrc;
+    }
+
+    protected Downloader resumingDownloader () {
+        return resumingDownloader(null);
+    }
+
+    /**
+     * Creates a downloader which resumes downloads and notes those that fail in {@code failed},
+     * or fails the test if {@code failed} is null.
+     */
+    protected Downloader resumingDownloader (final List<Resource> failed) {
+        Downloader dl = new Downloader(new Connector()) {
+            @Override protected void downloadFailed (Resource rsrc, Exception e) {
+                if (failed == null) {
+                    throw new AssertionError("Download failed: " + rsrc + ": " + e);
+                }
+                synchronized (failed) {
+                    failed.add(rsrc);
+                }
+            }
+        };
+        dl.setResume(true);
+        return dl;
+    }
+
+    /** Describes a GET of {@code rsrc} as recorded in {@link #_requests}. */
+    protected static String request (Resource rsrc, String range, String ifRange) {
+        return "/" + rsrc.getPath() + " range=" + range + " if-range=" + ifRange;
+    }
+
+    protected static byte[] createData (int length, long seed) {
+        byte[] data = new byte[length];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+
+    protected static Resource createResource (URL base, File local, String path)
+        throws IOException {
+        return new Resource(path, new URL(base, path), new File(local, path), Resource.NORMAL);
+    }
+
+    /**
+     * Downloads {@link #RESOURCES} resources via {@code conn}, returning the number of distinct
+     * connections the server saw while doing so.
+     */
+    protected int download (Connector conn, String dir) throws Exception {
+        File local = _folder.newFolder(dir);
+        URL base = new URL("http://127.0.0.1:" + _server.getLocalPort() + "/");
+        List<Resource> rsrcs = new ArrayList<>();
+        for (int ii = 0; ii < RESOURCES; ii++) {
+            String path = "rsrc" + ii + ".txt";
+            rsrcs.add(new Resource(path, new URL(base, path), new File(local, path),
+                                   Resource.NORMAL));
+        }
+
+        _connections.set(0);
+        Downloader dl = new Downloader(conn) {
+            @Override protected void downloadFailed (Resource rsrc, Exception e) {
+                throw new AssertionError("Download failed: " + rsrc + ": " + e);
+            }
+        };
+        assertTrue(dl.download(rsrcs, CONCURRENCY));
+        for (Resource rsrc : rsrcs) {
+            assertEquals(DATA.length, rsrc.getLocalNew().length());
+        }
+        return _connections.get();
+    }
+
+    /**
+     * Serves {@link #DATA} in response to every HEAD or GET request on {@code sock} until the
+     * client closes the connection or asks us to.
+     */
+    protected void serve (Socket sock) {
+        try (Socket s = sock) {
+            s.setTcpNoDelay(true);
+            BufferedReader in = new BufferedReader(
+                new InputStreamReader(s.getInputStream(), StandardCharsets.US_ASCII));
+            OutputStream out = s.getOutputStream();
+            String request;
+            while ((request = in.readLine()) != null) {
+                Map<String, String> headers = new HashMap<>();
+                for (String header; (header = in.readLine()) != null && !header.isEmpty(); ) {
+                    int cidx = header.indexOf(':');
+                    if (cidx > 0) {
+                        headers.put(header.substring(0, cidx).trim().toLowerCase(),
+                                    header.substring(cidx+1).trim());
+                    }
+                }
+                boolean close = "close".equalsIgnoreCase(headers.get("connection"));
+                String[] parts = request.split(" ");
+                if (parts[1].startsWith("/" + RANGED_PATH)) {
+                    if (!serveRanged(parts[0], parts[1], headers, out) || close) {
+                        break;
+                    }
+                    continue;
+                }
+                String head = "HTTP/1.1 200 OK\r\nContent-Length: " + DATA.length + "\r\n" +
+                    (close ? "Connection: close\r\n" : "") + "\r\n";
+                out.write(head.getBytes(StandardCharsets.US_ASCII));
+                if (request.startsWith("GET /" + BLOCKED_PATH)) {
+                    // hold this download until the test releases it
+                    _blocking.countDown();
+                    try {
+                        _release.await(10, TimeUnit.SECONDS);
+                    } catch (InterruptedException ie) {
+                        break;
+                    }
+                }
+                if (request.startsWith("GET ")) {
+                    out.write(DATA);
+                }
+                out.flush();
+                if (close) {
+                    break;
+                }
+            }
+        } catch (IOException ioe) {
+            // client went away
+        }
+    }
+
+    /**
+     * Serves {@link #_ranged} in response to a request for {@code /ranged/MODE/NAME}. In {@code
+     * ok} mode, range requests are honored as they should be (subject to {@code If-Range}). In
+     * {@code wrongstart} mode, they are answered with a partial response that starts at the
+     * beginning of the resource instead. In {@code ignore} mode, they are answered with the whole
+     * resource, and in {@code fail} mode, those for anything but the start of the resource fail
+     * with a server error. If the path is in {@link #_cut}, it is removed, and the
+     * response to a full GET is cut off half way through. GETs are noted in {@link #_requests}.
+     *
+     * @return false if the connection must be closed.
+     */
+    protected boolean serveRanged (String method, String path, Map<String, String> headers,
+                                   OutputStream out) throws IOException {
+        byte[] data = _ranged;
+        String etag = _etag, range = headers.get("range"), ifRange = headers.get("if-range");
+        String mode = path.substring(RANGED_PATH.length() + 1, path.lastIndexOf('/'));
+        boolean get = method.equals("GET");
+        if (get) {
+            _requests.add(path + " range=" + range + " if-range=" + ifRange);
+        }
+
+        int start = 0, end = data.length - 1;
+        boolean partial = range != null && (ifRange == null || ifRange.equals(etag)) &&
+            !mode.equals("ignore");
+        if (partial) {
+            // bytes=START-[END]
+            String spec = range.substring("bytes=".length());
+            int didx = spec.indexOf('-');
+            start = Integer.parseInt(spec.substring(0, didx));
+            if (didx < spec.length() - 1) {
+                end = Integer.parseInt(spec.substring(didx + 1));
+            }
+            if (mode.equals("wrongstart")) {
+                start = 0;
+            } else if (mode.equals("fail") && start > 0) {
+                String error = "HTTP/1.1 500 Internal Server Error\r\nContent-Length: 0\r\n\r\n";
+                out.write(error.getBytes(StandardCharsets.US_ASCII));
+                out.flush();
+                return true;
+            }
+        }
+        int length = end - start + 1;
+        boolean cut = get && !partial && _cut.remove(path);
+
+        StringBuilder head = new StringBuilder();
+        head.append(partial ? "HTTP/1.1 206 Partial Content\r\n" : "HTTP/1.1 200 OK\r\n");
+        head.append("Content-Length: ").append(length).append("\r\n");
+        head.append("ETag: ").append(etag).append("\r\n");
+        if (partial) {
+            head.append("Content-Range: bytes ").append(start).append("-").append(end)
+                .append("/").append(data.length).append("\r\n");
+        }
+        head.append("\r\n");
+        out.write(head.toString().getBytes(StandardCharsets.US_ASCII));
+        if (get) {
+            out.write(data, start, cut ? length / 2 : length);
+        }
+        out.flush();
+        return !cut;
+    }
+
+    /** Emulates the absence of connection reuse by asking the server to close every connection. */
+    protected static class ClosingConnector extends Connector {
+        @Override public URLConnection open (URL url, int connectTimeout, int readTimeout)
+            throws IOException {
+            URLConnection conn = super.open(url, connectTimeout, readTimeout);
+            conn.setRequestProperty("Connection", "close");
+            return conn;
+        }
+    }
+
+    @Rule public TemporaryFolder _folder = new TemporaryFolder();
+
+    protected ServerSocket _server;
+    protected final AtomicInteger _connections = new AtomicInteger();
+    protected final CountDownLatch _blocking = new CountDownLatch(1);
+    protected final CountDownLatch _release = new CountDownLatch(1);
+
+    /** The resource served by {@link #serveRanged}, and its entity tag. */
+    protected volatile byte[] _ranged = createData(RANGED_SIZE, 1);
+    protected volatile String _etag = ETAG;
+    /** The paths whose next full download is to be cut off part way through. */
+    protected final Set<String> _cut = Collections.synchronizedSet(new HashSet<String>());
+    /** The GETs handled by {@link #serveRanged}, as described by {@link #request}. */
+    protected final List<String> _requests = Collections.synchronizedList(
+        new ArrayList<String>());
+
+    protected static final int RESOURCES = 500;
+    protected static final int CONCURRENCY = 4;
+    protected static final int POOL_SIZE = 8;
+    protected static final byte[] DATA = new byte[1024];
+    protected static final String BLOCKED_PATH = "blocked.dat";
+    protected static final String RANGED_PATH = "ranged/";
+    protected static final String ETAG = "\"v1\"";
+    protected static final int RANGED_SIZE = 200000;
+    protected static final int RESUME_OFFSET = 12345;
+}
@@ -6,6 +6,7 @@
 package com.threerings.getdown.data;
 
 import com.threerings.getdown.net.Connector;
+import com.threerings.getdown.net.Mirrors;
 import com.threerings.getdown.util.Base64;
 import com.threerings.getdown.util.*;
 
@@ -46,6 +47,16 @@ public class Application {
 
     public static final String AUTHENTICATION_FILE = "authentication.txt";
 
+    /**
+     * The name of the file in which we cache the digests of validated resources.
+     */
+    public static final String DIGEST_CACHE_FILE = "digests.dat";
+
+    /**
+     * The name of the file in which we record which resources have been validated.
+     */
+    public static final String VALIDATION_JOURNAL_FILE = "validated.dat";
+
     /**
      * System properties that are prefixed with this string will be passed through to our
      * application (minus this prefix).
@@ -86,6 +97,8 @@ public class Application {
     protected long _targetVersion = -1;
     protected String _appbase;
     protected URL _vappbase;
+    protected List<String> _mirrors = new ArrayList<>();
+    protected int _mirrorStallTimeout;
     protected URL _latest;
     protected String _class;
     protected String _dockName;
@@ -93,6 +106,15 @@ public class Application {
     protected boolean _strictComments;
     protected boolean _allowOffline;
     protected int _maxConcDownloads;
+    protected boolean _adaptiveDownloads;
+    protected int _minConcDownloads;
+    protected long _maxDownloadRate;
+    protected boolean _backgroundDownloads;
+    protected boolean _resumeDownloads;
+    protected long _segmentThreshold;
+    protected int _httpPoolSize = Connector.DEFAULT_POOL_SIZE;
+    protected int _httpIdleTimeout;
+    protected boolean _useHttp2;
     protected String _trackingURL;
     protected Set<Integer> _trackingPcts;
     protected String _trackingCookieName;
@@ -109,6 +131,14 @@ public class Application {
     protected File _javaLocalDir;
     protected int _verifyTimeout = 60;
     protected RevalidatePolicy _revalidatePolicy = RevalidatePolicy.AFTER_UPDATE;
+    protected boolean _cacheDigests = true;
+    protected boolean _indexDigest;
+    protected boolean _optimisticLaunch;
+    protected VerifyScheduler.Strategy _verifyStrategy = VerifyScheduler.Strategy.AUTO;
+    protected boolean _pipelineDownloads = true;
+    protected DigestCache _digestCache;
+    protected final ValidationJournal _journal;
+    protected final Map<Resource, ChunkTree.Repair> _repairs = new ConcurrentHashMap<>();
     protected boolean _useCodeCache;
     protected int _codeCacheRetentionDays;
     protected String[] _optimumJvmArgs;
@@ -130,6 +160,7 @@ public class Application {
      */
     public Application(EnvConfig envc) {
         _envc = envc;
+        _journal = new ValidationJournal(new File(envc.appDir, VALIDATION_JOURNAL_FILE));
     }
 
     /**
@@ -242,6 +273,94 @@ public class Application {
         return _maxConcDownloads;
     }
 
+    /**
+     * Returns whether the number of concurrent downloads should be adapted (between {@link
+     * #minConcurrentDownloads} and {@link #maxConcurrentDownloads}) to the observed throughput.
+     */
+    public boolean adaptiveDownloads() {
+        return _adaptiveDownloads;
+    }
+
+    /**
+     * Returns the configured minimum concurrent downloads, used when adapting download
+     * concurrency.
+     */
+    public int minConcurrentDownloads() {
+        return _minConcDownloads;
+    }
+
+    /**
+     * Returns the maximum aggregate download rate in bytes per second, or {@code 0} if downloads
+     * are not rate limited.
+     */
+    public long maxDownloadRate() {
+        return _maxDownloadRate;
+    }
+
+    /**
+     * Returns whether downloads made while updating in the background (silently or after a
+     * startup delay) should yield bandwidth to other network traffic.
+     */
+    public boolean backgroundDownloads() {
+        return _backgroundDownloads;
+    }
+
+    /**
+     * Returns whether interrupted resource downloads should be resumed (via HTTP range requests)
+     * rather than restarted from scratch.
+     */
+    public boolean resumeDownloads() {
+        return _resumeDownloads;
+    }
+
+    /**
+     * Returns whether resources should be downloaded while verification is still under way, as
+     * soon as each is found to be invalid, rather than once all resources have been verified.
+     */
+    public boolean pipelineDownloads() {
+        return _pipelineDownloads;
+    }
+
+    /**
+     * Returns the size (in bytes) above which a resource is downloaded in parallel segments, or
+     * {@code 0} if segmented downloading is disabled.
+     */
+    public long segmentedDownloadThreshold() {
+        return _segmentThreshold;
+    }
+
+    /**
+     * Returns the maximum number of idle keep-alive connections to retain per host, or {@code 0}
+     * if connections should not be reused.
+     */
+    public int httpPoolSize() {
+        return _httpPoolSize;
+    }
+
+    /**
+     * Returns the number of seconds an idle keep-alive connection is retained, or {@code 0} to
+     * use the JDK default. This has no effect when running on a JDK older than Java 20.
+     */
+    public int httpIdleTimeout() {
+        return _httpIdleTimeout;
+    }
+
+    /**
+     * Returns whether downloads should be made via HTTP/2 (where supported by the JVM), which
+     * multiplexes concurrent downloads over a single connection.
+     */
+    public boolean useHttp2() {
+        return _useHttp2;
+    }
+
+    /**
+     * Returns the mirrors from which our resources may be downloaded (which include our appbase
+     * itself), or null if no mirrors are configured.
+     */
+    public Mirrors getMirrors() {
+        return _mirrors.isEmpty() ? null : new Mirrors(_appbase, _mirrors, _mirrorStallTimeout);
+    }
+
     /**
      * Returns a resource that refers to the application configuration file itself.
      */
@@ -282,6 +401,71 @@ public class Application {
         return _digest.getDigest(resource);
     }
 
+    /**
+     * Returns the size of the given {@code resource} as recorded in the digest file, or {@code -1}
+     * if the size is not known (the digest is not yet loaded or does not record sizes).
+     */
+    public long getExpectedSize(Resource resource) {
+        return (_digest == null) ? -1L : _digest.getSize(resource);
+    }
+
+    /**
+     * Returns true if optimistic launching is enabled and the app's resources look to be intact,
+     * judging only by their sizes and validation markers: each exists, has no pending {@code _new}
+     * file and has the size recorded in the digest, if the digest records sizes. A resource which
+     * has not been validated since it was last updated must also have a recorded size (older
+     * digests lack them), and must not need unpacking (or other attributes applied) before it can
+     * be used. Such an app may be launched before its resources are verified, and verified while
+     * it runs via {@link #verifyLaunchedResources}.
+     */
+    public boolean canLaunchOptimistically() {
+        if (!_optimisticLaunch || _digest == null) {
+            return false;
+        }
+        for (Resource rsrc : getAllActiveResources()) {
+            String reason = needsVerifyBeforeLaunch(rsrc);
+            if (reason != null) {
+                log.info("Resource requires verification before launch", "rsrc", rsrc,
+                         "reason", reason);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns why {@code rsrc} must be verified before the app is launched, or null if it looks
+     * intact. See {@link #canLaunchOptimistically}.
+     */
+    protected String needsVerifyBeforeLaunch(Resource rsrc) {
+        File local = rsrc.getLocal();
+        long size = _digest.getSize(rsrc);
+        if (!local.exists()) {
+            return "missing";
+        } else if (rsrc.getLocalNew().exists()) {
+            return "update pending";
+        } else if (size >= 0 && size != local.length()) {
+            return "size mismatch";
+        } else if (rsrc.isMarkedValid()) {
+            return null;
+        } else if (size < 0) {
+            return "not validated, size unknown";
+        } else if (rsrc.hasAttrsToApply()) {
+            return "not validated, attributes to apply";
+        } else {
+            return null;
+        }
+    }
+
+    /**
+     * Returns the byte ranges that must be downloaded to repair the local copy of the given
+     * {@code resource}, as determined by the last call to {@link #verifyResources}, or null if the
+     * resource must be downloaded in full.
+     */
+    public ChunkTree.Repair getRepair(Resource resource) {
+        return _repairs.get(resource);
+    }
+
     /**
      * Returns a list of the cleanup patterns used by application.
      */
@@ -420,7 +604,7 @@ public class Application {
         try {
             URL remote = new URL(createVAppBase(_targetVersion), encodePath(_javaLocation));
             return new Resource(vmfile, remote, getLocalPath(vmfile),
-                EnumSet.of(Resource.Attr.UNPACK, Resource.Attr.CLEAN));
+                EnumSet.of(Resource.Attr.UNPACK, Resource.Attr.CLEAN), _journal);
         } catch (Exception e) {
             log.warning("Failed to create VM resource", "vmfile", vmfile, "appbase", _appbase,
                 "tvers", _targetVersion, "javaloc", _javaLocation, "error", e);
@@ -540,6 +724,25 @@ public class Application {
             throw new IOException(err, mue);
         }
 
+        // note any mirrors of our appbase, which must pass muster just like the appbase itself
+        _mirrors.clear();
+        String[] mirrors = config.getMultiValue("mirror");
+        if (mirrors != null) {
+            for (String mirror : mirrors) {
+                mirror = resolveEnvVars(mirror);
+                if (!mirror.endsWith("/")) {
+                    mirror += "/";
+                }
+                try {
+                    HostWhitelist.verify(new URL(mirror.replace("%VERSION%", "0")));
+                    _mirrors.add(mirror);
+                } catch (MalformedURLException mue) {
+                    log.warning("Ignoring invalid mirror", "mirror", mirror, "error", mue);
+                }
+            }
+        }
+        _mirrorStallTimeout = config.getInt("mirror_stall_timeout", 10);
+
         // check for a latest config URL
         String latest = config.getString("latest");
         if (latest != null) {
@@ -563,8 +766,29 @@ public class Application {
         _allowOffline = config.getBoolean("allow_offline");
         _revalidatePolicy = config.getEnum(
             "revalidate_policy", RevalidatePolicy.class, RevalidatePolicy.AFTER_UPDATE);
+        // revalidating on every launch is meant to catch files that were altered behind our back,
+        // which the digest cache would mask if their attributes were preserved, so only use it
+        // then if it's asked for explicitly
+        _cacheDigests = config.getBoolean(
+            "cache_digests", _revalidatePolicy != RevalidatePolicy.ALWAYS);
+        _indexDigest = config.getBoolean("index_digest");
+        _optimisticLaunch = config.getBoolean("optimistic_launch");
+        _verifyStrategy = config.getEnum(
+            "verify_strategy", VerifyScheduler.Strategy.class, VerifyScheduler.Strategy.AUTO);
+        _pipelineDownloads = config.getBoolean("pipeline_downloads", true);
         int tpSize = SysProps.threadPoolSize();
         _maxConcDownloads = Math.max(1, config.getInt("max_concurrent_downloads", tpSize));
+        _adaptiveDownloads = config.getBoolean("adaptive_downloads");
+        _minConcDownloads = Math.max(1, config.getInt("min_concurrent_downloads", 1));
+        _maxDownloadRate = Math.max(0L, config.getLong("max_download_rate", 0L));
+        _backgroundDownloads = config.getBoolean("background_downloads");
+        _resumeDownloads = config.getBoolean("resume_downloads");
+        _segmentThreshold = Math.max(0L, config.getLong("segmented_download_threshold", 0L));
+        // make sure we can keep at least one connection per download (or segment) alive
+        _httpPoolSize = Math.max(0, config.getInt(
+            "http_pool_size", Math.max(Connector.DEFAULT_POOL_SIZE, _maxConcDownloads)));
+        _httpIdleTimeout = Math.max(0, config.getInt("http_idle_timeout", 0));
+        _useHttp2 = config.getBoolean("use_http2");
         _verifyTimeout = config.getInt("verify_timeout", 60);
 
         // whether to cache code resources and launch from cache
@@ -1121,7 +1345,7 @@ public class Application {
 
         // this will read in the contents of the digest file and validate itself
         try {
-            _digest = new Digest(getAppDir(), _strictComments);
+            _digest = new Digest(getAppDir(), _strictComments, _indexDigest);
         } catch (IOException ioe) {
             log.info("Failed to load digest: " + ioe.getMessage() + ". Attempting recovery...");
         }
@@ -1135,7 +1359,7 @@ public class Application {
             try {
                 status.updateStatus("m.checking");
                 downloadDigestFiles();
-                _digest = new Digest(getAppDir(), _strictComments);
+                _digest = new Digest(getAppDir(), _strictComments, _indexDigest);
                 if (!olddig.equals(_digest.getMetaDigest())) {
                     log.info("Unversioned digest changed. Revalidating...");
                     status.updateStatus("m.validating");
@@ -1153,7 +1377,7 @@ public class Application {
         if (_digest == null) {
             status.updateStatus("m.updating_metadata");
             downloadDigestFiles();
-            _digest = new Digest(getAppDir(), _strictComments);
+            _digest = new Digest(getAppDir(), _strictComments, _indexDigest);
         }
 
         // now verify the contents of our main config file
@@ -1164,7 +1388,7 @@ public class Application {
             // caller because there's nothing we can do to automatically recover
             downloadConfigFile();
             downloadDigestFiles();
-            _digest = new Digest(getAppDir(), _strictComments);
+            _digest = new Digest(getAppDir(), _strictComments, _indexDigest);
             // revalidate everything if we end up downloading new metadata
             clearValidationMarkers();
             // if the new copy validates, reinitialize ourselves; otherwise report baffling hoseage
@@ -1234,10 +1458,48 @@ public class Application {
         Set<Resource> toInstall, Set<Resource> toDownload)
         throws InterruptedException
     {
-        // resources are verified on background threads supplied by the thread pool, and progress
-        // is reported by posting runnable actions to the actions queue which is processed by the
-        // main (UI) thread
-        ExecutorService exec = Executors.newFixedThreadPool(SysProps.threadPoolSize());
+        verifyResources(obs, alreadyValid, unpacked, toInstall, toDownload, null);
+    }
+
+    /**
+     * Verifies the code and media resources associated with this application like {@link
+     * #verifyResources(ProgressObserver,int[],Set,Set,Set)}, and also reports each resource that
+     * needs to be downloaded to {@code invalid} as soon as it is found, so that its download can
+     * start while the remaining resources are verified. {@code invalid} is called on the calling
+     * thread, after {@code alreadyValid} has been filled in.
+     */
+    public void verifyResources (
+        ProgressObserver obs, int[] alreadyValid, Set<Resource> unpacked,
+        Set<Resource> toInstall, Set<Resource> toDownload, InvalidResourceListener invalid)
+        throws InterruptedException
+    {
+        verifyResources(obs, alreadyValid, unpacked, toInstall, toDownload, invalid, false);
+    }
+
+    /**
+     * Verifies the resources of an app which was launched before they were verified (see {@link
+     * #canLaunchOptimistically}), adding those which need to be downloaded to {@code toDownload}.
+     * Every resource is hashed, regardless of its validation marker, the revalidation policy and
+     * the digest cache. As the running app may be using them, the resources are only read: none
+     * is unpacked, made executable or marked valid.
+     */
+    public void verifyLaunchedResources (ProgressObserver obs, Set<Resource> toDownload)
+        throws InterruptedException
+    {
+        verifyResources(obs, new int[1], new HashSet<Resource>(), new HashSet<Resource>(),
+                        toDownload, null, true);
+    }
+
+    /**
+     * Verifies resources for {@link #verifyResources(ProgressObserver,int[],Set,Set,Set,
+     * InvalidResourceListener)} and, if {@code hashOnly}, {@link #verifyLaunchedResources}.
+     */
+    protected void verifyResources (
+        ProgressObserver obs, int[] alreadyValid, Set<Resource> unpacked,
+        Set<Resource> toInstall, Set<Resource> toDownload, final InvalidResourceListener invalid,
+        final boolean hashOnly)
+        throws InterruptedException
+    {
         final BlockingQueue<Runnable> actions = new LinkedBlockingQueue<>();
         final int[] completed = new int[1];
 
@@ -1250,6 +1512,23 @@ public class Application {
         for (int ii = 0; ii < sizes.length; ii++) {
             totalSize += sizes[ii] = rsrcs.get(ii).getLocal().length();
         }
+
+        // resources are verified largest first, on background threads supplied by a thread pool
+        // sized for the device on which they reside, and progress is reported by posting runnable
+        // actions to the actions queue which is processed by the main (UI) thread
+        List<Integer> order = VerifyScheduler.largestFirst(sizes);
+        List<File> toRead = new ArrayList<>();
+        for (int index : order) {
+            Resource rsrc = rsrcs.get(index);
+            if (hashOnly || _revalidatePolicy == RevalidatePolicy.ALWAYS ||
+                !rsrc.isMarkedValid()) {
+                toRead.add(rsrc.getLocal());
+            } else if (alreadyValid != null) {
+                alreadyValid[0]++;
+            }
+        }
+        VerifyScheduler sched = new VerifyScheduler(_verifyStrategy, toRead);
+        ExecutorService exec = Executors.newFixedThreadPool(sched.threads());
         final ProgressObserver fobs = obs;
         // as long as we forward aggregated progress updates to the UI thread, having multiple
         // threads update a progress aggregator is "mostly" thread-safe
@@ -1263,21 +1542,30 @@ public class Application {
             }
         }, sizes);
 
-        final int[] fAlreadyValid = alreadyValid;
         final Set<Resource> toInstallAsync = new ConcurrentSkipListSet<>(toInstall);
         final Set<Resource> toDownloadAsync = new ConcurrentSkipListSet<>();
         final Set<Resource> unpackedAsync = new ConcurrentSkipListSet<>();
+        _repairs.clear();
+        // unchanged resources can be validated using the digests we computed for them previously
+        // (but not when we're making sure that what's in use is intact)
+        boolean useCache = _cacheDigests && !hashOnly;
+        if (useCache && _digestCache == null) {
+            _digestCache = new DigestCache(getLocalPath(DIGEST_CACHE_FILE));
+        }
+        final DigestCache cache = useCache ? _digestCache : null;
 
-        for (int ii = 0; ii < sizes.length; ii++) {
-            final Resource rsrc = rsrcs.get(ii);
-            final int index = ii;
+        for (final int index : order) {
+            final Resource rsrc = rsrcs.get(index);
             exec.execute(new Runnable() {
                 public void run() {
-                    verifyResource(rsrc, pagg.startElement(index), fAlreadyValid,
-                        unpackedAsync, toInstallAsync, toDownloadAsync);
+                    final boolean valid = verifyResource(rsrc, pagg.startElement(index),
+                        unpackedAsync, toInstallAsync, toDownloadAsync, cache, hashOnly);
                     actions.add(new Runnable() {
                         public void run() {
                             completed[0] += 1;
+                            if (!valid && invalid != null) {
+                                invalid.resourceInvalid(rsrc);
+                            }
                         }
                     });
                 }
@@ -1295,6 +1583,10 @@ public class Application {
         }
 
         exec.shutdown();
+        if (cache != null) {
+            cache.save();
+        }
+        _journal.close();
 
         toInstall.addAll(toInstallAsync);
         toDownload.addAll(toDownloadAsync);
@@ -1302,31 +1594,36 @@ public class Application {
 
         long complete = System.currentTimeMillis();
         log.info("Verified resources", "count", rsrcs.size(), "alreadyValid", alreadyValid[0],
-            "size", (totalSize / 1024) + "k", "duration", (complete - start) + "ms");
+            "size", (totalSize / 1024) + "k", "read", toRead.size(), "strategy", sched.strategy(),
+            "threads", sched.threads(), "duration", (complete - start) + "ms");
     }
 
-    private void verifyResource(Resource rsrc, ProgressObserver obs, int[] alreadyValid,
-                                Set<Resource> unpacked,
-                                Set<Resource> toInstall, Set<Resource> toDownload) {
-        if (_revalidatePolicy != RevalidatePolicy.ALWAYS && rsrc.isMarkedValid()) {
-            if (alreadyValid != null) {
-                alreadyValid[0]++;
-            }
+    /**
+     * Verifies {@code rsrc}, returning false if it needs to be downloaded. If {@code hashOnly},
+     * the resource is always hashed, and otherwise left as is.
+     */
+    private boolean verifyResource(Resource rsrc, ProgressObserver obs, Set<Resource> unpacked,
+                                   Set<Resource> toInstall, Set<Resource> toDownload,
+                                   DigestCache cache, boolean hashOnly) {
+        if (!hashOnly && _revalidatePolicy != RevalidatePolicy.ALWAYS && rsrc.isMarkedValid()) {
             obs.progress(100);
-            return;
+            return true;
         }
 
         try {
-            if (_digest.validateResource(rsrc, obs)) {
+            if (_digest.validateResource(rsrc, obs, cache)) {
+                if (hashOnly) {
+                    return true;
+                }
                 // if the resource has a _new file, add it to to-install list
                 if (rsrc.getLocalNew().exists()) {
                     toInstall.add(rsrc);
-                    return;
+                    return true;
                 }
                 rsrc.applyAttrs();
                 unpacked.add(rsrc);
                 rsrc.markAsValid();
-                return;
+                return true;
             }
 
         } catch (Exception e) {
@@ -1336,7 +1633,56 @@ public class Application {
         } finally {
             obs.progress(100);
         }
+        planRepair(rsrc);
         toDownload.add(rsrc);
+        return false;
+    }
+
+    /**
+     * Verifies the freshly downloaded {@code _new} file of {@code rsrc}, returning true if it is
+     * valid (and ready to be installed).
+     */
+    public boolean verifyDownload(Resource rsrc, ProgressObserver obs) {
+        return rsrc.getLocalNew().exists() && _digest.validateResource(rsrc, obs, null);
+    }
+
+    /**
+     * Determines whether the local copy of a resource that failed validation can be repaired by
+     * downloading only its corrupt chunks (see {@link ChunkTree}) and if so, notes the ranges to
+     * download in {@link #_repairs}.
+     */
+    protected void planRepair(Resource rsrc) {
+        String root = _digest.getChunkRoot(rsrc);
+        // if a repaired copy failed validation, we give up on repairing and download it in full
+        if (root == null || !rsrc.getLocal().exists() || rsrc.getLocalNew().exists()) {
+            return;
+        }
+
+        String path = rsrc.getPath() + ChunkTree.SUFFIX;
+        File sidecar = getLocalPath(path + "_new");
+        try {
+            ChunkTree tree = ChunkTree.read(downloadFile(path), _digest.getSize(rsrc));
+            if (!root.equals(tree.root())) {
+                log.warning("Chunk tree does not match digest", "path", path,
+                            "expected", root, "got", tree.root());
+                return;
+            }
+            ChunkTree.Repair repair = tree.findCorrupt(rsrc.getLocal());
+            // if most of the resource is corrupt, we may as well download it all
+            if (repair.bytes() > repair.length / 2) {
+                return;
+            }
+            log.info("Resource can be repaired", "rsrc", rsrc, "ranges", repair.ranges.size(),
+                     "bytes", repair.bytes(), "size", repair.length);
+            _repairs.put(rsrc, repair);
+        } catch (IOException | RuntimeException e) {
+            // we'll just download the whole thing, but we mustn't fail to note that it's invalid
+            log.info("Unable to plan repair of resource", "rsrc", rsrc, "error", e);
+        } finally {
+            if (sidecar.exists()) {
+                FileUtil.deleteHarder(sidecar);
+            }
+        }
     }
 
     /**
@@ -1375,7 +1721,7 @@ public class Application {
     }
 
     /**
-     * Clears all validation marker files.
+     * Clears all validation marks.
      */
     public void clearValidationMarkers() {
         clearValidationMarkers(getAllActiveResources().iterator());
@@ -1399,12 +1745,20 @@ public class Application {
     }
 
     /**
-     * Clears all validation marker files for the resources in the supplied iterator.
+     * Clears the validation marks for the resources in the supplied iterator.
      */
     protected void clearValidationMarkers(Iterator<Resource> iter) {
+        List<String> paths = new ArrayList<>();
+        boolean migrating = _journal.isMigrating();
         while (iter.hasNext()) {
-            iter.next().clearMarker();
+            Resource rsrc = iter.next();
+            paths.add(rsrc.getPath());
+            // marker files that have yet to be migrated must not survive an update
+            if (migrating) {
+                rsrc.clearMarker();
+            }
         }
+        _journal.clear(paths);
     }
 
     /**
@@ -1472,6 +1826,20 @@ public class Application {
         for (int version = 1; version <= Digest.VERSION; version++) {
             downloadControlFile(Digest.digestFile(version), version);
         }
+        // newer digest versions are optional; if one is not available (or fails validation) we
+        // make sure not to use a stale local copy and fall back to the required version
+        for (int version = Digest.VERSION + 1; version <= Digest.LATEST_VERSION; version++) {
+            String path = Digest.digestFile(version);
+            try {
+                downloadControlFile(path, version);
+            } catch (IOException ioe) {
+                log.info("Optional digest file not available", "path", path, "error", ioe);
+                File local = getLocalPath(path);
+                if (local.exists() && !FileUtil.deleteHarder(local)) {
+                    log.warning("Failed to delete stale digest file", "path", local);
+                }
+            }
+        }
     }
 
     /**
@@ -1571,7 +1939,7 @@ public class Application {
      */
     protected Resource createResource(String path, EnumSet<Resource.Attr> attrs)
         throws MalformedURLException {
-        return new Resource(path, getRemoteURL(path), getLocalPath(path), attrs);
+        return new Resource(path, getRemoteURL(path), getLocalPath(path), attrs, _journal);
     }
 
     /**
@@ -1682,6 +2050,17 @@ public class Application {
         void updateStatus(String message);
     }
 
+    /**
+     * Used by {@link #verifyResources} to report resources that need to be downloaded as soon as
+     * they are found.
+     */
+    public interface InvalidResourceListener {
+        /**
+         * Called when {@code rsrc} has failed verification and needs to be downloaded.
+         */
+        void resourceInvalid(Resource rsrc);
+    }
+
     /**
      * Used to communicate information about the UI displayed when updating the application.
      */
@@ -0,0 +1,233 @@
+//
+// Getdown - application installer, patcher and launcher
+// Copyright (C) 2004-2018 Getdown authors
+// https://github.com/threerings/getdown/blob/master/LICENSE
+
+package com.threerings.getdown.data;
+
+import java.io.*;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import com.threerings.getdown.util.StringUtil;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * The hashes of the fixed size chunks of a large resource, arranged in a Merkle tree. The root of
+ * the tree is recorded in the (signed) digest file, and the chunk hashes themselves are published
+ * in a sidecar file next to the resource (see {@link #SUFFIX}). When a resource fails validation,
+ * the sidecar can be fetched, checked against the root, and used to determine which chunks of the
+ * local copy are corrupt, so that only those need be downloaded again.
+ */
+public class ChunkTree
+{
+    /** The suffix appended to a resource's path to obtain the path of its chunk sidecar. */
+    public static final String SUFFIX = ".chunks";
+
+    /** The size of the chunks into which resources are split. */
+    public static final int CHUNK_SIZE = 1024 * 1024;
+
+    /** Resources at least this large are chunked. */
+    public static final long CHUNKED_THRESHOLD = 16L * CHUNK_SIZE;
+
+    /**
+     * The byte ranges of a local resource which must be downloaded to repair it.
+     */
+    public static class Repair
+    {
+        /** The length of the intact resource. */
+        public final long length;
+
+        /** The ranges to be downloaded, each a two element array containing the first and last
+          * (inclusive) offset of the range, in ascending order. */
+        public final List<long[]> ranges;
+
+        public Repair (long length, List<long[]> ranges) {
+            this.length = length;
+            this.ranges = Collections.unmodifiableList(ranges);
+        }
+
+        /** Returns the total number of bytes to be downloaded. */
+        public long bytes () {
+            long bytes = 0L;
+            for (long[] range : ranges) {
+                bytes += range[1] - range[0] + 1;
+            }
+            return bytes;
+        }
+    }
+
+    /**
+     * Computes the chunk tree of {@code file}.
+     */
+    public static ChunkTree compute (File file, int chunkSize) throws IOException
+    {
+        long length = file.length();
+        byte[][] hashes = hashChunks(file, chunkSize, chunkCount(length, chunkSize));
+        return new ChunkTree(chunkSize, length, hashes);
+    }
+
+    /**
+     * Reads a chunk tree in the format written by {@link #write}.
+     *
+     * @param length the length of the file whose tree this must be. The sidecar is not trusted
+     * until its root has been checked, so a tree of any other length is rejected before its
+     * hashes are read, as is one with more hashes than the sidecar has lines.
+     */
+    public static ChunkTree read (File file, long length) throws IOException
+    {
+        try (BufferedReader in = new BufferedReader(
+                 new InputStreamReader(new FileInputStream(file), UTF_8))) {
+            String[] header = String.valueOf(in.readLine()).split(" ");
+            if (header.length != 3 || !header[0].equals(HEADER)) {
+                throw new IOException("Invalid chunk tree header in " + file);
+            }
+            try {
+                int chunkSize = Integer.parseInt(header[1]);
+                if (chunkSize <= 0 || Long.parseLong(header[2]) != length) {
+                    throw new IOException("Invalid chunk tree header in " + file);
+                }
+                long count = (length + chunkSize - 1) / chunkSize;
+                if (count > Integer.MAX_VALUE || count > file.length()) {
+                    throw new IOException("Invalid chunk tree header in " + file);
+                }
+                byte[][] hashes = new byte[(int)count][];
+                for (int ii = 0; ii < hashes.length; ii++) {
+                    String line = in.readLine();
+                    if (line == null) {
+                        throw new IOException("Truncated chunk tree " + file);
+                    }
+                    hashes[ii] = StringUtil.unhexlate(line.trim());
+                }
+                return new ChunkTree(chunkSize, length, hashes);
+            } catch (IllegalArgumentException iae) {
+                throw new IOException("Invalid chunk tree " + file, iae);
+            }
+        }
+    }
+
+    protected ChunkTree (int chunkSize, long length, byte[][] hashes)
+    {
+        _chunkSize = chunkSize;
+        _length = length;
+        _hashes = hashes;
+    }
+
+    /**
+     * Returns the length of the file from which this tree was computed.
+     */
+    public long length ()
+    {
+        return _length;
+    }
+
+    /**
+     * Returns the hex encoded root of this tree, which commits to the chunk size, the file length
+     * and the hash of every chunk.
+     */
+    public String root ()
+    {
+        MessageDigest md = Digest.getMessageDigest(Digest.VERSION);
+        List<byte[]> level = new ArrayList<>(Arrays.asList(_hashes));
+        while (level.size() > 1) {
+            List<byte[]> parents = new ArrayList<>();
+            for (int ii = 0; ii < level.size(); ii += 2) {
+                if (ii + 1 == level.size()) {
+                    // an odd node out is promoted to the next level as is
+                    parents.add(level.get(ii));
+                } else {
+                    md.update(level.get(ii));
+                    md.update(level.get(ii+1));
+                    parents.add(md.digest());
+                }
+            }
+            level = parents;
+        }
+        md.update((HEADER + " " + _chunkSize + " " + _length + "\n").getBytes(UTF_8));
+        if (!level.isEmpty()) {
+            md.update(level.get(0));
+        }
+        return StringUtil.hexlate(md.digest());
+    }
+
+    /**
+     * Writes this tree to {@code file}.
+     */
+    public void write (File file) throws IOException
+    {
+        try (PrintWriter out = new PrintWriter(
+                 new OutputStreamWriter(new FileOutputStream(file), UTF_8))) {
+            out.println(HEADER + " " + _chunkSize + " " + _length);
+            for (byte[] hash : _hashes) {
+                out.println(StringUtil.hexlate(hash));
+            }
+        }
+    }
+
+    /**
+     * Determines which chunks of {@code file} (which is expected to be the file from which this
+     * tree was computed, but for some corruption) differ from those of the original, and returns
+     * the byte ranges which must be downloaded to repair it. Adjacent corrupt chunks are merged
+     * into a single range, and chunks that are missing because {@code file} is too short are
+     * included.
+     */
+    public Repair findCorrupt (File file) throws IOException
+    {
+        int have = Math.min(_hashes.length, chunkCount(file.length(), _chunkSize));
+        // a short final chunk in the local file won't match, and will be fetched
+        byte[][] local = hashChunks(file, _chunkSize, have);
+        List<long[]> ranges = new ArrayList<>();
+        long[] range = null;
+        for (int ii = 0; ii < _hashes.length; ii++) {
+            if (ii < have && Arrays.equals(_hashes[ii], local[ii])) {
+                range = null;
+                continue;
+            }
+            long start = (long)ii * _chunkSize, end = Math.min(start + _chunkSize, _length) - 1;
+            if (range != null) {
+                range[1] = end;
+            } else {
+                ranges.add(range = new long[] { start, end });
+            }
+        }
+        return new Repair(_length, ranges);
+    }
+
+    /**
+     * Hashes the first {@code count} chunks of {@code file}.
+     */
+    protected static byte[][] hashChunks (File file, int chunkSize, int count) throws IOException
+    {
+        MessageDigest md = Digest.getMessageDigest(Digest.VERSION);
+        byte[][] hashes = new byte[count][];
+        byte[] buffer = new byte[Math.min(chunkSize, 64 * 1024)];
+        try (InputStream in = new BufferedInputStream(new FileInputStream(file), buffer.length)) {
+            for (int ii = 0; ii < count; ii++) {
+                int remain = chunkSize, read;
+                while (remain > 0 && (read = in.read(buffer, 0, Math.min(remain, buffer.length)))
+                       != -1) {
+                    md.update(buffer, 0, read);
+                    remain -= read;
+                }
+                hashes[ii] = md.digest();
+            }
+        }
+        return hashes;
+    }
+
+    protected static int chunkCount (long length, int chunkSize)
+    {
+        return (int)((length + chunkSize - 1) / chunkSize);
+    }
+
+    protected final int _chunkSize;
+    protected final long _length;
+    protected final byte[][] _hashes;
+
+    /** Identifies the format of the sidecar file. */
+    protected static final String HEADER = "chunks1";
+}
@@ -7,6 +7,7 @@ package com.threerings.getdown.data;
 
 import java.io.*;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.*;
@@ -26,9 +27,29 @@ import static java.nio.charset.StandardCharsets.UTF_8;
  */
 public class Digest
 {
-    /** The current version of the digest protocol. */
+    /** The current version of the digest protocol. Digest files up to and including this version
+      * are required to be published with every application. */
     public static final int VERSION = 2;
 
+    /** The newest version of the digest protocol. Versions newer than {@link #VERSION} are
+      * optional: clients use them if they are published and fall back to {@link #VERSION} if not.
+      * Version 3 uses the same hashes as version 2, but also records the size of each resource,
+      * which allows the downloader to skip querying the server for those sizes. Version 4 also
+      * records sizes, and hashes zip and jar files as a tree of entry hashes (see {@link
+      * #ENTRY_TREE_VERSION}). Version 5 also records the chunk tree root of large resources (see
+      * {@link #CHUNKED_VERSION}). */
+    public static final int LATEST_VERSION = 5;
+
+    /** The first digest version that hashes each entry of a zip or jar file separately (and then
+      * hashes the entries' names and hashes), which allows large archives to be hashed in
+      * parallel. */
+    public static final int ENTRY_TREE_VERSION = 4;
+
+    /** The first digest version that records, for each large resource, the root of a {@link
+      * ChunkTree} whose chunk hashes are published next to the resource. This allows a corrupt
+      * resource to be repaired by downloading only its corrupt chunks. */
+    public static final int CHUNKED_VERSION = 5;
+
     /**
      * Returns the name of the digest file for the specified protocol version.
      */
@@ -43,7 +64,10 @@ public class Digest
     public static String sigAlgorithm (int version) {
         switch (version) {
         case 1: return "SHA1withRSA";
-        case 2: return "SHA256withRSA";
+        case 2:
+        case 3:
+        case 4:
+        case 5: return "SHA256withRSA";
         default: throw new IllegalArgumentException("Invalid digest version " + version);
         }
     }
@@ -69,7 +93,16 @@ public class Digest
                 public void run () {
                     try {
                         MessageDigest md = getMessageDigest(fversion);
-                        digests.put(rsrc, rsrc.computeDigest(fversion, md, null));
+                        String digest = rsrc.computeDigest(fversion, md, null);
+                        // large resources also get a chunk tree, to allow partial repairs
+                        File local = rsrc.getLocal();
+                        if (fversion >= CHUNKED_VERSION &&
+                            local.length() >= ChunkTree.CHUNKED_THRESHOLD) {
+                            ChunkTree tree = ChunkTree.compute(local, ChunkTree.CHUNK_SIZE);
+                            tree.write(new File(local.getPath() + ChunkTree.SUFFIX));
+                            digest = digest + " " + tree.length() + " " + tree.root();
+                        }
+                        digests.put(rsrc, digest);
                         completed.add(rsrc);
                     } catch (Throwable t) {
                         completed.add(new IOException("Error computing digest for: " + rsrc, t));
@@ -96,6 +129,109 @@ public class Digest
             throw new IOException("Timeout computing digests. Wow.");
         }
 
+        // newer digest versions also record the size of the resource (chunked resources already
+        // have theirs)
+        if (version >= SIZED_VERSION) {
+            for (Map.Entry<Resource, String> entry : digests.entrySet()) {
+                if (entry.getValue().indexOf(' ') == -1) {
+                    entry.setValue(entry.getValue() + " " + entry.getKey().getLocal().length());
+                }
+            }
+        }
+        writeDigest(version, resources, digests, output);
+
+        long elapsed = System.currentTimeMillis() - start;
+        log.debug("Computed digests [rsrcs=" + resources.size() + ", time=" + elapsed + "ms]");
+    }
+
+    /**
+     * Creates the digest files for every version of the digest protocol in {@code appdir} using
+     * the supplied list of resources. The digests of each resource for all versions are computed
+     * from a single read of it, rather than one read per version (large resources are read once
+     * more to compute their chunk trees).
+     *
+     * @param known the values (indexed by version, as returned by {@link #getValues}) of
+     * resources which are known to be unchanged since they were last digested. These resources
+     * are not read at all.
+     */
+    public static void createDigests (List<Resource> resources, File appdir,
+                                      Map<Resource, String[]> known)
+        throws IOException
+    {
+        long start = System.currentTimeMillis();
+        Map<Resource, String[]> values = new HashMap<>(known);
+        Map<Resource, Future<String[]>> pending = new LinkedHashMap<>();
+        ExecutorService exec = Executors.newFixedThreadPool(SysProps.threadPoolSize());
+        try {
+            for (final Resource rsrc : resources) {
+                if (!values.containsKey(rsrc)) {
+                    pending.put(rsrc, exec.submit(new Callable<String[]>() {
+                        public String[] call () throws IOException {
+                            return computeValues(rsrc);
+                        }
+                    }));
+                }
+            }
+            for (Map.Entry<Resource, Future<String[]>> entry : pending.entrySet()) {
+                try {
+                    values.put(entry.getKey(), entry.getValue().get());
+                } catch (ExecutionException ee) {
+                    throw new IOException(
+                        "Error computing digest for: " + entry.getKey(), ee.getCause());
+                }
+            }
+        } catch (InterruptedException ie) {
+            throw new InterruptedIOException("Interrupted computing digests");
+        } finally {
+            exec.shutdownNow();
+        }
+
+        for (int version = 1; version <= LATEST_VERSION; version++) {
+            Map<Resource, String> digests = new HashMap<>();
+            for (Map.Entry<Resource, String[]> entry : values.entrySet()) {
+                digests.put(entry.getKey(), entry.getValue()[version]);
+            }
+            writeDigest(version, resources, digests, new File(appdir, digestFile(version)));
+        }
+
+        long elapsed = System.currentTimeMillis() - start;
+        log.debug("Computed digests [rsrcs=" + resources.size() + ", hashed=" + pending.size() +
+                  ", time=" + elapsed + "ms]");
+    }
+
+    /**
+     * Computes the values recorded in the digest files of every version for {@code rsrc}, and
+     * writes its chunk tree sidecar if it is large enough to have one.
+     */
+    protected static String[] computeValues (Resource rsrc) throws IOException
+    {
+        File local = rsrc.getLocal();
+        String[] values = Resource.computeDigests(local, null);
+        long length = local.length();
+        String root = null;
+        if (length >= ChunkTree.CHUNKED_THRESHOLD) {
+            ChunkTree tree = ChunkTree.compute(local, ChunkTree.CHUNK_SIZE);
+            tree.write(new File(local.getPath() + ChunkTree.SUFFIX));
+            length = tree.length();
+            root = tree.root();
+        }
+        for (int version = SIZED_VERSION; version <= LATEST_VERSION; version++) {
+            values[version] = values[version] + " " + length;
+            if (root != null && version >= CHUNKED_VERSION) {
+                values[version] = values[version] + " " + root;
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Writes a digest file containing the supplied values (which include the sizes and chunk tree
+     * roots recorded by newer versions) for each of {@code resources}.
+     */
+    protected static void writeDigest (int version, List<Resource> resources,
+                                       Map<Resource, String> digests, File output)
+        throws IOException
+    {
         StringBuilder data = new StringBuilder();
         try (FileOutputStream fos = new FileOutputStream(output);
              OutputStreamWriter osw = new OutputStreamWriter(fos, StandardCharsets.UTF_8);
@@ -113,9 +249,6 @@ public class Digest
             String filename = digestFile(version);
             pout.println(filename + " = " + StringUtil.hexlate(md.digest(contents)));
         }
-
-        long elapsed = System.currentTimeMillis() - start;
-        log.debug("Computed digests [rsrcs=" + resources.size() + ", time=" + elapsed + "ms]");
     }
 
     /**
@@ -131,12 +264,34 @@ public class Digest
         }
     }
 
+    /**
+     * Returns the newest digest version for which a digest file exists in {@code appdir}, or
+     * {@link #VERSION} if no newer (optional) digest file exists.
+     */
+    public static int latestVersion (File appdir) {
+        for (int version = LATEST_VERSION; version > VERSION; version--) {
+            if (new File(appdir, digestFile(version)).exists()) {
+                return version;
+            }
+        }
+        return VERSION;
+    }
+
     /**
      * Creates a digest instance which will parse and validate the digest in the supplied
-     * application directory, using the current digest version.
+     * application directory, using the newest digest version available there.
      */
     public Digest (File appdir, boolean strictComments) throws IOException {
-        this(appdir, VERSION, strictComments);
+        this(appdir, latestVersion(appdir), strictComments);
+    }
+
+    /**
+     * Creates a digest instance which will parse and validate the digest in the supplied
+     * application directory, using the newest digest version available there, and optionally
+     * using a {@link DigestIndex} in lieu of parsing it.
+     */
+    public Digest (File appdir, boolean strictComments, boolean useIndex) throws IOException {
+        this(appdir, latestVersion(appdir), strictComments, useIndex);
     }
 
     /**
@@ -146,10 +301,40 @@ public class Digest
      */
     public Digest (File appdir, int version, boolean strictComments) throws IOException
     {
-        // parse and validate our digest file contents
+        this(appdir, version, strictComments, false);
+    }
+
+    /**
+     * Creates a digest instance which will parse and validate the digest in the supplied
+     * application directory.
+     * @param version the version of the digest protocol to use.
+     * @param useIndex if true, the digest is read from its {@link DigestIndex} if one exists and
+     * was built from the current digest file, and an index is built after parsing it otherwise.
+     */
+    public Digest (File appdir, int version, boolean strictComments, boolean useIndex)
+        throws IOException
+    {
+        _version = version;
+
         String filename = digestFile(version);
-        StringBuilder data = new StringBuilder();
         File dfile = new File(appdir, filename);
+        File ifile = new File(appdir, filename + DigestIndex.SUFFIX);
+        byte[] sourceHash = null;
+        if (useIndex && dfile.exists()) {
+            sourceHash = getMessageDigest(VERSION).digest(Files.readAllBytes(dfile.toPath()));
+            try {
+                _index = DigestIndex.read(ifile, sourceHash);
+            } catch (IOException ioe) {
+                log.warning("Failed to read digest index", "file", ifile, "error", ioe);
+            }
+            if (_index != null) {
+                _metaDigest = _index.getMetaDigest();
+                return;
+            }
+        }
+
+        // parse and validate our digest file contents
+        StringBuilder data = new StringBuilder();
         Config.ParseOpts opts = Config.createOpts(false);
         opts.strictComments = strictComments;
         // bias = toward key: the key is the filename and could conceivably contain = signs, value
@@ -160,8 +345,23 @@ public class Digest
                 _metaDigest = pair[1];
                 break;
             }
-            _digests.put(pair[0], pair[1]);
             note(data, pair[0], pair[1]);
+
+            // the value is the hash, optionally followed by the size of the resource and then
+            // by the root of its chunk tree
+            String[] values = pair[1].trim().split(" +");
+            if (values.length > 1) {
+                try {
+                    _sizes.put(pair[0], Long.parseLong(values[1]));
+                } catch (NumberFormatException nfe) {
+                    log.warning("Ignoring invalid size in digest", "path", pair[0],
+                                "value", pair[1]);
+                }
+            }
+            if (values.length > 2) {
+                _chunkRoots.put(pair[0], values[2]);
+            }
+            _digests.put(pair[0], values[0]);
         }
 
         // we've reached the end, validate our contents
@@ -172,6 +372,25 @@ public class Digest
             String err = MessageUtil.tcompose("m.invalid_digest_file", _metaDigest, hash);
             throw new IOException(err);
         }
+
+        if (sourceHash != null) {
+            try {
+                if (!DigestIndex.write(ifile, sourceHash, _metaDigest, _digests, _sizes,
+                                       _chunkRoots)) {
+                    log.info("Digest cannot be indexed", "file", dfile);
+                }
+            } catch (IOException ioe) {
+                log.warning("Failed to write digest index", "file", ifile, "error", ioe);
+            }
+        }
+    }
+
+    /**
+     * Returns the version of the digest protocol used by this digest.
+     */
+    public int getVersion ()
+    {
+        return _version;
     }
 
     /**
@@ -190,10 +409,22 @@ public class Digest
      * error was encountered during the validation process.
      */
     public boolean validateResource (Resource resource, ProgressObserver obs)
+    {
+        return validateResource(resource, obs, null);
+    }
+
+    /**
+     * Validates the specified resource like {@link #validateResource(Resource,ProgressObserver)},
+     * but skips rehashing it if {@code cache} knows its digest and it is unchanged since.
+     *
+     * @param cache the cache of previously computed digests, or null.
+     */
+    public boolean validateResource (Resource resource, ProgressObserver obs, DigestCache cache)
     {
         try {
-            String chash = resource.computeDigest(VERSION, getMessageDigest(VERSION), obs);
-            String ehash = _digests.get(resource.getPath());
+            String chash = resource.computeDigest(
+                _version, getMessageDigest(_version), obs, cache);
+            String ehash = getDigest(resource);
             if (chash.equals(ehash)) {
                 return true;
             }
@@ -210,7 +441,53 @@ public class Digest
      */
     public String getDigest (Resource resource)
     {
-        return _digests.get(resource.getPath());
+        String path = resource.getPath();
+        return (_index == null) ? _digests.get(path) : _index.getDigest(path);
+    }
+
+    /**
+     * Returns the size of the given {@code resource} as recorded in the digest file, or {@code -1}
+     * if this digest does not record sizes (or has no entry for the resource).
+     */
+    public long getSize (Resource resource)
+    {
+        if (_index != null) {
+            return _index.getSize(resource.getPath());
+        }
+        Long size = _sizes.get(resource.getPath());
+        return (size == null) ? -1L : size;
+    }
+
+    /**
+     * Returns the root of the chunk tree of the given {@code resource}, or null if this digest
+     * does not record one for it.
+     */
+    public String getChunkRoot (Resource resource)
+    {
+        String path = resource.getPath();
+        return (_index == null) ? _chunkRoots.get(path) : _index.getChunkRoot(path);
+    }
+
+    /**
+     * Returns the values recorded for the given {@code resource} in the supplied digests of every
+     * version (indexed by version), in the form returned by {@link #computeValues}, or null if any
+     * of the digests has no entry for it.
+     */
+    public static String[] getValues (Digest[] digests, Resource resource)
+    {
+        String[] values = new String[LATEST_VERSION+1];
+        for (int version = 1; version <= LATEST_VERSION; version++) {
+            Digest digest = digests[version];
+            String hash = (digest == null) ? null : digest.getDigest(resource);
+            if (hash == null) {
+                return null;
+            }
+            long size = digest.getSize(resource);
+            String root = digest.getChunkRoot(resource);
+            values[version] = hash + (size < 0 ? "" : " " + size) +
+                (root == null ? "" : " " + root);
+        }
+        return values;
     }
 
     /** Used by {@link #createDigest} and {@link Digest}. */
@@ -219,9 +496,16 @@ public class Digest
         data.append(path).append(" = ").append(digest).append("\n");
     }
 
+    protected final int _version;
     protected final HashMap<String, String> _digests = new HashMap<>();
+    protected final HashMap<String, Long> _sizes = new HashMap<>();
+    protected final HashMap<String, String> _chunkRoots = new HashMap<>();
+    protected DigestIndex _index;
     protected String _metaDigest = "";
 
+    /** The first digest version that records resource sizes. */
+    protected static final int SIZED_VERSION = 3;
+
     protected static final String FILE_NAME = "digest";
     protected static final String FILE_SUFFIX = ".txt";
 }
@@ -0,0 +1,184 @@
+//
+// Getdown - application installer, patcher and launcher
+// Copyright (C) 2004-2018 Getdown authors
+// https://github.com/threerings/getdown/blob/master/LICENSE
+
+package com.threerings.getdown.data;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+import com.threerings.getdown.util.FileUtil;
+import com.threerings.getdown.util.ProgressObserver;
+
+import static com.threerings.getdown.Log.log;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Remembers the digests computed for files, along with the size, modification time and (where
+ * the platform provides one) file key (i.e. inode) of each file when it was hashed. A file whose
+ * attributes are unchanged since it was hashed is assumed to be unchanged, and its digest is
+ * returned without reading it. The cache is persisted to a file in the app dir, so that it
+ * survives the clearing of validation markers that accompanies an update.
+ */
+public class DigestCache
+{
+    /**
+     * Creates a digest cache which is loaded from, and saved to, {@code file}.
+     */
+    public DigestCache (File file)
+    {
+        _file = file;
+        if (file.exists()) {
+            load();
+        }
+    }
+
+    /**
+     * Returns the digest of {@code target}, from the cache if {@code target} is unchanged since it
+     * was last hashed, otherwise by computing it via {@link Resource#computeDigest}.
+     *
+     * @param version the version of the digest protocol to use.
+     */
+    public String computeDigest (int version, File target, MessageDigest md, ProgressObserver obs)
+        throws IOException
+    {
+        String key = version + ":" + target.getAbsolutePath();
+        Entry stat = stat(target);
+        synchronized (this) {
+            Entry entry = _entries.get(key);
+            _used.add(key);
+            if (entry != null && entry.matches(stat)) {
+                return entry.digest;
+            }
+        }
+
+        String digest = Resource.computeDigest(version, target, md, obs);
+        // only cache the digest if the file didn't change while we were hashing it, and it was
+        // last modified long enough ago that a further change would change its modification time
+        Entry after = stat(target);
+        if (after.matches(stat) && System.currentTimeMillis() - stat.modified > RACY_MILLIS) {
+            stat.digest = digest;
+            synchronized (this) {
+                _entries.put(key, stat);
+                _modified = true;
+            }
+        }
+        return digest;
+    }
+
+    /**
+     * Writes the cache back to its file, if it has changed since it was loaded. Entries for files
+     * that no longer exist are dropped.
+     */
+    public synchronized void save ()
+    {
+        for (Iterator<Map.Entry<String, Entry>> it = _entries.entrySet().iterator();
+             it.hasNext(); ) {
+            Map.Entry<String, Entry> entry = it.next();
+            String key = entry.getKey();
+            if (!_used.contains(key) && !new File(key.substring(key.indexOf(':')+1)).exists()) {
+                it.remove();
+                _modified = true;
+            }
+        }
+        if (!_modified) {
+            return;
+        }
+
+        File temp = new File(_file.getPath() + "_new");
+        try (PrintWriter out = new PrintWriter(
+                 new OutputStreamWriter(new FileOutputStream(temp), UTF_8))) {
+            out.println(HEADER);
+            for (Map.Entry<String, Entry> entry : _entries.entrySet()) {
+                Entry e = entry.getValue();
+                out.println(entry.getKey() + "\t" + e.size + "\t" + e.modified + "\t" +
+                            e.fileKey + "\t" + e.digest);
+            }
+        } catch (IOException ioe) {
+            log.warning("Failed to write digest cache", "file", temp, "error", ioe);
+            return;
+        }
+        if (FileUtil.renameTo(temp, _file)) {
+            _modified = false;
+        } else {
+            log.warning("Failed to replace digest cache", "file", _file);
+        }
+    }
+
+    protected void load ()
+    {
+        try (BufferedReader in = new BufferedReader(
+                 new InputStreamReader(new FileInputStream(_file), UTF_8))) {
+            String line = in.readLine();
+            if (!HEADER.equals(line)) {
+                log.info("Ignoring digest cache in unknown format", "file", _file);
+                return;
+            }
+            while ((line = in.readLine()) != null) {
+                String[] bits = line.split("\t");
+                if (bits.length != 5) {
+                    continue;
+                }
+                try {
+                    Entry entry = new Entry(
+                        Long.parseLong(bits[1]), Long.parseLong(bits[2]), bits[3]);
+                    entry.digest = bits[4];
+                    _entries.put(bits[0], entry);
+                } catch (NumberFormatException nfe) {
+                    // skip it, we'll just recompute the digest
+                }
+            }
+        } catch (IOException ioe) {
+            log.warning("Failed to read digest cache", "file", _file, "error", ioe);
+            _entries.clear();
+        }
+    }
+
+    protected static Entry stat (File target) throws IOException
+    {
+        BasicFileAttributes attrs = Files.readAttributes(
+            target.toPath(), BasicFileAttributes.class);
+        Object fileKey = attrs.fileKey();
+        return new Entry(attrs.size(), attrs.lastModifiedTime().toMillis(),
+                         (fileKey == null) ? "-" : fileKey.toString().replace('\t', ' '));
+    }
+
+    /** The attributes of a file at the time it was hashed, and the resulting digest. */
+    protected static class Entry
+    {
+        public final long size, modified;
+        public final String fileKey;
+        public String digest;
+
+        public Entry (long size, long modified, String fileKey) {
+            this.size = size;
+            this.modified = modified;
+            this.fileKey = fileKey;
+        }
+
+        public boolean matches (Entry other) {
+            return size == other.size && modified == other.modified &&
+                fileKey.equals(other.fileKey);
+        }
+    }
+
+    protected final File _file;
+    protected final Map<String, Entry> _entries = new HashMap<>();
+    protected final Set<String> _used = new HashSet<>();
+    protected boolean _modified;
+
+    /** Identifies the format of the cache file. */
+    protected static final String HEADER = "# getdown digest cache 1";
+
+    /** Files modified this recently are not cached: a further modification made within the
+      * resolution of the file system's timestamps would go unnoticed. */
+    protected static final long RACY_MILLIS = 3000L;
+}
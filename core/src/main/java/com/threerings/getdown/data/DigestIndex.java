@@ -0,0 +1,312 @@
+//
+// Getdown - application installer, patcher and launcher
+// Copyright (C) 2004-2018 Getdown authors
+// https://github.com/threerings/getdown/blob/master/LICENSE
+
+package com.threerings.getdown.data;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.TreeMap;
+
+import com.threerings.getdown.util.FileUtil;
+import com.threerings.getdown.util.StringUtil;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * A compact binary index of the contents of a digest file, which is written next to the digest
+ * file the first time it is parsed, and used in lieu of parsing it thereafter. The index contains
+ * a table of fixed size records (each holding the resource's size and raw hashes), sorted by
+ * resource path, followed by the paths themselves. It is loaded with a single read, and resources
+ * are looked up by binary search, so neither the loading time nor the heap used grows with the
+ * number of strings in the digest file.
+ *
+ * <p>The digest file remains the source of truth: the index records the hash of the digest file
+ * from which it was built, and is ignored (and later rebuilt) if the digest file changes.</p>
+ */
+public class DigestIndex
+{
+    /** The suffix appended to a digest file's name to obtain the name of its index. */
+    public static final String SUFFIX = ".idx";
+
+    /**
+     * Loads the index in {@code file}, returning null if it does not exist, is invalid, or was
+     * not built from a digest file with contents hash {@code sourceHash}.
+     */
+    public static DigestIndex read (File file, byte[] sourceHash) throws IOException
+    {
+        if (!file.exists() || file.length() < HEADER_SIZE || file.length() > Integer.MAX_VALUE) {
+            return null;
+        }
+        byte[] data = new byte[(int)file.length()];
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            in.readFully(data);
+        }
+
+        ByteBuffer buf = ByteBuffer.wrap(data);
+        if (buf.getInt() != MAGIC) {
+            return null;
+        }
+        int hashLength = buf.getInt();
+        byte[] source = new byte[SOURCE_HASH_LENGTH];
+        buf.get(source);
+        if (!Arrays.equals(source, sourceHash) || hashLength <= 0 || hashLength > 64 ||
+            data.length < HEADER_SIZE + hashLength + 4) {
+            return null;
+        }
+        byte[] meta = new byte[hashLength];
+        buf.get(meta);
+        int count = buf.getInt();
+        int recordSize = RECORD_HEADER_SIZE + 2 * hashLength;
+        if (count < 0 || buf.position() + (long)count * recordSize > data.length) {
+            return null;
+        }
+        DigestIndex index = new DigestIndex(buf.slice(), hashLength, count,
+                                            StringUtil.hexlate(meta));
+        return index.isValid() ? index : null;
+    }
+
+    /**
+     * Writes an index of the supplied digest file contents to {@code file}. The index is written
+     * to a temporary file which then replaces {@code file}, so a partially written index is never
+     * read.
+     *
+     * @param sourceHash the hash of the contents of the digest file.
+     * @param metaDigest the (validated) digest of the digest file.
+     * @param digests the hex encoded hash of each resource, by path.
+     * @param sizes the size of each resource, by path, for digests which record sizes.
+     * @param chunkRoots the chunk tree root of each chunked resource, by path.
+     * @return false if the digests cannot be represented by an index (i.e. they are not all hex
+     * encoded hashes of the same length), true otherwise.
+     */
+    public static boolean write (File file, byte[] sourceHash, String metaDigest,
+                                 Map<String, String> digests, Map<String, Long> sizes,
+                                 Map<String, String> chunkRoots)
+        throws IOException
+    {
+        byte[] meta = toHash(metaDigest, -1);
+        if (meta == null) {
+            return false;
+        }
+        int hashLength = meta.length;
+
+        // the records are sorted by the bytes of their paths, which is the order in which we
+        // compare them when searching
+        TreeMap<byte[], String> paths = new TreeMap<>(BYTES_COMP);
+        for (String path : digests.keySet()) {
+            paths.put(path.getBytes(UTF_8), path);
+        }
+
+        ByteArrayOutputStream pool = new ByteArrayOutputStream();
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bout);
+        out.writeInt(MAGIC);
+        out.writeInt(hashLength);
+        out.write(sourceHash);
+        out.write(meta);
+        out.writeInt(paths.size());
+        byte[] noRoot = new byte[hashLength];
+        for (Map.Entry<byte[], String> entry : paths.entrySet()) {
+            String path = entry.getValue();
+            byte[] hash = toHash(digests.get(path), hashLength);
+            String rootHex = chunkRoots.get(path);
+            byte[] root = (rootHex == null) ? noRoot : toHash(rootHex, hashLength);
+            if (hash == null || root == null) {
+                return false;
+            }
+            Long size = sizes.get(path);
+            out.writeInt(pool.size());
+            out.writeInt(entry.getKey().length);
+            out.writeLong((size == null) ? -1L : size);
+            out.writeByte((rootHex == null) ? 0 : HAS_ROOT);
+            out.write(hash);
+            out.write(root);
+            pool.write(entry.getKey());
+        }
+        pool.writeTo(out);
+        out.flush();
+
+        File temp = new File(file.getPath() + "_new");
+        try (FileOutputStream fout = new FileOutputStream(temp)) {
+            bout.writeTo(fout);
+        }
+        if (!FileUtil.renameTo(temp, file)) {
+            throw new IOException("Failed to replace " + file);
+        }
+        return true;
+    }
+
+    protected DigestIndex (ByteBuffer data, int hashLength, int count, String metaDigest)
+    {
+        _data = data;
+        _hashLength = hashLength;
+        _recordSize = RECORD_HEADER_SIZE + 2 * hashLength;
+        _count = count;
+        _poolStart = count * _recordSize;
+        _metaDigest = metaDigest;
+    }
+
+    /**
+     * Returns true if the paths of all of our records lie within our path pool.
+     */
+    protected boolean isValid ()
+    {
+        long poolSize = _data.limit() - _poolStart;
+        for (int ii = 0; ii < _count; ii++) {
+            int offset = ii * _recordSize;
+            long start = _data.getInt(offset), length = _data.getInt(offset + 4);
+            if (start < 0 || length < 0 || start + length > poolSize) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the digest of the digest file from which this index was built.
+     */
+    public String getMetaDigest ()
+    {
+        return _metaDigest;
+    }
+
+    /**
+     * Returns the number of resources in this index.
+     */
+    public int size ()
+    {
+        return _count;
+    }
+
+    /**
+     * Returns the hex encoded hash of the resource with the specified path, or null if it is not
+     * in this index.
+     */
+    public String getDigest (String path)
+    {
+        int record = find(path);
+        return (record < 0) ? null : hash(record, HASH_OFFSET);
+    }
+
+    /**
+     * Returns the size of the resource with the specified path, or -1 if it is not in this index
+     * or its size is not recorded.
+     */
+    public long getSize (String path)
+    {
+        int record = find(path);
+        return (record < 0) ? -1L : _data.getLong(record * _recordSize + SIZE_OFFSET);
+    }
+
+    /**
+     * Returns the hex encoded chunk tree root of the resource with the specified path, or null if
+     * it is not in this index or has no chunk tree.
+     */
+    public String getChunkRoot (String path)
+    {
+        int record = find(path);
+        if (record < 0 || _data.get(record * _recordSize + FLAGS_OFFSET) != HAS_ROOT) {
+            return null;
+        }
+        return hash(record, HASH_OFFSET + _hashLength);
+    }
+
+    /**
+     * Returns the index of the record for the specified path, or -1 if there is none.
+     */
+    protected int find (String path)
+    {
+        byte[] key = path.getBytes(UTF_8);
+        int low = 0, high = _count - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int cmp = compare(mid, key);
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Compares the path of the specified record with {@code key}, as {@link #BYTES_COMP} would.
+     */
+    protected int compare (int record, byte[] key)
+    {
+        int offset = record * _recordSize;
+        int start = _poolStart + _data.getInt(offset), length = _data.getInt(offset + 4);
+        for (int ii = 0, ll = Math.min(length, key.length); ii < ll; ii++) {
+            int cmp = (_data.get(start + ii) & 0xFF) - (key[ii] & 0xFF);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return length - key.length;
+    }
+
+    protected String hash (int record, int offset)
+    {
+        byte[] hash = new byte[_hashLength];
+        for (int ii = 0, start = record * _recordSize + offset; ii < hash.length; ii++) {
+            hash[ii] = _data.get(start + ii);
+        }
+        return StringUtil.hexlate(hash);
+    }
+
+    /**
+     * Decodes a hex encoded hash, returning null if it is not valid hex of the expected length
+     * (-1 for any length), or if it would not be hex encoded identically when read back.
+     */
+    protected static byte[] toHash (String hex, int length)
+    {
+        try {
+            byte[] hash = StringUtil.unhexlate(hex);
+            boolean valid = (length < 0 || hash.length == length) && hash.length > 0 &&
+                StringUtil.hexlate(hash).equals(hex);
+            return valid ? hash : null;
+        } catch (IllegalArgumentException iae) {
+            return null;
+        }
+    }
+
+    protected final ByteBuffer _data;
+    protected final int _hashLength, _recordSize, _count, _poolStart;
+    protected final String _metaDigest;
+
+    /** Orders byte arrays by their unsigned contents. */
+    protected static final Comparator<byte[]> BYTES_COMP = new Comparator<byte[]>() {
+        @Override public int compare (byte[] b1, byte[] b2) {
+            for (int ii = 0, ll = Math.min(b1.length, b2.length); ii < ll; ii++) {
+                int cmp = (b1[ii] & 0xFF) - (b2[ii] & 0xFF);
+                if (cmp != 0) {
+                    return cmp;
+                }
+            }
+            return b1.length - b2.length;
+        }
+    };
+
+    /** Identifies the format of the index file. */
+    protected static final int MAGIC = 0x47444931; // "GDI1"
+
+    /** The length of the hash of the digest file recorded in the index. */
+    protected static final int SOURCE_HASH_LENGTH = 32;
+
+    /** The size of the fixed portion of the header: magic, hash length and source hash. */
+    protected static final int HEADER_SIZE = 8 + SOURCE_HASH_LENGTH;
+
+    /** The layout of each record: path offset, path length, size, flags, hash and chunk root. */
+    protected static final int SIZE_OFFSET = 8, FLAGS_OFFSET = 16, HASH_OFFSET = 17;
+    protected static final int RECORD_HEADER_SIZE = HASH_OFFSET;
+
+    /** Set in the flags of records whose resource has a chunk tree root. */
+    protected static final byte HAS_ROOT = 1;
+}
@@ -7,8 +7,16 @@ package com.threerings.getdown.data;
 
 import java.io.*;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.security.MessageDigest;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 
@@ -57,6 +65,14 @@ public class Resource implements Comparable<Resource>
 
         boolean isZip = isJar(target) || isZip(target); // jar is a zip too
 
+        // newer digest versions hash each entry separately, which allows them to be hashed in
+        // parallel; this is agnostic to timestamps and file order as well
+        if (isZip && version >= Digest.ENTRY_TREE_VERSION) {
+            try (ZipFile zip = new ZipFile(target)) {
+                return computeEntryTreeDigest(version, zip, md, obs, true);
+            }
+        }
+
         // if this is a jar, we need to compute the digest in a "timestamp and file order" agnostic
         // manner to properly correlate jardiff patched jars with their unpatched originals
         if (isZip){
@@ -102,18 +118,186 @@ public class Resource implements Comparable<Resource>
             }
 
         } else {
-            long totalSize = target.length(), position = 0L;
-            try (FileInputStream fin = new FileInputStream(target)) {
-                while ((read = fin.read(buffer)) != -1) {
-                    md.update(buffer, 0, read);
-                    position += read;
-                    updateProgress(obs, position, totalSize);
+            hashFile(target, obs, md);
+        }
+        return StringUtil.hexlate(md.digest());
+    }
+
+    /**
+     * Computes the digest of the supplied file for every version of the digest protocol, reading
+     * it only once. Each digest is the same as that computed by {@link
+     * #computeDigest(int,File,MessageDigest,ProgressObserver)} for the corresponding version.
+     *
+     * @return the digests, indexed by version (index zero is unused).
+     */
+    public static String[] computeDigests (File target, ProgressObserver obs) throws IOException
+    {
+        MessageDigest md1 = Digest.getMessageDigest(1);
+        MessageDigest md2 = Digest.getMessageDigest(Digest.VERSION);
+        String tree = null;
+        if (isJar(target) || isZip(target)) {
+            // feed the entries to the flat digests and to the entry tree at the same time
+            MessageDigest emd = Digest.getMessageDigest(Digest.ENTRY_TREE_VERSION);
+            MessageDigest tmd = Digest.getMessageDigest(Digest.ENTRY_TREE_VERSION);
+            byte[] buffer = new byte[ENTRY_BUFFER_SIZE];
+            try (ZipFile zip = new ZipFile(target)) {
+                List<? extends ZipEntry> entries = Collections.list(zip.entries());
+                Collections.sort(entries, ENTRY_COMP);
+                for (int ii = 0, count = entries.size(); ii < count; ii++) {
+                    ZipEntry entry = entries.get(ii);
+                    // version 1 skips metadata
+                    boolean meta = entry.getName().startsWith("META-INF");
+                    try (InputStream in = zip.getInputStream(entry)) {
+                        int read;
+                        while ((read = in.read(buffer)) != -1) {
+                            if (!meta) {
+                                md1.update(buffer, 0, read);
+                            }
+                            md2.update(buffer, 0, read);
+                            emd.update(buffer, 0, read);
+                        }
+                    }
+                    tmd.update(entry.getName().getBytes(StandardCharsets.UTF_8));
+                    tmd.update((byte)0);
+                    tmd.update(emd.digest());
+                    updateProgress(obs, ii+1, count);
                 }
             }
+            tree = StringUtil.hexlate(tmd.digest());
+        } else {
+            hashFile(target, obs, md1, md2);
+        }
+
+        String[] digests = new String[Digest.LATEST_VERSION+1];
+        digests[1] = StringUtil.hexlate(md1.digest());
+        String flat = StringUtil.hexlate(md2.digest());
+        for (int version = 2; version <= Digest.LATEST_VERSION; version++) {
+            digests[version] = (tree != null && version >= Digest.ENTRY_TREE_VERSION) ?
+                tree : flat;
+        }
+        return digests;
+    }
+
+    /**
+     * Feeds the contents of the supplied (plain) file into each of {@code mds}. The file is read
+     * through a channel into a large direct buffer, so that hashing is limited by the disk rather
+     * than by the number of reads, and progress is only reported when the completed percentage
+     * changes.
+     */
+    protected static void hashFile (File target, ProgressObserver obs, MessageDigest... mds)
+        throws IOException
+    {
+        // we don't map the file: a mapped file can't be renamed or deleted on Windows until the
+        // mapping is garbage collected, and we hash _new files right before renaming them
+        ByteBuffer buffer = FILE_BUFFER.get();
+        try (FileChannel channel = new FileInputStream(target).getChannel()) {
+            long totalSize = channel.size(), position = 0L;
+            int lastPercent = -1;
+            while (true) {
+                buffer.clear();
+                int read = channel.read(buffer);
+                if (read == -1) {
+                    break;
+                }
+                buffer.flip();
+                for (MessageDigest md : mds) {
+                    buffer.rewind();
+                    md.update(buffer);
+                }
+                position += read;
+                if (obs != null && totalSize > 0) {
+                    int percent = (int)(100 * Math.min(position, totalSize) / totalSize);
+                    if (percent != lastPercent) {
+                        obs.progress(percent);
+                        lastPercent = percent;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Computes the digest of a zip file as a two level hash tree: each entry's contents are hashed
+     * separately, and the digest is the hash of the entries' names and hashes, in name order.
+     * When the archive is large, the entries are hashed in parallel, which keeps all cores busy
+     * inflating rather than just one.
+     *
+     * @param allowParallel whether to hash large archives in parallel.
+     */
+    protected static String computeEntryTreeDigest (
+        final int version, final ZipFile zip, MessageDigest md, ProgressObserver obs,
+        boolean allowParallel) throws IOException
+    {
+        List<? extends ZipEntry> entries = Collections.list(zip.entries());
+        Collections.sort(entries, ENTRY_COMP);
+        long totalSize = 0L;
+        for (ZipEntry entry : entries) {
+            totalSize += Math.max(entry.getSize(), 0L);
+        }
+
+        int count = entries.size();
+        byte[][] hashes = new byte[count][];
+        int threads = Math.min(SysProps.threadPoolSize(), count);
+        if (allowParallel && threads > 1 && totalSize >= PARALLEL_DIGEST_THRESHOLD) {
+            ExecutorService exec = Executors.newFixedThreadPool(threads);
+            try {
+                List<Future<byte[]>> results = new ArrayList<>();
+                for (final ZipEntry entry : entries) {
+                    results.add(exec.submit(new Callable<byte[]>() {
+                        public byte[] call () throws IOException {
+                            return hashEntry(zip, entry, Digest.getMessageDigest(version));
+                        }
+                    }));
+                }
+                for (int ii = 0; ii < count; ii++) {
+                    hashes[ii] = results.get(ii).get();
+                    updateProgress(obs, ii+1, count);
+                }
+            } catch (ExecutionException ee) {
+                Throwable cause = ee.getCause();
+                if (cause instanceof IOException) {
+                    throw (IOException)cause;
+                }
+                throw new IOException("Failed to hash " + zip.getName(), cause);
+            } catch (InterruptedException ie) {
+                throw new InterruptedIOException("Interrupted hashing " + zip.getName());
+            } finally {
+                exec.shutdownNow();
+            }
+        } else {
+            MessageDigest emd = Digest.getMessageDigest(version);
+            for (int ii = 0; ii < count; ii++) {
+                hashes[ii] = hashEntry(zip, entries.get(ii), emd);
+                updateProgress(obs, ii+1, count);
+            }
+        }
+
+        md.reset();
+        for (int ii = 0; ii < count; ii++) {
+            md.update(entries.get(ii).getName().getBytes(StandardCharsets.UTF_8));
+            md.update((byte)0);
+            md.update(hashes[ii]);
         }
         return StringUtil.hexlate(md.digest());
     }
 
+    /**
+     * Returns the hash of the contents of the specified zip entry.
+     */
+    protected static byte[] hashEntry (ZipFile zip, ZipEntry entry, MessageDigest md)
+        throws IOException
+    {
+        md.reset();
+        byte[] buffer = new byte[ENTRY_BUFFER_SIZE];
+        try (InputStream in = zip.getInputStream(entry)) {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                md.update(buffer, 0, read);
+            }
+        }
+        return md.digest();
+    }
+
     /**
      * Returns whether {@code file} is a {@code zip} file.
      */
@@ -136,12 +320,23 @@ public class Resource implements Comparable<Resource>
      * Creates a resource with the supplied remote URL and local path.
      */
     public Resource (String path, URL remote, File local, EnumSet<Attr> attrs)
+    {
+        this(path, remote, local, attrs, null);
+    }
+
+    /**
+     * Creates a resource whose validity is recorded in {@code journal}. If {@code journal} is
+     * null, validity is recorded via a marker file next to the resource.
+     */
+    public Resource (String path, URL remote, File local, EnumSet<Attr> attrs,
+                     ValidationJournal journal)
     {
         _path = path;
         _remote = remote;
         _local = local;
         _localNew = new File(local.toString() + "_new");
         _marker = new File(_local.getPath() + "v");
+        _journal = journal;
 
         _attrs = attrs;
         _isZip = isJar(local) || isZip(local);
@@ -223,6 +418,15 @@ public class Resource implements Comparable<Resource>
         return _attrs.contains(Attr.NATIVE);
     }
 
+    /**
+     * Returns true if this resource has attributes which {@link #applyAttrs} must apply before it
+     * can be used, i.e. if it is to be unpacked or made executable.
+     */
+    public boolean hasAttrsToApply ()
+    {
+        return shouldUnpack() || _attrs.contains(Attr.EXEC);
+    }
+
     /**
      * Computes the MD5 hash of this resource's underlying file.
      * <em>Note:</em> This is both CPU and I/O intensive.
@@ -230,6 +434,19 @@ public class Resource implements Comparable<Resource>
      */
     public String computeDigest (int version, MessageDigest md, ProgressObserver obs)
         throws IOException
+    {
+        return computeDigest(version, md, obs, null);
+    }
+
+    /**
+     * Computes the hash of this resource's underlying file, obtaining it from {@code cache} if
+     * the file is unchanged since the cache last saw it.
+     * @param version the version of the digest protocol to use.
+     * @param cache the cache of previously computed digests, or null.
+     */
+    public String computeDigest (int version, MessageDigest md, ProgressObserver obs,
+                                 DigestCache cache)
+        throws IOException
     {
         File file;
         if (_local.toString().toLowerCase(Locale.ROOT).endsWith(Application.CONFIG_FILE)) {
@@ -237,12 +454,52 @@ public class Resource implements Comparable<Resource>
         } else {
             file = _localNew.exists() ? _localNew : _local;
         }
-        return computeDigest(version, file, md, obs);
+        // if we hashed the new file while downloading it, and it hasn't changed since, we can
+        // skip reading it all back in again
+        if (file == _localNew) {
+            String digest = getRecordedDigest(md.getAlgorithm());
+            if (digest != null) {
+                return digest;
+            }
+        }
+        return (cache == null) ? computeDigest(version, file, md, obs) :
+            cache.computeDigest(version, file, md, obs);
     }
 
     /**
-     * Returns true if this resource has an associated "validated" marker
-     * file.
+     * Records the digest of this resource's {@code _new} file, as computed while it was being
+     * downloaded. {@link #computeDigest(int,MessageDigest,ProgressObserver)} will use it in lieu
+     * of rereading the file, as long as the file is not modified in the meanwhile. This must only
+     * be used for non-archive resources, whose digest is simply the hash of their bytes.
+     *
+     * @param algorithm the name of the algorithm used to compute the digest.
+     * @param digest the hex encoded digest.
+     */
+    public synchronized void recordDigest (String algorithm, String digest)
+    {
+        _recordedAlgorithm = algorithm;
+        _recordedDigest = digest;
+        _recordedLength = _localNew.length();
+        _recordedModified = _localNew.lastModified();
+    }
+
+    /**
+     * Returns the digest recorded via {@link #recordDigest} if it was computed with {@code
+     * algorithm} and the {@code _new} file is unchanged since, or null.
+     */
+    protected synchronized String getRecordedDigest (String algorithm)
+    {
+        if (_recordedDigest == null || !_recordedAlgorithm.equals(algorithm) ||
+            _localNew.length() != _recordedLength ||
+            _localNew.lastModified() != _recordedModified) {
+            return null;
+        }
+        return _recordedDigest;
+    }
+
+    /**
+     * Returns true if this resource has been marked as valid (in its validation journal, or via
+     * an associated "validated" marker file).
      */
     public boolean isMarkedValid ()
     {
@@ -250,26 +507,61 @@ public class Resource implements Comparable<Resource>
             clearMarker();
             return false;
         }
-        return _marker.exists();
+        if (_journal == null) {
+            return _marker.exists();
+        }
+        if (_journal.isValid(_path)) {
+            return true;
+        }
+        // fold the marker file left by an older version of Getdown into the journal
+        if (_journal.isMigrating() && _marker.exists()) {
+            try {
+                _journal.markValid(_path);
+                clearLegacyMarker();
+                return true;
+            } catch (IOException ioe) {
+                log.warning("Failed to migrate marker file '" + _marker + "'.", ioe);
+            }
+        }
+        return false;
     }
 
     /**
-     * Creates a "validated" marker file for this resource to indicate
-     * that its MD5 hash has been computed and compared with the value in
-     * the digest file.
+     * Marks this resource as valid (in its validation journal, or via a "validated" marker file)
+     * to indicate that its hash has been computed and compared with the value in the digest file.
      *
-     * @throws IOException if we fail to create the marker file.
+     * @throws IOException if we fail to record the mark.
      */
     public void markAsValid ()
         throws IOException
     {
-        _marker.createNewFile();
+        if (_journal == null) {
+            _marker.createNewFile();
+        } else {
+            _journal.markValid(_path);
+        }
     }
 
     /**
-     * Removes any "validated" marker file associated with this resource.
+     * Removes any "validated" mark associated with this resource.
      */
     public void clearMarker ()
+    {
+        if (_journal == null) {
+            clearLegacyMarker();
+        } else {
+            _journal.clear(_path);
+            // don't let a marker that hasn't been migrated yet revive this resource's validity
+            if (_journal.isMigrating()) {
+                clearLegacyMarker();
+            }
+        }
+    }
+
+    /**
+     * Removes any "validated" marker file associated with this resource.
+     */
+    protected void clearLegacyMarker ()
     {
         if (_marker.exists() && !FileUtil.deleteHarder(_marker)) {
             log.warning("Failed to erase marker file '" + _marker + "'.");
@@ -283,6 +575,9 @@ public class Resource implements Comparable<Resource>
     public void install (boolean validate) throws IOException {
         File source = getLocalNew(), dest = getLocal();
         log.info("- " + source);
+        synchronized (this) {
+            _recordedDigest = null;
+        }
         if (!FileUtil.renameTo(source, dest)) {
             throw new IOException("Failed to rename " + source + " to " + dest);
         }
@@ -320,8 +615,7 @@ public class Resource implements Comparable<Resource>
     }
 
     /**
-     * Wipes this resource file along with any "validated" marker file that may be associated with
-     * it.
+     * Wipes this resource file along with any "validated" mark that may be associated with it.
      */
     public void erase ()
     {
@@ -367,10 +661,15 @@ public class Resource implements Comparable<Resource>
     protected final File _local;
     protected final File _localNew;
     protected final File _marker;
+    protected final ValidationJournal _journal;
     protected File _unpacked;
     protected final EnumSet<Attr> _attrs;
     protected final boolean _isZip;
 
+    /** The digest of our {@code _new} file computed while downloading it, if any. */
+    protected String _recordedAlgorithm, _recordedDigest;
+    protected long _recordedLength, _recordedModified;
+
     /** Used to sort the entries in a jar file. */
     protected static final Comparator<ZipEntry> ENTRY_COMP = new Comparator<ZipEntry>() {
         @Override public int compare (ZipEntry e1, ZipEntry e2) {
@@ -379,4 +678,22 @@ public class Resource implements Comparable<Resource>
     };
 
     protected static final int DIGEST_BUFFER_SIZE = 5 * 1025;
+
+    /** The buffer size used when hashing plain files. */
+    protected static final int FILE_BUFFER_SIZE = 256 * 1024;
+
+    /** The buffer into which plain files are read when hashing them, one per thread as the
+      * resources are hashed in parallel, and reused as direct buffers are costly to allocate. */
+    protected static final ThreadLocal<ByteBuffer> FILE_BUFFER = new ThreadLocal<ByteBuffer>() {
+        @Override protected ByteBuffer initialValue () {
+            return ByteBuffer.allocateDirect(FILE_BUFFER_SIZE);
+        }
+    };
+
+    /** The buffer size used when hashing zip entries. */
+    protected static final int ENTRY_BUFFER_SIZE = 64 * 1024;
+
+    /** Archives with at least this many bytes of (uncompressed) contents are hashed in
+      * parallel. */
+    protected static final long PARALLEL_DIGEST_THRESHOLD = 16 * 1024 * 1024;
 }
@@ -0,0 +1,228 @@
+//
+// Getdown - application installer, patcher and launcher
+// Copyright (C) 2004-2018 Getdown authors
+// https://github.com/threerings/getdown/blob/master/LICENSE
+
+package com.threerings.getdown.data;
+
+import java.io.*;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+import com.threerings.getdown.util.FileUtil;
+
+import static com.threerings.getdown.Log.log;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Records which resources have been validated (i.e. hashed and found to match the digest file),
+ * replacing the per-resource marker files that were formerly used for that purpose. The journal
+ * is a single append-only file in the app dir which is read once, when first needed, into an
+ * in-memory index. Each change to the index appends a record to the journal, and each record
+ * carries a checksum so that a record torn by a crash (or otherwise corrupted) is ignored rather
+ * than taken to vouch for a resource. The journal is compacted when it accumulates too many
+ * stale records, and when all of its entries are cleared.
+ *
+ * <p>If the journal did not exist when it was loaded, it is <em>migrating</em>: marker files left
+ * behind by older versions of Getdown are honored (see {@link Resource#isMarkedValid}) and
+ * folded into the journal as they are encountered.</p>
+ */
+public class ValidationJournal
+{
+    public ValidationJournal (File file)
+    {
+        _file = file;
+    }
+
+    /**
+     * Returns true if the resource with the specified path is recorded as valid.
+     */
+    public synchronized boolean isValid (String path)
+    {
+        load();
+        return _valid.contains(path);
+    }
+
+    /**
+     * Returns true if this journal did not exist when it was loaded, in which case marker files
+     * left behind by older versions of Getdown should be migrated into it.
+     */
+    public synchronized boolean isMigrating ()
+    {
+        load();
+        return _migrating;
+    }
+
+    /**
+     * Records that the resource with the specified path is valid.
+     */
+    public synchronized void markValid (String path) throws IOException
+    {
+        load();
+        if (_valid.add(path)) {
+            append(MARK, path);
+        }
+    }
+
+    /**
+     * Records that the resource with the specified path is no longer known to be valid.
+     */
+    public synchronized void clear (String path)
+    {
+        load();
+        if (_valid.remove(path)) {
+            try {
+                append(CLEAR, path);
+            } catch (IOException ioe) {
+                log.warning("Failed to append to validation journal", "file", _file, ioe);
+            }
+        }
+    }
+
+    /**
+     * Records that none of the resources with the specified paths are known to be valid. The
+     * journal is rewritten, rather than appended to, as this generally clears most of it.
+     */
+    public synchronized void clear (Collection<String> paths)
+    {
+        load();
+        if (_valid.removeAll(paths)) {
+            compact();
+        }
+    }
+
+    /**
+     * Closes the journal's underlying file, if it is open. It is reopened if further changes are
+     * recorded.
+     */
+    public synchronized void close ()
+    {
+        if (_out != null) {
+            try {
+                _out.close();
+            } catch (IOException ioe) {
+                log.warning("Failed to close validation journal", "file", _file, ioe);
+            }
+            _out = null;
+        }
+    }
+
+    protected void load ()
+    {
+        if (_loaded) {
+            return;
+        }
+        _loaded = true;
+        if (!_file.exists()) {
+            _migrating = true;
+            return;
+        }
+
+        try (BufferedReader in = new BufferedReader(
+                 new InputStreamReader(new FileInputStream(_file), UTF_8))) {
+            String line = in.readLine();
+            if (!HEADER.equals(line)) {
+                log.warning("Ignoring validation journal in unknown format", "file", _file);
+                _records = Integer.MAX_VALUE;
+            } else {
+                int corrupt = 0;
+                while ((line = in.readLine()) != null) {
+                    _records++;
+                    // each record is: <checksum> <op><path>
+                    int sidx = line.indexOf(' ');
+                    if (sidx != 8 || line.length() < 10 ||
+                        !line.substring(0, sidx).equals(checksum(line.substring(sidx+1)))) {
+                        corrupt++;
+                        continue;
+                    }
+                    String path = line.substring(sidx+2);
+                    switch (line.charAt(sidx+1)) {
+                    case MARK: _valid.add(path); break;
+                    case CLEAR: _valid.remove(path); break;
+                    default: corrupt++; break;
+                    }
+                }
+                if (corrupt > 0) {
+                    log.warning("Ignored corrupt validation journal records",
+                                "file", _file, "count", corrupt);
+                    // make sure nothing is appended to a torn record
+                    _records = Integer.MAX_VALUE;
+                }
+            }
+        } catch (IOException ioe) {
+            log.warning("Failed to read validation journal", "file", _file, ioe);
+            _valid.clear();
+            _records = Integer.MAX_VALUE;
+        }
+
+        // if the journal is mostly stale records, rewrite it
+        if (_records > 2 * _valid.size() + MIN_COMPACT_RECORDS) {
+            compact();
+        }
+    }
+
+    protected void append (char op, String path) throws IOException
+    {
+        if (_out == null) {
+            boolean exists = _file.exists();
+            _out = new FileOutputStream(_file, true);
+            if (!exists) {
+                _out.write((HEADER + "\n").getBytes(UTF_8));
+            }
+        }
+        // write each record in a single call so that it is not interleaved with anything else
+        _out.write(record(op, path).getBytes(UTF_8));
+        _records++;
+    }
+
+    protected void compact ()
+    {
+        close();
+        File temp = new File(_file.getPath() + "_new");
+        try (FileOutputStream out = new FileOutputStream(temp)) {
+            StringBuilder data = new StringBuilder(HEADER).append("\n");
+            for (String path : _valid) {
+                data.append(record(MARK, path));
+            }
+            out.write(data.toString().getBytes(UTF_8));
+        } catch (IOException ioe) {
+            log.warning("Failed to write validation journal", "file", temp, ioe);
+            return;
+        }
+        if (FileUtil.renameTo(temp, _file)) {
+            _records = _valid.size();
+        } else {
+            log.warning("Failed to replace validation journal", "file", _file);
+        }
+    }
+
+    protected static String record (char op, String path)
+    {
+        String body = op + path;
+        return checksum(body) + " " + body + "\n";
+    }
+
+    protected static String checksum (String body)
+    {
+        CRC32 crc = new CRC32();
+        crc.update(body.getBytes(UTF_8));
+        return String.format("%08x", crc.getValue());
+    }
+
+    protected final File _file;
+    protected final Set<String> _valid = new HashSet<>();
+    protected boolean _loaded, _migrating;
+    protected int _records;
+    protected OutputStream _out;
+
+    /** Identifies the format of the journal file. */
+    protected static final String HEADER = "# getdown validation journal 1";
+
+    /** Record types. */
+    protected static final char MARK = '+', CLEAR = '-';
+
+    /** Journals with fewer records than this are never compacted on load. */
+    protected static final int MIN_COMPACT_RECORDS = 256;
+}
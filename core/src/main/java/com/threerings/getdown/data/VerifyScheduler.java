@@ -0,0 +1,202 @@
+//
+// Getdown - application installer, patcher and launcher
+// Copyright (C) 2004-2018 Getdown authors
+// https://github.com/threerings/getdown/blob/master/LICENSE
+
+package com.threerings.getdown.data;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import static com.threerings.getdown.Log.log;
+
+/**
+ * Decides the order in which resources are verified, and how many of them are read at once.
+ * Resources are verified largest first, so that the biggest jobs don't end up running alone at
+ * the end. Whether they are read in parallel depends on the device on which they reside: a solid
+ * state drive serves parallel reads faster than serial ones, while a spinning disk serves them
+ * slower, as its head is dragged back and forth between files. When the strategy is {@link
+ * Strategy#AUTO}, a short probe reads a few blocks from the resources to be verified, first one at
+ * a time and then in parallel, and picks the strategy that was faster.
+ */
+public class VerifyScheduler
+{
+    /** The ways in which resources can be read. */
+    public static enum Strategy { AUTO, PARALLEL, SEQUENTIAL }
+
+    /**
+     * Returns the indices of {@code sizes} in descending order of size.
+     */
+    public static List<Integer> largestFirst (final long[] sizes)
+    {
+        List<Integer> order = new ArrayList<>();
+        for (int ii = 0; ii < sizes.length; ii++) {
+            order.add(ii);
+        }
+        Collections.sort(order, new Comparator<Integer>() {
+            @Override public int compare (Integer i1, Integer i2) {
+                return Long.compare(sizes[i2], sizes[i1]);
+            }
+        });
+        return order;
+    }
+
+    /**
+     * Creates a scheduler for the verification of {@code files} using {@code strategy}.
+     *
+     * @param files the files which will be read in full during verification (i.e. those which are
+     * not already known to be valid), largest first.
+     */
+    public VerifyScheduler (Strategy strategy, List<File> files)
+    {
+        if (strategy == Strategy.AUTO) {
+            _strategy = probe(files);
+        } else {
+            _strategy = strategy;
+        }
+    }
+
+    /**
+     * Returns the strategy chosen by this scheduler, {@link Strategy#PARALLEL} or {@link
+     * Strategy#SEQUENTIAL}.
+     */
+    public Strategy strategy ()
+    {
+        return _strategy;
+    }
+
+    /**
+     * Returns the number of threads that should verify resources.
+     */
+    public int threads ()
+    {
+        if (_strategy == Strategy.SEQUENTIAL) {
+            return 1;
+        }
+        // if we measured that the device rewards parallel reads, use every core; otherwise leave
+        // one free for the UI, as usual (and never second guess an explicit thread pool size)
+        int threads = SysProps.threadPoolSize();
+        return (rewardsParallel() && System.getProperty("thread_pool_size") == null) ?
+            Math.max(threads, Runtime.getRuntime().availableProcessors()) : threads;
+    }
+
+    /**
+     * Returns true if our probe ran and found parallel reads to be markedly faster than serial
+     * ones (as opposed to finding reads fast enough either way, or not probing at all).
+     */
+    protected boolean rewardsParallel ()
+    {
+        return _parallelRate >= 0 && _parallelRate >= PARALLEL_GAIN * _serialRate;
+    }
+
+    /**
+     * Reads some blocks from {@code files} serially and then some others in parallel, and returns
+     * the strategy that read them faster.
+     */
+    protected Strategy probe (List<File> files)
+    {
+        // we probe with the largest files, which are the ones whose reading matters
+        List<File> probed = files.subList(0, Math.min(files.size(), 2 * PROBE_FILES));
+        // if there are few large resources, there's little to be gained either way
+        if (probed.size() < 2 * PROBE_FILES ||
+            probed.get(probed.size()-1).length() < PROBE_BLOCK) {
+            log.info("Too few large resources to probe, verifying in parallel",
+                     "count", files.size());
+            return Strategy.PARALLEL;
+        }
+
+        // start the threads for the parallel reads up front, so that we don't time their startup
+        ThreadPoolExecutor exec = new ThreadPoolExecutor(PROBE_FILES, PROBE_FILES, 0L,
+            TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>());
+        exec.prestartAllCoreThreads();
+        long start = System.nanoTime();
+        try {
+            long serial = 0L;
+            for (File file : probed.subList(0, PROBE_FILES)) {
+                serial += readBlock(file);
+            }
+            long serialNanos = System.nanoTime() - start;
+
+            long pstart = System.nanoTime(), parallel = 0L;
+            List<Future<Long>> reads = new ArrayList<>();
+            for (final File file : probed.subList(PROBE_FILES, probed.size())) {
+                reads.add(exec.submit(new Callable<Long>() {
+                    public Long call () throws IOException {
+                        return readBlock(file);
+                    }
+                }));
+            }
+            for (Future<Long> read : reads) {
+                parallel += read.get();
+            }
+            long parallelNanos = System.nanoTime() - pstart;
+
+            _serialRate = rate(serial, serialNanos);
+            _parallelRate = rate(parallel, parallelNanos);
+            // if even serial reads are fast, the files are cached or on a fast device and hashing
+            // is what limits us, so we hash in parallel
+            Strategy strategy = (_serialRate >= FAST_RATE ||
+                                 _parallelRate >= PARALLEL_GAIN * _serialRate) ?
+                Strategy.PARALLEL : Strategy.SEQUENTIAL;
+            log.info("Probed resource read throughput", "strategy", strategy,
+                     "serialMBps", _serialRate, "parallelMBps", _parallelRate,
+                     "duration", (System.nanoTime() - start) / 1000000 + "ms");
+            return strategy;
+
+        } catch (IOException | ExecutionException e) {
+            log.info("Failed to probe resource read throughput, verifying in parallel",
+                     "error", e);
+            return Strategy.PARALLEL;
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            return Strategy.PARALLEL;
+        } finally {
+            exec.shutdownNow();
+        }
+    }
+
+    /**
+     * Reads a block from the middle of {@code file}, returning the number of bytes read.
+     */
+    protected static long readBlock (File file) throws IOException
+    {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            byte[] block = new byte[(int)Math.min(PROBE_BLOCK, raf.length())];
+            raf.seek((raf.length() - block.length) / 2);
+            raf.readFully(block);
+            return block.length;
+        }
+    }
+
+    /** Returns a rate in megabytes per second. */
+    protected static long rate (long bytes, long nanos)
+    {
+        return bytes * 1000L / Math.max(nanos, 1L);
+    }
+
+    protected final Strategy _strategy;
+    protected long _serialRate = -1L, _parallelRate = -1L;
+
+    /** The number of files read by each half of the probe. */
+    protected static final int PROBE_FILES = 4;
+
+    /** The number of bytes read from each probed file. */
+    protected static final int PROBE_BLOCK = 256 * 1024;
+
+    /** A serial read rate (in MB/s) at or above which we don't bother reading serially. */
+    protected static final long FAST_RATE = 500L;
+
+    /** The factor by which parallel reads must outpace serial ones for us to read in parallel. */
+    protected static final double PARALLEL_GAIN = 1.5;
+}
@@ -0,0 +1,139 @@
+//
+// Getdown - application installer, patcher and launcher
+// Copyright (C) 2004-2018 Getdown authors
+// https://github.com/threerings/getdown/blob/master/LICENSE
+
+package com.threerings.getdown.net;
+
+import java.util.Arrays;
+
+import static com.threerings.getdown.Log.log;
+
+/**
+ * Limits the number of concurrently active transfers, adapting the limit to the observed
+ * aggregate throughput in AIMD (additive increase, multiplicative decrease) fashion: once per
+ * control interval the limit is raised by one, unless throughput has dropped markedly (which is
+ * what happens when parallel streams start fighting over a narrow pipe), in which case the limit
+ * is halved. The limit always stays within the configured bounds.
+ *
+ * <p>A drop is judged against the throughput last measured at the same limit (or if there is no
+ * such measurement, the throughput measured just before the limit was raised to it), never
+ * against that at a higher limit, so that the lower throughput that naturally follows halving
+ * the limit is not itself taken as a loss. The
+ * interval just after each change is not measured at all, as transfers are still ramping up or
+ * down during it.</p>
+ */
+public class ConcurrencyController
+{
+    /**
+     * Creates a controller that allows between {@code min} and {@code max} concurrent transfers,
+     * starting midway between the two.
+     */
+    public ConcurrencyController (int min, int max)
+    {
+        _min = Math.max(1, min);
+        _max = Math.max(_min, max);
+        _limit = (_min + _max + 1) / 2;
+        _rates = new long[_max + 1];
+        Arrays.fill(_rates, -1L);
+    }
+
+    /**
+     * Returns the current concurrency limit.
+     */
+    public synchronized int limit ()
+    {
+        return _limit;
+    }
+
+    /**
+     * Blocks until the number of active transfers is below the current limit, then notes that a
+     * new transfer is active. Each call must be paired with a call to {@link #release}.
+     */
+    public synchronized void acquire () throws InterruptedException
+    {
+        while (_active >= _limit) {
+            wait();
+        }
+        _active++;
+    }
+
+    /**
+     * Notes that a transfer previously started via {@link #acquire} is no longer active.
+     */
+    public synchronized void release ()
+    {
+        _active--;
+        notifyAll();
+    }
+
+    /**
+     * Notes the total number of bytes transferred as of {@code now} (in millis). Once per control
+     * interval, this measures the throughput during the interval and adjusts the concurrency
+     * limit accordingly.
+     */
+    public synchronized void sample (long bytes, long now)
+    {
+        if (_sampleStamp == 0L) {
+            _sampleStamp = now;
+            _sampleBytes = bytes;
+            return;
+        }
+        long elapsed = now - _sampleStamp;
+        if (elapsed < CONTROL_INTERVAL) {
+            return;
+        }
+        long throughput = (bytes - _sampleBytes) * 1000 / elapsed;
+        _sampleStamp = now;
+        _sampleBytes = bytes;
+        if (_settling) {
+            _settling = false;
+            return;
+        }
+
+        long reference = (_rates[_limit] >= 0) ? _rates[_limit] : _throughput;
+        _rates[_limit] = throughput;
+        _throughput = throughput;
+
+        int olimit = _limit;
+        if (reference >= 0 && throughput <= reference * (1 - LOSS_THRESHOLD)) {
+            _limit = Math.max(_min, _limit / 2);
+            // what we measured at higher limits no longer reflects the state of the network, and
+            // is no yardstick for the lower limit (whose first measurement is taken as is)
+            Arrays.fill(_rates, _limit + 1, _rates.length, -1L);
+            _throughput = -1L;
+        } else {
+            _limit = Math.min(_max, _limit + 1);
+        }
+        if (_limit != olimit) {
+            log.info("Adjusted download concurrency", "concurrency", _limit, "was", olimit,
+                     "throughput", throughput, "reference", reference);
+            _settling = true;
+            notifyAll();
+        }
+    }
+
+    @Override public synchronized String toString ()
+    {
+        return "[concurrency=" + _limit + ", min=" + _min + ", max=" + _max +
+            ", throughput=" + _throughput + "]";
+    }
+
+    protected final int _min, _max;
+    protected int _limit, _active;
+
+    protected long _sampleStamp, _sampleBytes;
+    protected long _throughput = -1L;
+
+    /** The throughput last measured at each limit, or -1 if none has been. */
+    protected final long[] _rates;
+
+    /** Whether the current interval follows a change to the limit (and is not measured). */
+    protected boolean _settling;
+
+    /** The number of milliseconds over which we measure throughput between adjustments. */
+    protected static final long CONTROL_INTERVAL = 2000L;
+
+    /** The fractional throughput drop that causes us to back off. */
+    protected static final double LOSS_THRESHOLD = 0.2;
+}
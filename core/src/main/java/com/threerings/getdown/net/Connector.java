@@ -31,6 +31,9 @@ import com.threerings.getdown.util.StreamUtil;
  */
 public class Connector {
 
+    /** The number of idle connections the JDK keeps alive per host when not configured. */
+    public static final int DEFAULT_POOL_SIZE = 5;
+
     /** The default connector uses no proxy. */
     public static final Connector DEFAULT = new Connector();
 
@@ -55,6 +58,43 @@ public class Connector {
         this.proxy = proxy;
     }
 
+    /**
+     * Configures the JVM-wide pool of persistent (keep-alive) HTTP connections used by all
+     * connectors. Connections are pooled per host (and proxy), so the HEAD requests made to check
+     * resource sizes and the GETs that download them share the same sockets, which saves a TCP
+     * (and TLS) handshake for every resource after the first few. Settings supplied explicitly
+     * via system properties take precedence over those supplied here.
+     *
+     * <p>The JDK reads these settings when it first makes an HTTP connection, so this must be
+     * called before any connections are opened for it to take effect.</p>
+     *
+     * @param poolSize the maximum number of idle connections to retain per host, or {@code 0} to
+     * disable connection reuse entirely.
+     * @param idleTimeout the number of seconds an idle connection is retained if the server does
+     * not specify a keep-alive timeout of its own, or {@code 0} to use the JDK default. Only Java
+     * 20 and newer honor this; older JDKs always use their built-in default (5 seconds).
+     */
+    public static void configurePool (int poolSize, int idleTimeout) {
+        if (poolSize <= 0) {
+            setDefaultProperty("http.keepAlive", "false");
+            return;
+        }
+        setDefaultProperty("http.keepAlive", "true");
+        setDefaultProperty("http.maxConnections", String.valueOf(poolSize));
+        if (idleTimeout > 0) {
+            setDefaultProperty("http.keepAlive.time.server", String.valueOf(idleTimeout));
+            setDefaultProperty("http.keepAlive.time.proxy", String.valueOf(idleTimeout));
+        }
+    }
+
+    /**
+     * Configures the transport used by all connectors to make their connections. This should be
+     * called before any connections are opened.
+     */
+    public static void setTransport (Transport transport) {
+        _transport = transport;
+    }
+
     /**
      * Opens a connection to a URL, setting the authentication header if user info is present.
      * @param url the URL to which to open a connection.
@@ -68,12 +108,7 @@ public class Connector {
     public URLConnection open (URL url, int connectTimeout, int readTimeout)
         throws IOException
     {
-        URLConnection conn;
-        if (proxy == null) {
-            conn = url.openConnection();
-        } else {
-            conn = url.openConnection(proxy);
-        }
+        URLConnection conn = _transport.open(url, proxy);
 
         // configure a connect timeout, if requested
         int ctimeout = connectTimeout > 0 ? connectTimeout : SysProps.connectTimeout();
@@ -154,6 +189,25 @@ public class Connector {
         return out.toString(UTF_8.toString());
     }
 
+    /**
+     * Releases a connection that is no longer needed. Rather than disconnecting, this closes the
+     * response stream, which allows the JDK to return the underlying socket to the keep-alive pool
+     * (after discarding any small unread remainder of the response) so that it can be reused for
+     * a subsequent request to the same host.
+     */
+    public void release (URLConnection conn) {
+        InputStream in = null;
+        try {
+            in = conn.getInputStream();
+        } catch (IOException ioe) {
+            // an error response's body is available via the error stream
+            if (conn instanceof HttpURLConnection) {
+                in = ((HttpURLConnection)conn).getErrorStream();
+            }
+        }
+        StreamUtil.close(in);
+    }
+
     /**
      * Checks that {@code conn} returned an {@code OK} response code iff it is an HTTP connection.
      * If the connection failed for proxy related reasons, this changes the state of this connector
@@ -202,4 +256,13 @@ public class Connector {
             args.add("-Dhttps.proxyPort=" + proxyPort);
         }
     }
+
+    /** The transport used to make connections. */
+    protected static volatile Transport _transport = Transport.DEFAULT;
+
+    protected static void setDefaultProperty (String key, String value) {
+        if (System.getProperty(key) == null) {
+            System.setProperty(key, value);
+        }
+    }
 }
@@ -0,0 +1,30 @@
+//
+// Getdown - application installer, patcher and launcher
+// Copyright (C) 2004-2018 Getdown authors
+// https://github.com/threerings/getdown/blob/master/LICENSE
+
+package com.threerings.getdown.net;
+
+import java.util.Comparator;
+import java.util.Map;
+
+import com.threerings.getdown.data.Resource;
+
+/**
+ * Determines the order in which {@link Downloader} starts its downloads. Whenever a download
+ * thread is free, it starts the waiting download which comes first in this order (including
+ * downloads added after others were queued), so the resources needed soonest should come first.
+ * See {@link PriorityDownloadOrder} for the default policy.
+ */
+public interface DownloadOrder
+{
+    /**
+     * Returns a comparator which orders resources before those which should be downloaded after
+     * them. It must be a consistent total order, as it orders a priority queue.
+     *
+     * @param sizes the size (in bytes) of each resource to be downloaded, as far as they are
+     * known. Sizes are added to the map as a download proceeds, but the size of a resource is not
+     * changed while it is waiting to be downloaded.
+     */
+    Comparator<Resource> comparator (Map<Resource, Long> sizes);
+}
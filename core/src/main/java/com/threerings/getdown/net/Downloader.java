@@ -9,25 +9,53 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
 import java.net.HttpURLConnection;
+import java.net.URL;
 import java.net.URLConnection;
+import java.nio.ByteBuffer;
 import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.nio.channels.ReadableByteChannel;
+import java.security.MessageDigest;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
+import com.threerings.getdown.data.ChunkTree;
+import com.threerings.getdown.data.Digest;
 import com.threerings.getdown.data.Resource;
+import com.threerings.getdown.util.Config;
+import com.threerings.getdown.util.FileUtil;
+import com.threerings.getdown.util.StringUtil;
 
 import static com.threerings.getdown.Log.log;
+import static java.nio.charset.StandardCharsets.UTF_8;
 
 /**
  * Handles the download of a collection of files, first issuing HTTP head requests to obtain size
- * information and then downloading the files individually, reporting progress back via protected
+ * information (for resources whose size is not already known) and then downloading the files
+ * individually, reporting progress back via protected
  * callback methods. <em>Note:</em> these methods are all called arbitrary download threads, so
  * implementors must take care to only execute thread-safe code or simply pass a message to the AWT
  * thread, for example.
@@ -47,62 +75,308 @@ public class Downloader
      */
     public boolean download (Collection<Resource> resources, int maxConcurrent)
     {
+        start(maxConcurrent);
+
         // first compute the total size of our download
         resolvingDownloads();
+        try {
+            probeMirrors(resources);
+            resolveSizes(resources, _exec);
+        } catch (InterruptedException ie) {
+            _exec.shutdownNow();
+            downloadFailed(null, ie);
+            return _state != State.ABORTED;
+        }
+
+        submit(resources);
+        return finish();
+    }
+
+    /**
+     * Starts a streaming download, to which resources are added via {@link #enqueue} as they are
+     * found to need downloading, and which is completed via {@link #finish}. Unlike {@link
+     * #download(Collection,int)}, which learns the sizes of all of its resources before it starts
+     * downloading any of them, this starts downloading each resource as soon as it is enqueued.
+     *
+     * @param maxConcurrent the maximum number of concurrent downloads allowed.
+     */
+    public void start (int maxConcurrent)
+    {
+        _maxConcurrent = maxConcurrent;
+        _taskOrder = _order.comparator(_sizes);
+        _exec = new DownloadExecutor(maxConcurrent);
+        _accepting = true;
+
+        // if we're adapting our concurrency, the pool is sized for the most we'll allow, and the
+        // controller decides how many of those threads may actually be transferring at once
+        if (_minConcurrent > 0 && _minConcurrent < maxConcurrent) {
+            _concurrency = new ConcurrencyController(_minConcurrent, maxConcurrent);
+            log.info("Adapting download concurrency", "initial", _concurrency.limit(),
+                     "min", _minConcurrent, "max", maxConcurrent);
+        }
+    }
+
+    /**
+     * Adds {@code rsrc} to a download started via {@link #start}. Its download starts as soon as
+     * a download thread is free and no download which precedes it in our {@link DownloadOrder} is
+     * waiting, regardless of the order in which resources are enqueued. If its size is not known
+     * in advance (see {@link #expectedSize}), it is obtained on the download thread, just before
+     * downloading it.
+     */
+    public void enqueue (Resource rsrc) throws InterruptedException
+    {
+        List<Resource> rsrcs = Collections.singletonList(rsrc);
+        probeMirrors(rsrcs);
+        long size = expectedSize(rsrc);
+        if (size >= 0) {
+            _sizes.put(rsrc, size);
+        }
+        submit(rsrcs);
+    }
+
+    /**
+     * Waits for all of the resources added to this download to finish downloading.
+     * @return true if the download completed, false if it was aborted (via {@link #abort}).
+     */
+    public boolean finish ()
+    {
+        _accepting = false;
+        _exec.shutdown();
+
+        // wait for the downloads to complete
+        try {
+            _exec.awaitTermination(10, TimeUnit.DAYS);
+
+            // report download completion if we did not already do so via our final resource
+            if (_state == State.DOWNLOADING) {
+                downloadProgress(100, 0);
+            }
+            if (_concurrency != null) {
+                log.info("Download concurrency at completion: " + _concurrency);
+            }
+
+        } catch (InterruptedException ie) {
+            _exec.shutdownNow();
+            downloadFailed(null, ie);
+        }
+
+        return _state != State.ABORTED;
+    }
+
+    /**
+     * Finds out which of our mirrors (if any) are closest, and which are even up. This is done
+     * once, before the first resource is downloaded.
+     */
+    protected void probeMirrors (Collection<Resource> resources) throws InterruptedException
+    {
+        if (_mirrors != null && !_probed && !resources.isEmpty()) {
+            _probed = true;
+            _mirrors.probe(_conn, _exec, resources.iterator().next().getRemote());
+        }
+    }
+
+    /**
+     * Queues up the download of the supplied resources, in order of priority.
+     */
+    protected void submit (Collection<Resource> resources)
+    {
+        // resources that can be repaired in place only need their corrupt ranges downloaded
         for (Resource rsrc : resources) {
-            try {
-                _sizes.put(rsrc, Math.max(checkSize(rsrc), 0L));
-            } catch (IOException ioe) {
-                downloadFailed(rsrc, ioe);
+            ChunkTree.Repair repair = repairFor(rsrc);
+            if (repair != null && !repair.ranges.isEmpty()) {
+                _repairs.put(rsrc, repair);
+                _sizes.put(rsrc, repair.bytes());
             }
         }
 
-        long totalSize = sum(_sizes.values());
         log.info("Downloading " + resources.size() + " resources",
-                 "totalBytes", totalSize, "maxConcurrent", maxConcurrent);
+                 "totalBytes", sum(_sizes.values()), "maxConcurrent", _maxConcurrent);
 
         // make a note of the time at which we started the download
-        _start = System.currentTimeMillis();
+        if (_start == 0L) {
+            _start = System.currentTimeMillis();
+        }
 
-        // start the downloads
-        ExecutorService exec = Executors.newFixedThreadPool(maxConcurrent);
-        for (final Resource rsrc : resources) {
+        List<Resource> ordered = new ArrayList<>(resources);
+        Collections.sort(ordered, _taskOrder);
+        for (final Resource rsrc : ordered) {
             // make sure the resource's target directory exists
             File parent = new File(rsrc.getLocal().getParent());
             if (!parent.exists() && !parent.mkdirs()) {
                 log.warning("Failed to create target directory for resource '" + rsrc + "'.");
             }
 
-            exec.execute(new Runnable() {
+            final ChunkTree.Repair repair = _repairs.get(rsrc);
+            if (repair != null) {
+                _exec.execute(new Task(rsrc, new Runnable() {
+                    @Override public void run () {
+                        try {
+                            if (_state != State.ABORTED) {
+                                acquireTransfer();
+                                try {
+                                    repair(rsrc, repair);
+                                } finally {
+                                    releaseTransfer();
+                                }
+                                completed(rsrc);
+                            }
+                        } catch (IOException ioe) {
+                            _state = State.FAILED;
+                            downloadFailed(rsrc, ioe);
+                        } catch (InterruptedException ie) {
+                            _state = State.FAILED;
+                            downloadFailed(null, ie);
+                        }
+                    }
+                }));
+                continue;
+            }
+
+            // large resources are split into byte ranges which are downloaded in parallel
+            Long size = _sizes.get(rsrc);
+            if (_segmentThreshold > 0 && _maxConcurrent > 1 && size != null &&
+                size > _segmentThreshold) {
+                downloadSegmented(_exec, rsrc, size, _maxConcurrent);
+                continue;
+            }
+
+            _exec.execute(new Task(rsrc, new Runnable() {
                 @Override public void run () {
                     try {
                         if (_state != State.ABORTED) {
-                            download(rsrc);
+                            // resources enqueued without a known size have it checked here
+                            if (!_sizes.containsKey(rsrc)) {
+                                _sizes.put(rsrc, Math.max(checkSize(rsrc), 0L));
+                            }
+                            acquireTransfer();
+                            try {
+                                downloadFromMirrors(rsrc);
+                            } finally {
+                                releaseTransfer();
+                            }
+                            completed(rsrc);
                         }
                     } catch (IOException ioe) {
                         _state = State.FAILED;
                         downloadFailed(rsrc, ioe);
+                    } catch (InterruptedException ie) {
+                        _state = State.FAILED;
+                        downloadFailed(null, ie);
                     }
                 }
-            });
+            }));
         }
-        exec.shutdown();
+    }
 
-        // wait for the downloads to complete
-        try {
-            exec.awaitTermination(10, TimeUnit.DAYS);
+    /**
+     * Configures whether partial downloads are resumed. When enabled, the validators of each
+     * response ({@code ETag} and/or {@code Last-Modified}) are recorded next to the resource's
+     * {@code _new} file, and if the download fails part way through, the next attempt requests
+     * only the missing bytes via a conditional {@code Range} request. If the server ignores the
+     * range or the resource has changed, the resource is downloaded in full.
+     */
+    public void setResume (boolean resume) {
+        _resume = resume;
+    }
 
-            // report download completion if we did not already do so via our final resource
-            if (_state == State.DOWNLOADING) {
-                downloadProgress(100, 0);
-            }
+    /**
+     * Configures segmented downloading. Resources larger than {@code threshold} bytes are split
+     * into as many byte ranges as there are concurrent downloads, and those ranges are downloaded
+     * in parallel directly into place in the resource's {@code _new} file. A threshold of zero
+     * (the default) disables segmented downloading.
+     */
+    public void setSegmentThreshold (long threshold) {
+        _segmentThreshold = threshold;
+    }
 
-        } catch (InterruptedException ie) {
-            exec.shutdownNow();
-            downloadFailed(null, ie);
+    /**
+     * Enables adaptive download concurrency. Rather than always running the maximum number of
+     * concurrent downloads, the number of active downloads is adjusted between {@code
+     * minConcurrent} and the maximum based on the aggregate throughput observed while
+     * downloading. See {@link ConcurrencyController}. Zero (the default) disables adaptation.
+     */
+    public void setAdaptiveConcurrency (int minConcurrent) {
+        _minConcurrent = minConcurrent;
+    }
+
+    /**
+     * Limits the rate at which resources are downloaded. See {@link RateLimiter}.
+     *
+     * @param maxRate the maximum aggregate download rate in bytes per second, or {@code 0} for no
+     * absolute limit.
+     * @param background if true, downloads yield bandwidth to other traffic on the network.
+     */
+    public void setRateLimit (long maxRate, boolean background) {
+        _limiter = (maxRate > 0 || background) ? new RateLimiter(maxRate, background) : null;
+        if (_limiter != null) {
+            log.info("Limiting download rate", "limiter", _limiter);
         }
+    }
 
-        return _state != State.ABORTED;
+    /**
+     * Configures the order in which resources are downloaded. By default, resources are ordered
+     * by a {@link PriorityDownloadOrder} which knows no code resources (i.e. preloads first, and
+     * then largest first).
+     */
+    public void setOrder (DownloadOrder order) {
+        _order = order;
+    }
+
+    /**
+     * Configures the mirrors from which resources are downloaded. Each download (or download
+     * segment) is made from the mirror expected to complete it soonest, and if it fails (or
+     * stalls for longer than the mirrors' stall timeout), it is retried from another mirror.
+     * Resources are downloaded only from their own URL if no mirrors are configured.
+     */
+    public void setMirrors (Mirrors mirrors) {
+        _mirrors = mirrors;
+    }
+
+    /**
+     * Determines the size of each of the supplied resources, noting them in {@link #_sizes}. Sizes
+     * that are already known (see {@link #expectedSize}) are used as is, the rest are obtained
+     * via {@link #checkSize}, which is called in parallel on the supplied executor.
+     */
+    protected void resolveSizes (Collection<Resource> resources, ExecutorService exec)
+        throws InterruptedException
+    {
+        List<Resource> unknown = new ArrayList<>();
+        List<Callable<Long>> checks = new ArrayList<>();
+        for (final Resource rsrc : resources) {
+            long size = expectedSize(rsrc);
+            if (size >= 0) {
+                _sizes.put(rsrc, size);
+                continue;
+            }
+            unknown.add(rsrc);
+            checks.add(new Callable<Long>() {
+                public Long call () {
+                    try {
+                        return Math.max(checkSize(rsrc), 0L);
+                    } catch (IOException ioe) {
+                        downloadFailed(rsrc, ioe);
+                        return null;
+                    }
+                }
+            });
+        }
+        if (checks.isEmpty()) {
+            return;
+        }
+
+        log.info("Checking sizes of " + checks.size() + " resources",
+                 "known", resources.size() - checks.size());
+        List<Future<Long>> results = exec.invokeAll(checks);
+        for (int ii = 0, ll = results.size(); ii < ll; ii++) {
+            try {
+                Long size = results.get(ii).get();
+                if (size != null) {
+                    _sizes.put(unknown.get(ii), size);
+                }
+            } catch (ExecutionException ee) {
+                downloadFailed(unknown.get(ii), ee);
+            }
+        }
     }
 
     /**
@@ -112,6 +386,14 @@ public class Downloader
         _state = State.ABORTED;
     }
 
+    /**
+     * Returns the byte ranges which, if downloaded into a copy of the resource's existing local
+     * file, will repair it, or null if the resource must be downloaded in full (the default).
+     */
+    protected ChunkTree.Repair repairFor (Resource rsrc) {
+        return null;
+    }
+
     /**
      * Called before the downloader begins the series of HTTP head requests to determine the
      * size of the files it needs to download.
@@ -140,16 +422,49 @@ public class Downloader
      */
     protected void downloadFailed (Resource rsrc, Exception cause) {}
 
+    /**
+     * Called when a resource has been downloaded (or repaired) in full into its {@code _new}
+     * file. This is called on the download thread, so implementations that do substantial work
+     * should hand it off to another thread rather than hold up the downloads that remain.
+     */
+    protected void downloadCompleted (Resource rsrc) {}
+
     /**
      * Called when a to-be-downloaded resource returns a 404 not found.
      */
     protected void resourceMissing (Resource rsrc) {}
 
+    /**
+     * Returns the size of {@code rsrc} if it is known in advance (for example from the digest
+     * file), or {@code -1} if it must be obtained from the server via {@link #checkSize}.
+     */
+    protected long expectedSize (Resource rsrc) {
+        return -1L;
+    }
+
     /**
      * Performs the protocol-specific portion of checking download size.
      */
-    protected long checkSize (Resource rsrc) throws IOException {
-        URLConnection conn = _conn.open(rsrc.getRemote(), 0, 0);
+    protected long checkSize (final Resource rsrc) throws IOException {
+        if (_mirrors == null) {
+            return checkSize(rsrc, rsrc.getRemote());
+        }
+        final long[] size = new long[1];
+        fromMirrors(rsrc.getRemote(), 0L, new MirrorTransfer() {
+            public long transfer (URL url) throws IOException {
+                size[0] = checkSize(rsrc, url);
+                return 0L;
+            }
+        });
+        return size[0];
+    }
+
+    /**
+     * Checks the size of {@code rsrc} via {@code url}, which is either its remote URL or the
+     * corresponding URL on one of our mirrors.
+     */
+    protected long checkSize (Resource rsrc, URL url) throws IOException {
+        URLConnection conn = _conn.open(url, 0, 0);
         try {
             // if we're accessing our data via HTTP, we only need a HEAD request
             if (conn instanceof HttpURLConnection) {
@@ -161,8 +476,9 @@ public class Downloader
             return code == HttpURLConnection.HTTP_OK ? conn.getContentLength() : 0;
 
         } finally {
-            // let it be known that we're done with this connection
-            conn.getInputStream().close();
+            // let it be known that we're done with this connection; this returns it to the
+            // keep-alive pool so that it can be reused when we download this (or another) resource
+            _conn.release(conn);
         }
     }
 
@@ -197,6 +513,12 @@ public class Downloader
             // total up our current and total bytes
             long downloaded = sum(_downloaded.values());
             long totalSize = sum(_sizes.values());
+            if (_concurrency != null) {
+                _concurrency.sample(downloaded, now);
+            }
+            if (_limiter != null) {
+                _limiter.sample(downloaded, now);
+            }
 
             // compute our bytes per second
             long secs = (now - _start) / 1000L;
@@ -210,7 +532,8 @@ public class Downloader
 
             // if we're complete or failed, when we don't want to report again
             if (_state == State.DOWNLOADING) {
-                if (pctdone == 100) _state = State.COMPLETE;
+                // while resources may still be enqueued, we're not done even if we've caught up
+                if (pctdone == 100 && !_accepting) _state = State.COMPLETE;
                 downloadProgress(pctdone, remaining);
             }
         }
@@ -236,30 +559,135 @@ public class Downloader
      * to aborted and abort any in-progress download if so.
      */
     protected void download (Resource rsrc) throws IOException {
-        URLConnection conn = _conn.open(rsrc.getRemote(), 0, 0);
+        download(rsrc, rsrc.getRemote());
+    }
+
+    /**
+     * Downloads {@code rsrc} from each of our mirrors in turn until one succeeds (or all fail).
+     */
+    protected void downloadFromMirrors (final Resource rsrc) throws IOException {
+        if (_mirrors == null) {
+            download(rsrc);
+            return;
+        }
+        Long size = _sizes.get(rsrc);
+        fromMirrors(rsrc.getRemote(), (size == null) ? 0L : size, new MirrorTransfer() {
+            public long transfer (URL url) throws IOException {
+                download(rsrc, url);
+                return rsrc.getLocalNew().length();
+            }
+        });
+    }
+
+    /**
+     * Performs {@code xfer} of {@code size} bytes of the resource at {@code remote} from the
+     * mirror expected to complete it soonest, falling back to the other mirrors in turn if it
+     * fails. The outcome of each attempt is noted so that future transfers favor healthy, fast
+     * mirrors.
+     */
+    protected void fromMirrors (URL remote, long size, MirrorTransfer xfer) throws IOException {
+        Set<Mirrors.Mirror> tried = new HashSet<>();
+        IOException failure = null;
+        Mirrors.Mirror mirror;
+        while (_state != State.ABORTED && (mirror = _mirrors.select(size, tried)) != null) {
+            long start = System.currentTimeMillis();
+            try {
+                long bytes = xfer.transfer(_mirrors.resolve(remote, mirror));
+                _mirrors.completed(mirror, size, bytes, System.currentTimeMillis() - start);
+                return;
+            } catch (IOException ioe) {
+                _mirrors.failed(mirror, size);
+                tried.add(mirror);
+                failure = ioe;
+                log.warning("Transfer from mirror failed", "url", remote,
+                            "mirror", mirror.appbase, "error", ioe);
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Downloads {@code rsrc} from {@code url}, which is either its remote URL or the
+     * corresponding URL on one of our mirrors.
+     */
+    protected void download (Resource rsrc, URL url) throws IOException {
+        File localNew = rsrc.getLocalNew(), infoFile = getPartialInfoFile(rsrc);
+
+        // if we're resuming downloads and a previous attempt left behind part of this resource
+        // along with the validators of the response that produced it, request only the remainder
+        PartialInfo info = _resume ? PartialInfo.read(infoFile) : null;
+        long offset = (info == null) ? 0L : info.resumeOffset(localNew);
+
+        URLConnection conn = _conn.open(url, 0, stallTimeout());
+        if (offset > 0) {
+            // If-Range makes the range conditional: if the resource changed on the server since
+            // our partial download, we'll get a 200 and the whole new resource instead
+            conn.setRequestProperty("Range", "bytes=" + offset + "-");
+            conn.setRequestProperty("If-Range", info.validator());
+        }
+
         // make sure we got a satisfactory response code
         int code = _conn.checkConnectStatus(conn);
-        if (code == HttpURLConnection.HTTP_NOT_FOUND) {
+        if (offset > 0 && code != HttpURLConnection.HTTP_OK) {
+            if (code != HttpURLConnection.HTTP_PARTIAL || getRangeStart(conn) != offset) {
+                // the server didn't honor our range in a way we understand, so toss our partial
+                // download and start over from scratch
+                log.info("Unable to resume download, refetching in full",
+                         "url", url, "code", code, "offset", offset);
+                _conn.release(conn);
+                clearPartial(rsrc);
+                download(rsrc, url);
+                return;
+            }
+        } else if (code == HttpURLConnection.HTTP_NOT_FOUND) {
             resourceMissing(rsrc);
         } else if (code != HttpURLConnection.HTTP_OK) {
+            _conn.release(conn);
             throw new IOException(
-                "Resource returned HTTP error " + rsrc.getRemote() + " [code=" + code + "]");
+                "Resource returned HTTP error " + url + " [code=" + code + "]");
+        }
+
+        // if we didn't get a partial response, the server ignored (or invalidated) our range
+        if (code != HttpURLConnection.HTTP_PARTIAL) {
+            offset = 0L;
+            // note the validators for this response so that we can resume it if it fails
+            if (_resume) {
+                PartialInfo ninfo = PartialInfo.fromResponse(conn);
+                if (ninfo != null) {
+                    ninfo.write(infoFile);
+                } else if (infoFile.exists()) {
+                    FileUtil.deleteHarder(infoFile);
+                }
+            }
         }
 
         // TODO: make FileChannel download impl (below) robust and allow apps to opt-into it via a
         // system property
         if (true) {
             // download the resource from the specified URL
-            long actualSize = conn.getContentLength();
-            log.info("Downloading resource", "url", rsrc.getRemote(), "size", actualSize);
-            long currentSize = 0L;
+            long length = conn.getContentLengthLong();
+            long actualSize = (length < 0) ? length : offset + length;
+            if (offset > 0) {
+                log.info("Resuming resource download", "url", url,
+                         "offset", offset, "size", actualSize);
+            } else {
+                log.info("Downloading resource", "url", url, "size", actualSize);
+            }
+            long currentSize = offset;
             byte[] buffer = new byte[4*4096];
-            try (InputStream in = conn.getInputStream();
-                 FileOutputStream out = new FileOutputStream(rsrc.getLocalNew())) {
 
-                // TODO: look to see if we have a download info file
-                // containing info on potentially partially downloaded data;
-                // if so, use a "Range: bytes=HAVE-" header.
+            // if we're downloading a plain file from the start, we can compute its digest as we
+            // go, which saves the verification pass from reading it all back in again; archives
+            // are digested based on their entries, so those will still have to be read back in
+            MessageDigest md = null;
+            if (offset == 0 && !Resource.isJar(localNew) && !Resource.isZip(localNew)) {
+                md = Digest.getMessageDigest(Digest.VERSION);
+            }
+
+            try (InputStream in = conn.getInputStream();
+                 FileOutputStream out = new FileOutputStream(localNew, offset > 0)) {
 
                 // read in the file data
                 int read;
@@ -268,17 +696,36 @@ public class Downloader
                     if (_state == State.ABORTED) {
                         break;
                     }
+                    throttle(read);
                     // write it out to our local copy
                     out.write(buffer, 0, read);
+                    if (md != null) {
+                        md.update(buffer, 0, read);
+                    }
                     // note that we've downloaded some data
                     currentSize += read;
                     reportProgress(rsrc, currentSize, actualSize);
                 }
             }
 
+            // if the connection was cut short, we'll want to try again (perhaps elsewhere)
+            if (_state != State.ABORTED && actualSize >= 0 && currentSize < actualSize) {
+                throw new IOException("Incomplete download of " + url + " [size=" + actualSize +
+                                      ", got=" + currentSize + "]");
+            }
+
+            if (md != null && _state != State.ABORTED) {
+                rsrc.recordDigest(md.getAlgorithm(), StringUtil.hexlate(md.digest()));
+            }
+
+            // if we got the whole thing, we no longer need to be able to resume it
+            if (_state != State.ABORTED && (actualSize < 0 || currentSize >= actualSize) &&
+                infoFile.exists()) {
+                FileUtil.deleteHarder(infoFile);
+            }
+
         } else {
-            log.info("Downloading resource", "url", rsrc.getRemote(), "size", "unknown");
-            File localNew = rsrc.getLocalNew();
+            log.info("Downloading resource", "url", url, "size", "unknown");
             try (ReadableByteChannel rbc = Channels.newChannel(conn.getInputStream());
                  FileOutputStream fos = new FileOutputStream(localNew)) {
                 // TODO: more work is needed here, transferFrom can fail to transfer the entire
@@ -290,10 +737,504 @@ public class Downloader
         }
     }
 
+    /**
+     * Queues up the parallel download of {@code rsrc} in {@code count} segments. The resource's
+     * {@code _new} file is preallocated and each segment writes its byte range directly into
+     * place. If the server turns out not to support range requests, the resource is downloaded
+     * in full once all segments have completed.
+     */
+    protected void downloadSegmented (ExecutorService exec, final Resource rsrc, long size,
+                                      int count)
+    {
+        long segsize = (size + count - 1) / count;
+        final Segments segs;
+        try {
+            // any partial download left behind by an earlier attempt is of no use to us
+            clearPartial(rsrc);
+            segs = new Segments(rsrc, size, (int)((size + segsize - 1) / segsize));
+        } catch (IOException ioe) {
+            _state = State.FAILED;
+            downloadFailed(rsrc, ioe);
+            return;
+        }
+
+        log.info("Downloading resource in segments", "url", rsrc.getRemote(), "size", size,
+                 "segments", segs.count);
+        for (long start = 0; start < size; start += segsize) {
+            final long fstart = start, fend = Math.min(start + segsize, size) - 1;
+            exec.execute(new Task(rsrc, new Runnable() {
+                @Override public void run () {
+                    try {
+                        if (_state != State.ABORTED && !segs.failed) {
+                            acquireTransfer();
+                            try {
+                                downloadSegmentFromMirrors(segs, fstart, fend);
+                            } finally {
+                                releaseTransfer();
+                            }
+                        }
+                    } catch (IOException ioe) {
+                        segs.failed = true;
+                        _state = State.FAILED;
+                        downloadFailed(rsrc, ioe);
+                    } catch (InterruptedException ie) {
+                        segs.failed = true;
+                        _state = State.FAILED;
+                        downloadFailed(null, ie);
+                    }
+                    segmentCompleted(segs);
+                }
+            }));
+        }
+    }
+
+    /**
+     * Repairs {@code rsrc} by copying its existing local file to its {@code _new} file and then
+     * downloading the corrupt byte ranges identified by {@code repair} into place. If the server
+     * does not support range requests, the resource is downloaded in full instead.
+     */
+    protected void repair (Resource rsrc, ChunkTree.Repair repair) throws IOException
+    {
+        log.info("Repairing resource", "url", rsrc.getRemote(), "ranges", repair.ranges.size(),
+                 "bytes", repair.bytes(), "size", repair.length);
+        clearPartial(rsrc);
+        FileUtil.copy(rsrc.getLocal(), rsrc.getLocalNew());
+        Segments segs = new Segments(rsrc, repair.length, repair.bytes(), repair.ranges.size());
+        try {
+            for (long[] range : repair.ranges) {
+                if (_state == State.ABORTED || segs.rangesIgnored) {
+                    break;
+                }
+                downloadSegmentFromMirrors(segs, range[0], range[1]);
+            }
+        } finally {
+            segs.channel.close();
+        }
+        if (segs.rangesIgnored && _state != State.ABORTED) {
+            log.info("Server does not support range requests, downloading in full",
+                     "url", rsrc.getRemote());
+            clearPartial(rsrc);
+            downloadFromMirrors(rsrc);
+        }
+    }
+
+    /**
+     * Downloads a segment of a segmented resource from each of our mirrors in turn until one
+     * succeeds (or all fail). See {@link #downloadSegment}.
+     */
+    protected void downloadSegmentFromMirrors (final Segments segs, final long start,
+                                               final long end) throws IOException
+    {
+        if (_mirrors == null) {
+            downloadSegment(segs, start, end, segs.rsrc.getRemote());
+            return;
+        }
+        fromMirrors(segs.rsrc.getRemote(), end - start + 1, new MirrorTransfer() {
+            public long transfer (URL url) throws IOException {
+                downloadSegment(segs, start, end, url);
+                return segs.rangesIgnored ? 0L : end - start + 1;
+            }
+        });
+    }
+
+    /**
+     * Downloads bytes {@code start} through {@code end} (inclusive) of a segmented resource from
+     * {@code url} into the corresponding position in its {@code _new} file.
+     */
+    protected void downloadSegment (Segments segs, long start, long end, URL url)
+        throws IOException
+    {
+        URLConnection conn = _conn.open(url, 0, stallTimeout());
+        conn.setRequestProperty("Range", "bytes=" + start + "-" + end);
+        int code = _conn.checkConnectStatus(conn);
+        if (code == HttpURLConnection.HTTP_OK) {
+            // the server ignored our range (or this isn't HTTP); we'll fetch it in full later
+            segs.rangesIgnored = true;
+            _conn.release(conn);
+            return;
+        } else if (code == HttpURLConnection.HTTP_NOT_FOUND) {
+            resourceMissing(segs.rsrc);
+        }
+        if (code != HttpURLConnection.HTTP_PARTIAL || getRangeStart(conn) != start) {
+            _conn.release(conn);
+            throw new IOException(
+                "Resource returned HTTP error " + url + " [code=" + code + ", range=" + start +
+                "-" + end + "]");
+        }
+
+        long position = start;
+        byte[] buffer = new byte[4*4096];
+        try (InputStream in = conn.getInputStream()) {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                // abort the download if the downloader is aborted or another segment failed
+                if (_state == State.ABORTED || segs.failed) {
+                    return;
+                }
+                throttle(read);
+                // write it into place in our local copy
+                ByteBuffer bbuf = ByteBuffer.wrap(buffer, 0, read);
+                while (bbuf.hasRemaining()) {
+                    position += segs.channel.write(bbuf, position);
+                }
+                // note that we've downloaded some data
+                reportProgress(segs.rsrc, segs.downloaded.addAndGet(read), segs.size);
+            }
+            if (position != end + 1) {
+                throw new IOException("Incomplete download of " + url + " [range=" + start +
+                                      "-" + end + ", got=" + (position - start) + "]");
+            }
+
+        } catch (IOException ioe) {
+            // this segment may be retried (from another mirror), so take back its progress
+            segs.downloaded.addAndGet(start - position);
+            throw ioe;
+        }
+    }
+
+    /**
+     * Called when each segment of a segmented download has finished (successfully or not). When
+     * the last segment finishes, this closes the resource's file and, if the server did not
+     * honor our range requests, falls back to downloading the resource in full.
+     */
+    protected void segmentCompleted (Segments segs)
+    {
+        if (segs.pending.decrementAndGet() > 0) {
+            return;
+        }
+        try {
+            segs.channel.close();
+        } catch (IOException ioe) {
+            log.warning("Failed to close segmented download", "rsrc", segs.rsrc, "error", ioe);
+        }
+        if (segs.failed) {
+            return;
+        }
+        if (segs.rangesIgnored && _state != State.ABORTED) {
+            log.info("Server does not support range requests, downloading in full",
+                     "url", segs.rsrc.getRemote());
+            try {
+                downloadFromMirrors(segs.rsrc);
+            } catch (IOException ioe) {
+                _state = State.FAILED;
+                downloadFailed(segs.rsrc, ioe);
+                return;
+            }
+        }
+        completed(segs.rsrc);
+    }
+
+    /**
+     * Reports the completion of the download of {@code rsrc} via {@link #downloadCompleted},
+     * unless we've been aborted, in which case it may be incomplete.
+     */
+    protected void completed (Resource rsrc)
+    {
+        if (_state != State.ABORTED) {
+            downloadCompleted(rsrc);
+        }
+    }
+
+    /**
+     * Waits until our concurrency controller (if any) allows another transfer to start.
+     */
+    protected void acquireTransfer () throws InterruptedException
+    {
+        if (_concurrency != null) {
+            _concurrency.acquire();
+        }
+    }
+
+    /**
+     * Notes that a transfer started via {@link #acquireTransfer} has finished.
+     */
+    protected void releaseTransfer ()
+    {
+        if (_concurrency != null) {
+            _concurrency.release();
+        }
+    }
+
+    /**
+     * Blocks as needed to keep our download rate within the limits of our rate limiter, if any,
+     * having just received {@code bytes} bytes.
+     */
+    protected void throttle (int bytes) throws IOException
+    {
+        if (_limiter != null) {
+            try {
+                _limiter.acquire(bytes);
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while throttling download");
+            }
+        }
+    }
+
+    /**
+     * Returns the read timeout (in seconds) to use for downloads, or {@code 0} to use the
+     * default. When we have mirrors to fall back on, stalled transfers are abandoned sooner.
+     */
+    protected int stallTimeout ()
+    {
+        return (_mirrors == null) ? 0 : _mirrors.stallTimeout();
+    }
+
+    /**
+     * Returns the file in which we record the validators for a partial download of {@code rsrc}.
+     * It lives next to {@link Resource#getLocalNew} and is deleted once the download completes.
+     */
+    protected static File getPartialInfoFile (Resource rsrc)
+    {
+        return new File(rsrc.getLocalNew().getPath() + PARTIAL_INFO_SUFFIX);
+    }
+
+    /**
+     * Deletes any partially downloaded data for {@code rsrc} along with its validators.
+     */
+    protected static void clearPartial (Resource rsrc)
+    {
+        File infoFile = getPartialInfoFile(rsrc), localNew = rsrc.getLocalNew();
+        if (infoFile.exists() && !FileUtil.deleteHarder(infoFile)) {
+            log.warning("Failed to delete partial download info", "file", infoFile);
+        }
+        if (localNew.exists() && !FileUtil.deleteHarder(localNew)) {
+            log.warning("Failed to delete partial download", "file", localNew);
+        }
+    }
+
+    /**
+     * Returns the first byte offset of the range in a {@code 206} response's {@code
+     * Content-Range} header, or {@code -1} if the header is missing or malformed.
+     */
+    protected static long getRangeStart (URLConnection conn)
+    {
+        // Content-Range: bytes START-END/TOTAL
+        String range = conn.getHeaderField("Content-Range");
+        if (range == null || !range.startsWith("bytes ")) return -1L;
+        int didx = range.indexOf('-');
+        if (didx == -1) return -1L;
+        try {
+            return Long.parseLong(range.substring(6, didx).trim());
+        } catch (NumberFormatException nfe) {
+            return -1L;
+        }
+    }
+
+    /** A transfer that may be made from any of our mirrors. See {@link #fromMirrors}. */
+    protected interface MirrorTransfer
+    {
+        /** Performs the transfer from {@code url}, returning the number of bytes received. */
+        long transfer (URL url) throws IOException;
+    }
+
+    /**
+     * Tracks the state of a resource that is being downloaded in segments.
+     */
+    protected static class Segments
+    {
+        /** The resource being downloaded. */
+        public final Resource rsrc;
+
+        /** The number of bytes to be downloaded across all segments. */
+        public final long size;
+
+        /** The number of segments into which the resource was split. */
+        public final int count;
+
+        /** The channel into which all segments write. */
+        public final FileChannel channel;
+
+        /** The number of segments that have not yet completed. */
+        public final AtomicInteger pending;
+
+        /** The total number of bytes downloaded across all segments. */
+        public final AtomicLong downloaded = new AtomicLong();
+
+        /** Set if any segment fails; the remaining segments then give up. */
+        public volatile boolean failed;
+
+        /** Set if the server responds to a range request with the entire resource. */
+        public volatile boolean rangesIgnored;
+
+        /**
+         * Creates the segment tracker and preallocates the resource's {@code _new} file.
+         */
+        public Segments (Resource rsrc, long size, int count) throws IOException
+        {
+            this(rsrc, size, size, count);
+        }
+
+        /**
+         * Creates a tracker for segments totalling {@code size} bytes of a resource of length
+         * {@code length}, and sizes the resource's {@code _new} file accordingly (preserving any
+         * existing contents).
+         */
+        public Segments (Resource rsrc, long length, long size, int count) throws IOException
+        {
+            this.rsrc = rsrc;
+            this.size = size;
+            this.count = count;
+            this.pending = new AtomicInteger(count);
+            RandomAccessFile raf = new RandomAccessFile(rsrc.getLocalNew(), "rw");
+            try {
+                raf.setLength(length);
+            } catch (IOException ioe) {
+                raf.close();
+                throw ioe;
+            }
+            this.channel = raf.getChannel();
+        }
+    }
+
+    /**
+     * Work queued for our download threads. Downloads are taken from the queue in the order of
+     * their resources (per {@link #_order}), and then in the order they were queued (which keeps
+     * the segments of a resource in order). Other work (size checks, mirror probes) is short and
+     * precedes all downloads.
+     */
+    protected class Task implements Runnable, Comparable<Task>
+    {
+        /** The resource being downloaded, or null if this is not a download. */
+        public final Resource rsrc;
+
+        public Task (Resource rsrc, Runnable work) {
+            this.rsrc = rsrc;
+            _work = work;
+        }
+
+        @Override public void run () {
+            _work.run();
+        }
+
+        @Override public int compareTo (Task other) {
+            int cmp;
+            if (rsrc == null || other.rsrc == null) {
+                cmp = Boolean.compare(rsrc != null, other.rsrc != null);
+            } else {
+                cmp = _taskOrder.compare(rsrc, other.rsrc);
+            }
+            return (cmp == 0) ? Long.compare(_seq, other._seq) : cmp;
+        }
+
+        protected final Runnable _work;
+        protected final long _seq = _taskSeq.getAndIncrement();
+    }
+
+    /**
+     * A fixed size thread pool whose threads take their work from a priority queue of {@link
+     * Task}s, so that downloads queued later but needed sooner start first.
+     */
+    protected class DownloadExecutor extends ThreadPoolExecutor
+    {
+        public DownloadExecutor (int threads) {
+            super(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                  new PriorityBlockingQueue<Runnable>());
+        }
+
+        @Override public void execute (Runnable command) {
+            super.execute((command instanceof Task) ? command : new Task(null, command));
+        }
+    }
+
+    /**
+     * The validators for a partially downloaded resource. These are persisted next to the
+     * partial {@code _new} file so that a later attempt (in this session or the next) can ask the
+     * server for the rest of the <em>same</em> resource.
+     */
+    protected static class PartialInfo
+    {
+        /** The (strong) entity tag of the response, or null. */
+        public String etag;
+
+        /** The {@code Last-Modified} header of the response, or null. */
+        public String lastModified;
+
+        /** The total length of the resource, or {@code -1} if it was not reported. */
+        public long length = -1L;
+
+        /**
+         * Extracts resume info from the headers of a full response, returning null if the
+         * response provides no validator that we can use with {@code If-Range}.
+         */
+        public static PartialInfo fromResponse (URLConnection conn)
+        {
+            PartialInfo info = new PartialInfo();
+            String etag = conn.getHeaderField("ETag");
+            // weak validators can't be used with If-Range
+            if (etag != null && !etag.startsWith("W/")) {
+                info.etag = etag;
+            }
+            info.lastModified = conn.getHeaderField("Last-Modified");
+            info.length = conn.getContentLengthLong();
+            return (info.validator() == null) ? null : info;
+        }
+
+        /**
+         * Reads resume info from {@code file}, returning null if it does not exist or cannot be
+         * parsed.
+         */
+        public static PartialInfo read (File file)
+        {
+            if (!file.exists()) return null;
+            try {
+                Config.ParseOpts opts = Config.createOpts(false);
+                // entity tags may legally contain #
+                opts.strictComments = true;
+                PartialInfo info = new PartialInfo();
+                for (String[] pair : Config.parsePairs(file, opts)) {
+                    switch (pair[0]) {
+                    case "etag": info.etag = pair[1]; break;
+                    case "last_modified": info.lastModified = pair[1]; break;
+                    case "length": info.length = Long.parseLong(pair[1]); break;
+                    }
+                }
+                return (info.validator() == null) ? null : info;
+            } catch (Exception e) {
+                log.warning("Failed to read partial download info", "file", file, "error", e);
+                return null;
+            }
+        }
+
+        /**
+         * Writes this info to {@code file}.
+         */
+        public void write (File file) throws IOException
+        {
+            try (FileOutputStream fos = new FileOutputStream(file);
+                 OutputStreamWriter osw = new OutputStreamWriter(fos, UTF_8);
+                 PrintWriter out = new PrintWriter(osw)) {
+                if (etag != null) out.println("etag = " + etag);
+                if (lastModified != null) out.println("last_modified = " + lastModified);
+                out.println("length = " + length);
+            }
+        }
+
+        /**
+         * Returns the value to send in an {@code If-Range} header, preferring the entity tag.
+         */
+        public String validator ()
+        {
+            return (etag != null) ? etag : lastModified;
+        }
+
+        /**
+         * Returns the offset from which a download into {@code partial} can be resumed, or
+         * {@code 0} if it must start over.
+         */
+        public long resumeOffset (File partial)
+        {
+            long have = partial.length();
+            // if we somehow have the whole thing (or more) then something went wrong, refetch it
+            return (length > 0 && have >= length) ? 0L : have;
+        }
+    }
+
     protected final Connector _conn;
 
-    /** The reported sizes of our resources. */
-    protected final Map<Resource, Long> _sizes = new HashMap<>();
+    /** The reported sizes of our resources. These are added to by the thread enqueuing
+      * resources while the download threads are reading them. */
+    protected final Map<Resource, Long> _sizes = new ConcurrentHashMap<>();
 
     /** The bytes downloaded for each resource. */
     protected final Map<Resource, Long> _downloaded = new HashMap<>();
@@ -310,7 +1251,52 @@ public class Downloader
     /** A wee state machine to ensure we call our callbacks sanely. */
     protected volatile State _state = State.DOWNLOADING;
 
+    /** Whether to resume partial downloads left behind by earlier failed attempts. */
+    protected boolean _resume;
+
+    /** Resources larger than this many bytes are downloaded in segments, if positive. */
+    protected long _segmentThreshold;
+
+    /** Determines the order in which we start our downloads. */
+    protected DownloadOrder _order = new PriorityDownloadOrder(Collections.<Resource>emptySet());
+
+    /** The resources which we're repairing rather than downloading in full. */
+    protected final Map<Resource, ChunkTree.Repair> _repairs = new ConcurrentHashMap<>();
+
+    /** The threads on which we download. */
+    protected ExecutorService _exec;
+
+    /** The order in which our queued downloads are started (see {@link Task}). */
+    protected Comparator<Resource> _taskOrder;
+
+    /** Numbers our tasks in the order in which they were queued. */
+    protected final AtomicLong _taskSeq = new AtomicLong();
+
+    /** The maximum number of concurrent downloads. */
+    protected int _maxConcurrent;
+
+    /** Whether resources may still be added to this download. */
+    protected volatile boolean _accepting;
+
+    /** Whether we've probed our mirrors. */
+    protected boolean _probed;
+
+    /** The mirrors from which we download, or null. */
+    protected Mirrors _mirrors;
+
+    /** The fewest concurrent downloads to which we'll adapt, or 0 if we're not adapting. */
+    protected int _minConcurrent;
+
+    /** Controls our download concurrency, if we're adapting it. */
+    protected ConcurrencyController _concurrency;
+
+    /** Limits our download rate, or null. */
+    protected RateLimiter _limiter;
+
     /** The delay in milliseconds between notifying progress observers of file download
       * progress. */
     protected static final long UPDATE_DELAY = 500L;
+
+    /** Appended to the {@code _new} file path to obtain the partial download info path. */
+    protected static final String PARTIAL_INFO_SUFFIX = ".part";
 }
@@ -0,0 +1,400 @@
+//
+// Getdown - application installer, patcher and launcher
+// Copyright (C) 2004-2018 Getdown authors
+// https://github.com/threerings/getdown/blob/master/LICENSE
+
+package com.threerings.getdown.net;
+
+import java.io.FileNotFoundException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.Authenticator;
+import java.net.HttpURLConnection;
+import java.net.Proxy;
+import java.net.ProxySelector;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.TreeMap;
+
+import com.threerings.getdown.util.StreamUtil;
+
+import static com.threerings.getdown.Log.log;
+
+/**
+ * A transport that talks HTTP/2 (negotiated via ALPN for {@code https} URLs, falling back to
+ * HTTP/1.1 for servers that don't support it) using the {@code java.net.http} client that ships
+ * with Java 11 and newer. A single client is shared by all connections made via the same proxy, so
+ * concurrent downloads from the same host are multiplexed as streams over one connection rather
+ * than each needing a connection of their own.
+ *
+ * <p>Getdown itself targets older JVMs, so the client is accessed reflectively. Use {@link
+ * #create} to obtain an instance, which yields {@link Transport#DEFAULT} on JVMs that lack HTTP/2
+ * support.</p>
+ */
+public class Http2Transport implements Transport
+{
+    /**
+     * Returns whether the running JVM provides an HTTP/2 client.
+     */
+    public static boolean isSupported () {
+        return API != null;
+    }
+
+    /**
+     * Returns an HTTP/2 transport if the running JVM supports one, or {@link Transport#DEFAULT}
+     * otherwise.
+     */
+    public static Transport create () {
+        if (isSupported()) {
+            return new Http2Transport();
+        }
+        log.info("HTTP/2 is not supported by this JVM, using default transport.",
+                 "java.version", System.getProperty("java.version"));
+        return DEFAULT;
+    }
+
+    @Override
+    public URLConnection open (URL url, Proxy proxy) throws IOException {
+        // the HTTP/2 client only handles HTTP (and HTTP proxies), leave anything else to the JDK
+        String protocol = url.getProtocol();
+        if (!("http".equals(protocol) || "https".equals(protocol)) ||
+            (proxy != null && proxy.type() != Proxy.Type.HTTP)) {
+            return DEFAULT.open(url, proxy);
+        }
+        return new Http2Connection(url, proxy);
+    }
+
+    @Override public String toString () {
+        return "http2";
+    }
+
+    protected Http2Transport () {
+    }
+
+    /**
+     * Returns the shared client to use for connections made via {@code proxy}, creating it if
+     * necessary.
+     */
+    protected synchronized Object getClient (final Proxy proxy) throws IOException {
+        // a client captures the authenticator with which it was created, so if the proxy
+        // credentials are reconfigured we'll need a new one
+        Authenticator auth = (Authenticator)invoke(API.getDefaultAuthenticator, null);
+        List<Object> key = Arrays.<Object>asList(proxy, auth);
+        Object client = _clients.get(key);
+        if (client == null) {
+            Object builder = invoke(API.newClientBuilder, null);
+            invoke(API.clientVersion, builder, API.http2);
+            invoke(API.clientFollowRedirects, builder, API.redirectNormal);
+            // mimic HttpURLConnection, which uses the system proxy settings when not given a proxy
+            ProxySelector selector = (proxy == null) ? ProxySelector.getDefault() :
+                new ProxySelector() {
+                    @Override public List<Proxy> select (URI uri) {
+                        return Collections.singletonList(proxy);
+                    }
+                    @Override public void connectFailed (URI uri, SocketAddress sa,
+                                                         IOException ioe) {
+                        // nothing doing
+                    }
+                };
+            if (selector != null) {
+                invoke(API.clientProxy, builder, selector);
+            }
+            if (auth != null) {
+                invoke(API.clientAuthenticator, builder, auth);
+            }
+            _clients.put(key, client = invoke(API.clientBuild, builder));
+            log.info("Created HTTP/2 client", "proxy", proxy);
+        }
+        return client;
+    }
+
+    /**
+     * Adapts a request made via the HTTP/2 client to the {@link HttpURLConnection} API. The
+     * request is sent when the connection is connected (explicitly or by a request for response
+     * information), and the response body is streamed to the caller as it arrives.
+     */
+    protected class Http2Connection extends HttpURLConnection
+    {
+        public Http2Connection (URL url, Proxy proxy) {
+            super(url);
+            _proxy = proxy;
+        }
+
+        @Override public void connect () throws IOException {
+            if (connected) {
+                return;
+            }
+
+            URI uri;
+            try {
+                uri = url.toURI();
+            } catch (URISyntaxException use) {
+                throw new IOException("Invalid URL " + url, use);
+            }
+            Object builder = invoke(API.newRequestBuilder, null, uri);
+            invoke(API.requestMethod, builder, method, invoke(API.noBody, null));
+            for (Map.Entry<String, List<String>> entry : getRequestProperties().entrySet()) {
+                String name = entry.getKey();
+                if (name == null || RESTRICTED_HEADERS.contains(name.toLowerCase())) {
+                    continue;
+                }
+                for (String value : entry.getValue()) {
+                    invoke(API.requestHeader, builder, name, value);
+                }
+            }
+            // the client has no connect timeout per request, so we bound the time it may take to
+            // connect and receive the response headers
+            long timeout = (long)getConnectTimeout() + getReadTimeout();
+            if (timeout > 0) {
+                invoke(API.requestTimeout, builder, invoke(API.durationOfMillis, null, timeout));
+            }
+            Object request = invoke(API.requestBuild, builder);
+
+            Object rsp = invoke(API.clientSend, getClient(_proxy), request,
+                                invoke(API.ofInputStream, null));
+            _status = (Integer)invoke(API.responseStatus, rsp);
+            Object headers = invoke(API.responseHeaders, rsp);
+            @SuppressWarnings("unchecked") Map<String, List<String>> hmap =
+                (Map<String, List<String>>)invoke(API.headersMap, headers);
+            _headers.putAll(hmap);
+            InputStream body = (InputStream)invoke(API.responseBody, rsp);
+            _body = (getReadTimeout() > 0) ? new TimeoutInputStream(body, getReadTimeout()) : body;
+            connected = true;
+        }
+
+        @Override public int getResponseCode () throws IOException {
+            connect();
+            return _status;
+        }
+
+        @Override public String getHeaderField (String name) {
+            try {
+                connect();
+            } catch (IOException ioe) {
+                return null;
+            }
+            List<String> values = _headers.get(name);
+            return (values == null || values.isEmpty()) ? null : values.get(values.size()-1);
+        }
+
+        @Override public Map<String, List<String>> getHeaderFields () {
+            try {
+                connect();
+            } catch (IOException ioe) {
+                return Collections.emptyMap();
+            }
+            return Collections.unmodifiableMap(_headers);
+        }
+
+        @Override public InputStream getInputStream () throws IOException {
+            connect();
+            // report errors in the same way as HttpURLConnection
+            if (_status == HTTP_NOT_FOUND || _status == HTTP_GONE) {
+                throw new FileNotFoundException(url.toString());
+            } else if (_status >= HTTP_BAD_REQUEST) {
+                throw new IOException(
+                    "Server returned HTTP response code: " + _status + " for URL: " + url);
+            }
+            return _body;
+        }
+
+        @Override public InputStream getErrorStream () {
+            return (connected && _status >= HTTP_BAD_REQUEST) ? _body : null;
+        }
+
+        @Override public void disconnect () {
+            // closing the body cancels just this stream, the shared connection lives on
+            StreamUtil.close(_body);
+        }
+
+        @Override public boolean usingProxy () {
+            return _proxy != null;
+        }
+
+        protected final Proxy _proxy;
+        protected int _status;
+        protected InputStream _body;
+        protected final Map<String, List<String>> _headers =
+            new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+    }
+
+    /**
+     * Enforces a read timeout on a response body, which the HTTP/2 client does not support
+     * natively, by closing the body if a read blocks for too long. Each stream has a single
+     * watchdog task which periodically checks how long the current read (if any) has been
+     * blocked, so reads don't each schedule (and cancel) a task of their own.
+     */
+    protected static class TimeoutInputStream extends FilterInputStream
+    {
+        public TimeoutInputStream (InputStream in, int timeout) {
+            super(in);
+            _timeout = timeout;
+            // check four times per timeout, so a blocked read is closed after at most 1.25x that
+            long period = Math.max(1, timeout / 4);
+            TIMER.schedule(_watchdog, period, period);
+        }
+
+        @Override public int read () throws IOException {
+            byte[] buf = new byte[1];
+            int read = read(buf, 0, 1);
+            return (read <= 0) ? -1 : (buf[0] & 0xFF);
+        }
+
+        @Override public int read (byte[] buf, int off, int len) throws IOException {
+            _readStart = System.currentTimeMillis();
+            try {
+                int read = super.read(buf, off, len);
+                if (read < 0) {
+                    _watchdog.cancel();
+                }
+                return read;
+            } catch (IOException ioe) {
+                if (_timedOut) {
+                    throw new SocketTimeoutException("Read timed out");
+                }
+                throw ioe;
+            } finally {
+                _readStart = 0L;
+            }
+        }
+
+        @Override public void close () throws IOException {
+            _watchdog.cancel();
+            super.close();
+        }
+
+        protected final TimerTask _watchdog = new TimerTask() {
+            @Override public void run () {
+                long start = _readStart;
+                if (start != 0L && System.currentTimeMillis() - start >= _timeout) {
+                    _timedOut = true;
+                    cancel();
+                    StreamUtil.close(in);
+                }
+            }
+        };
+
+        protected final long _timeout;
+        /** When the read in progress started, or 0 if no read is in progress. */
+        protected volatile long _readStart;
+        protected volatile boolean _timedOut;
+    }
+
+    /** Holds reflective references to the parts of the {@code java.net.http} API we use. */
+    protected static class Api
+    {
+        public final Method getDefaultAuthenticator, durationOfMillis;
+        public final Method newClientBuilder, clientVersion, clientFollowRedirects, clientProxy;
+        public final Method clientAuthenticator, clientBuild, clientSend;
+        public final Method newRequestBuilder, requestMethod, requestHeader, requestTimeout;
+        public final Method requestBuild, noBody, ofInputStream;
+        public final Method responseStatus, responseHeaders, responseBody, headersMap;
+        public final Object http2, redirectNormal;
+
+        public static Api load () {
+            try {
+                return new Api();
+            } catch (Exception e) {
+                return null;
+            }
+        }
+
+        protected Api () throws Exception {
+            Class<?> durationC = Class.forName("java.time.Duration");
+            Class<?> clientC = Class.forName("java.net.http.HttpClient");
+            Class<?> clientBuilderC = Class.forName("java.net.http.HttpClient$Builder");
+            Class<?> versionC = Class.forName("java.net.http.HttpClient$Version");
+            Class<?> redirectC = Class.forName("java.net.http.HttpClient$Redirect");
+            Class<?> requestC = Class.forName("java.net.http.HttpRequest");
+            Class<?> requestBuilderC = Class.forName("java.net.http.HttpRequest$Builder");
+            Class<?> publishersC = Class.forName("java.net.http.HttpRequest$BodyPublishers");
+            Class<?> publisherC = Class.forName("java.net.http.HttpRequest$BodyPublisher");
+            Class<?> responseC = Class.forName("java.net.http.HttpResponse");
+            Class<?> handlersC = Class.forName("java.net.http.HttpResponse$BodyHandlers");
+            Class<?> handlerC = Class.forName("java.net.http.HttpResponse$BodyHandler");
+            Class<?> headersC = Class.forName("java.net.http.HttpHeaders");
+
+            getDefaultAuthenticator = Authenticator.class.getMethod("getDefault");
+            durationOfMillis = durationC.getMethod("ofMillis", long.class);
+
+            newClientBuilder = clientC.getMethod("newBuilder");
+            clientVersion = clientBuilderC.getMethod("version", versionC);
+            clientFollowRedirects = clientBuilderC.getMethod("followRedirects", redirectC);
+            clientProxy = clientBuilderC.getMethod("proxy", ProxySelector.class);
+            clientAuthenticator = clientBuilderC.getMethod("authenticator", Authenticator.class);
+            clientBuild = clientBuilderC.getMethod("build");
+            clientSend = clientC.getMethod("send", requestC, handlerC);
+
+            newRequestBuilder = requestC.getMethod("newBuilder", URI.class);
+            requestMethod = requestBuilderC.getMethod("method", String.class, publisherC);
+            requestHeader = requestBuilderC.getMethod("header", String.class, String.class);
+            requestTimeout = requestBuilderC.getMethod("timeout", durationC);
+            requestBuild = requestBuilderC.getMethod("build");
+            noBody = publishersC.getMethod("noBody");
+            ofInputStream = handlersC.getMethod("ofInputStream");
+
+            responseStatus = responseC.getMethod("statusCode");
+            responseHeaders = responseC.getMethod("headers");
+            responseBody = responseC.getMethod("body");
+            headersMap = headersC.getMethod("map");
+
+            http2 = versionC.getField("HTTP_2").get(null);
+            redirectNormal = redirectC.getField("NORMAL").get(null);
+        }
+    }
+
+    /**
+     * Invokes a method of the HTTP/2 client API, unwrapping any exception it throws.
+     */
+    protected static Object invoke (Method method, Object target, Object... args)
+        throws IOException
+    {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException ite) {
+            Throwable cause = ite.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException)cause;
+            } else if (cause instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+                InterruptedIOException iioe = new InterruptedIOException();
+                iioe.initCause(cause);
+                throw iioe;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException)cause;
+            } else {
+                throw new IOException(cause);
+            }
+        } catch (IllegalAccessException iae) {
+            throw new IOException(iae);
+        }
+    }
+
+    /** Our shared clients, keyed on the proxy and authenticator with which they were created. */
+    protected final Map<List<Object>, Object> _clients = new HashMap<>();
+
+    /** Headers which the HTTP/2 client manages itself and will not allow us to set. */
+    protected static final List<String> RESTRICTED_HEADERS = Arrays.asList(
+        "connection", "content-length", "expect", "host", "upgrade");
+
+    /** Used to enforce read timeouts. */
+    protected static final Timer TIMER = new Timer("Http2Transport read timeouts", true);
+
+    /** The reflective HTTP/2 client API, or null if this JVM lacks one. */
+    protected static final Api API = Api.load();
+}
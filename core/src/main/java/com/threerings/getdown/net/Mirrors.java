@@ -0,0 +1,273 @@
+//
+// Getdown - application installer, patcher and launcher
+// Copyright (C) 2004-2018 Getdown authors
+// https://github.com/threerings/getdown/blob/master/LICENSE
+
+package com.threerings.getdown.net;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+
+import com.threerings.getdown.util.HostWhitelist;
+
+import static com.threerings.getdown.Log.log;
+
+/**
+ * Tracks the mirrors of an application's appbase from which its resources may be downloaded. The
+ * mirrors are probed for latency before downloading starts, and the throughput of each transfer
+ * is recorded as it completes. This information is used to pick the mirror from which each
+ * download (or download segment) is expected to complete soonest, which favors nearby mirrors
+ * while spreading concurrent downloads across mirrors as they become loaded. Mirrors that fail
+ * are avoided in favor of healthy ones.
+ */
+public class Mirrors
+{
+    /** A single mirror and the statistics we've gathered on its performance. */
+    public static class Mirror
+    {
+        /** The mirror's appbase, which may contain {@code %VERSION%}. */
+        public final String appbase;
+
+        public Mirror (String appbase) {
+            this.appbase = appbase;
+        }
+
+        /** Returns the latency of this mirror in milliseconds, or -1 if it's not known. */
+        public long latency () {
+            return _latency;
+        }
+
+        /** Returns the observed throughput of this mirror in bytes per second, or -1 if it's not
+         * yet known. */
+        public long throughput () {
+            return (_bytes < MIN_THROUGHPUT_SAMPLE) ? -1L : _bytes * 1000 / Math.max(_millis, 1);
+        }
+
+        /** Returns whether this mirror is considered healthy. */
+        public boolean isHealthy () {
+            return _failures < MAX_FAILURES;
+        }
+
+        @Override public String toString () {
+            return appbase + " [latency=" + _latency + "ms, throughput=" + throughput() +
+                "B/s, failures=" + _failures + "]";
+        }
+
+        protected long _latency = -1L;
+        protected long _bytes, _millis;
+        protected long _pending;
+        protected int _failures;
+    }
+
+    /**
+     * Creates a mirror set for the supplied appbase and its mirrors.
+     *
+     * @param appbase the (primary) appbase via which resource URLs are formed.
+     * @param mirrors the appbases of the mirrors of {@code appbase}, which may (like it) contain
+     * {@code %VERSION%}.
+     * @param stallTimeout the number of seconds after which a stalled transfer is abandoned in
+     * favor of another mirror, or {@code 0} to use the default read timeout.
+     */
+    public Mirrors (String appbase, List<String> mirrors, int stallTimeout)
+    {
+        _mirrors.add(new Mirror(appbase));
+        for (String mirror : mirrors) {
+            _mirrors.add(new Mirror(mirror));
+        }
+        _stallTimeout = stallTimeout;
+    }
+
+    /**
+     * Returns all of our mirrors, the first of which is the primary appbase.
+     */
+    public List<Mirror> getMirrors ()
+    {
+        return Collections.unmodifiableList(_mirrors);
+    }
+
+    /**
+     * Returns the read timeout (in seconds) to use for transfers from a mirror, or {@code 0} to
+     * use the default.
+     */
+    public int stallTimeout ()
+    {
+        return _stallTimeout;
+    }
+
+    /**
+     * Returns the URL via which the resource at {@code remote} (a URL formed from our primary
+     * appbase) is obtained from {@code mirror}. URLs not formed from the primary appbase are
+     * returned as is.
+     *
+     * @exception MalformedURLException if the mirror URL is invalid or not whitelisted.
+     */
+    public URL resolve (URL remote, Mirror mirror) throws MalformedURLException
+    {
+        String primary = _mirrors.get(0).appbase, url = remote.toString();
+        if (mirror == _mirrors.get(0)) {
+            return remote;
+        }
+
+        // extract the version (if any) from the URL so that we can substitute it into the mirror
+        String version = "";
+        int vidx = primary.indexOf(VERSION), start, end;
+        if (vidx < 0) {
+            if (!url.startsWith(primary)) return remote;
+            end = primary.length();
+        } else {
+            if (!url.startsWith(primary.substring(0, vidx))) return remote;
+            start = end = vidx;
+            while (end < url.length() && Character.isDigit(url.charAt(end))) end++;
+            version = url.substring(start, end);
+            String suffix = primary.substring(vidx + VERSION.length());
+            if (!url.startsWith(suffix, end)) return remote;
+            end += suffix.length();
+        }
+        return HostWhitelist.verify(
+            new URL(mirror.appbase.replace(VERSION, version) + url.substring(end)));
+    }
+
+    /**
+     * Measures the latency of each of our mirrors by requesting the headers of {@code remote} (a
+     * URL formed from our primary appbase) from each of them in parallel. Mirrors that fail to
+     * respond satisfactorily are marked as unhealthy.
+     */
+    public void probe (final Connector conn, ExecutorService exec, final URL remote)
+        throws InterruptedException
+    {
+        List<Callable<Void>> probes = new ArrayList<>();
+        for (final Mirror mirror : _mirrors) {
+            probes.add(new Callable<Void>() {
+                public Void call () {
+                    probe(conn, mirror, remote);
+                    return null;
+                }
+            });
+        }
+        exec.invokeAll(probes);
+
+        List<Mirror> ranked = new ArrayList<>(_mirrors);
+        Collections.sort(ranked, new Comparator<Mirror>() {
+            public int compare (Mirror m1, Mirror m2) {
+                if (m1.isHealthy() != m2.isHealthy()) return m1.isHealthy() ? -1 : 1;
+                return Long.compare(m1._latency, m2._latency);
+            }
+        });
+        log.info("Probed mirrors", "ranking", ranked);
+    }
+
+    /**
+     * Selects the mirror from which a transfer of {@code size} bytes is expected to complete
+     * soonest, given the mirrors' latency, throughput and the transfers already assigned to them.
+     * Healthy mirrors are preferred, but an unhealthy mirror will be selected if it's the only
+     * option. The transfer is noted as pending on the selected mirror until it is reported via
+     * {@link #completed} or {@link #failed}.
+     *
+     * @param exclude mirrors that should not be selected (because the transfer already failed on
+     * them, for example).
+     * @return the selected mirror, or null if all mirrors are excluded.
+     */
+    public synchronized Mirror select (long size, Set<Mirror> exclude)
+    {
+        // use the best throughput we've seen for mirrors we haven't measured yet
+        long defaultThroughput = DEFAULT_THROUGHPUT;
+        for (Mirror mirror : _mirrors) {
+            defaultThroughput = Math.max(defaultThroughput, mirror.throughput());
+        }
+
+        Mirror best = null;
+        double bestTime = 0;
+        for (Mirror mirror : _mirrors) {
+            if (exclude.contains(mirror)) continue;
+            long throughput = mirror.throughput();
+            double time = Math.max(mirror._latency, 0) + (mirror._pending + size) * 1000d /
+                (throughput < 0 ? defaultThroughput : throughput);
+            if (best == null || (mirror.isHealthy() && !best.isHealthy()) ||
+                (mirror.isHealthy() == best.isHealthy() && time < bestTime)) {
+                best = mirror;
+                bestTime = time;
+            }
+        }
+        if (best != null) {
+            best._pending += size;
+        }
+        return best;
+    }
+
+    /**
+     * Notes that a transfer of {@code size} bytes from {@code mirror} completed, having received
+     * {@code bytes} bytes in {@code millis} milliseconds.
+     */
+    public synchronized void completed (Mirror mirror, long size, long bytes, long millis)
+    {
+        mirror._pending -= size;
+        mirror._failures = 0;
+        if (bytes > 0) {
+            mirror._bytes += bytes;
+            mirror._millis += Math.max(millis, 1);
+        }
+    }
+
+    /**
+     * Notes that a transfer of {@code size} bytes from {@code mirror} failed.
+     */
+    public synchronized void failed (Mirror mirror, long size)
+    {
+        mirror._pending -= size;
+        mirror._failures++;
+    }
+
+    protected void probe (Connector conn, Mirror mirror, URL remote)
+    {
+        long start = System.currentTimeMillis();
+        try {
+            URLConnection uconn = conn.open(resolve(remote, mirror), PROBE_TIMEOUT, PROBE_TIMEOUT);
+            int code = HttpURLConnection.HTTP_OK;
+            if (uconn instanceof HttpURLConnection) {
+                HttpURLConnection hconn = (HttpURLConnection)uconn;
+                hconn.setRequestMethod("HEAD");
+                code = hconn.getResponseCode();
+            }
+            conn.release(uconn);
+            if (code == HttpURLConnection.HTTP_OK) {
+                synchronized (this) {
+                    mirror._latency = System.currentTimeMillis() - start;
+                }
+                return;
+            }
+            log.warning("Mirror probe failed", "mirror", mirror.appbase, "code", code);
+        } catch (IOException ioe) {
+            log.warning("Mirror probe failed", "mirror", mirror.appbase, "error", ioe);
+        }
+        synchronized (this) {
+            mirror._failures = MAX_FAILURES;
+        }
+    }
+
+    protected final List<Mirror> _mirrors = new ArrayList<>();
+    protected final int _stallTimeout;
+
+    /** The number of consecutive failures after which a mirror is considered unhealthy. */
+    protected static final int MAX_FAILURES = 2;
+
+    /** The connect and read timeout (in seconds) used when probing mirrors. */
+    protected static final int PROBE_TIMEOUT = 5;
+
+    /** The throughput (in bytes per second) assumed for mirrors we've not yet measured. */
+    protected static final long DEFAULT_THROUGHPUT = 1024 * 1024;
+
+    /** The number of bytes we must have received from a mirror to trust its throughput. */
+    protected static final long MIN_THROUGHPUT_SAMPLE = 64 * 1024;
+
+    protected static final String VERSION = "%VERSION%";
+}
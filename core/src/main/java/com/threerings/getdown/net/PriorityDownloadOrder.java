@@ -0,0 +1,62 @@
+//
+// Getdown - application installer, patcher and launcher
+// Copyright (C) 2004-2018 Getdown authors
+// https://github.com/threerings/getdown/blob/master/LICENSE
+
+package com.threerings.getdown.net;
+
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import com.threerings.getdown.data.Resource;
+
+/**
+ * Orders downloads by priority class: {@code PRELOAD} resources first, then code resources, then
+ * everything else. This gets the application launchable as soon as possible, even when it also
+ * has large media resources to download. Within each class, resources are downloaded largest
+ * first, so that the long downloads are started early and the small ones fill in the gaps at the
+ * end, keeping all of the download threads busy.
+ */
+public class PriorityDownloadOrder implements DownloadOrder
+{
+    /**
+     * Creates a policy that orders preloads first and then the supplied code resources.
+     */
+    public PriorityDownloadOrder (Collection<Resource> code)
+    {
+        _code = new HashSet<>(code);
+    }
+
+    @Override public Comparator<Resource> comparator (final Map<Resource, Long> sizes)
+    {
+        return new Comparator<Resource>() {
+            @Override public int compare (Resource r1, Resource r2) {
+                int cmp = Integer.compare(priority(r1), priority(r2));
+                if (cmp == 0) {
+                    cmp = Long.compare(size(r2), size(r1));
+                }
+                // fall back to path order so that the order is deterministic
+                return (cmp == 0) ? r1.compareTo(r2) : cmp;
+            }
+            protected long size (Resource rsrc) {
+                Long size = sizes.get(rsrc);
+                return (size == null) ? 0L : size;
+            }
+        };
+    }
+
+    /**
+     * Returns the priority class of the supplied resource, lower values being downloaded first.
+     */
+    protected int priority (Resource rsrc)
+    {
+        if (rsrc.shouldPredownload()) return 0;
+        if (_code.contains(rsrc)) return 1;
+        return 2;
+    }
+
+    protected final Set<Resource> _code;
+}
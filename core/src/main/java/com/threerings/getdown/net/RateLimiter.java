@@ -0,0 +1,151 @@
+//
+// Getdown - application installer, patcher and launcher
+// Copyright (C) 2004-2018 Getdown authors
+// https://github.com/threerings/getdown/blob/master/LICENSE
+
+package com.threerings.getdown.net;
+
+import static com.threerings.getdown.Log.log;
+
+/**
+ * Limits the aggregate rate at which data is downloaded using a token bucket shared by all
+ * download threads.
+ *
+ * <p>In <em>background</em> mode, the limiter also tries to stay out of the way of whatever else
+ * is using the network. If we are getting markedly less throughput than we allow ourselves (and
+ * than we recently managed), we assume that someone else is using the link and yield to them by
+ * dropping our rate to half of what we're currently getting. While we're getting what we allow
+ * ourselves, we gradually allow ourselves more again (never exceeding the absolute cap, if
+ * any).</p>
+ */
+public class RateLimiter
+{
+    /**
+     * Creates a rate limiter.
+     *
+     * @param maxRate the maximum rate in bytes per second, or {@code 0} for no absolute cap.
+     * @param background whether to yield bandwidth to other traffic.
+     */
+    public RateLimiter (long maxRate, boolean background)
+    {
+        _maxRate = (maxRate > 0) ? maxRate : Long.MAX_VALUE;
+        _rate = _maxRate;
+        _background = background;
+        _tokens = burst();
+    }
+
+    /**
+     * Returns the rate (in bytes per second) to which we're currently limiting downloads, or
+     * {@link Long#MAX_VALUE} if they're currently unlimited.
+     */
+    public synchronized long rate ()
+    {
+        return _rate;
+    }
+
+    /**
+     * Accounts for the receipt of {@code bytes} bytes, blocking the caller for as long as is
+     * needed to keep the aggregate rate within our limit.
+     */
+    public void acquire (int bytes) throws InterruptedException
+    {
+        long wait;
+        synchronized (this) {
+            if (_rate == Long.MAX_VALUE) {
+                return;
+            }
+            refill(System.currentTimeMillis());
+            // we let the bucket go into debt, and the caller then waits until it's paid back;
+            // concurrent callers queue up behind one another as the debt accumulates
+            _tokens -= bytes;
+            wait = (_tokens >= 0) ? 0L : -_tokens * 1000 / _rate;
+        }
+        if (wait > 0) {
+            Thread.sleep(wait);
+        }
+    }
+
+    /**
+     * Notes the total number of bytes downloaded as of {@code now} (in millis). In background
+     * mode, this adjusts our rate once per control interval based on the throughput we achieved.
+     */
+    public synchronized void sample (long bytes, long now)
+    {
+        if (!_background) {
+            return;
+        }
+        if (_sampleStamp == 0L) {
+            _sampleStamp = now;
+            _sampleBytes = bytes;
+            return;
+        }
+        long elapsed = now - _sampleStamp;
+        if (elapsed < CONTROL_INTERVAL) {
+            return;
+        }
+
+        long throughput = (bytes - _sampleBytes) * 1000 / elapsed;
+        // let our notion of the link's capacity fade slowly, in case it has really gotten slower
+        _peak = Math.max(throughput, (long)(_peak * PEAK_DECAY));
+        long expected = Math.min(_rate, _peak);
+        long orate = _rate;
+        if (throughput < expected * (1 - YIELD_THRESHOLD)) {
+            // someone else is using the link, back off
+            _rate = Math.max(MIN_RATE, throughput / 2);
+        } else if (_rate != Long.MAX_VALUE) {
+            // we're getting what we allow ourselves, so allow a bit more
+            long nrate = _rate + Math.max(MIN_RATE, _peak / 10);
+            _rate = (nrate >= _maxRate) ? _maxRate : nrate;
+        }
+        if (_rate != orate) {
+            log.info("Adjusted background download rate", "rate", _rate, "was", orate,
+                     "throughput", throughput, "peak", _peak);
+            _tokens = Math.min(_tokens, burst());
+        }
+
+        _sampleStamp = now;
+        _sampleBytes = bytes;
+    }
+
+    @Override public synchronized String toString ()
+    {
+        return "[rate=" + _rate + ", max=" + _maxRate + ", background=" + _background + "]";
+    }
+
+    protected void refill (long now)
+    {
+        if (_refillStamp > 0) {
+            long elapsed = now - _refillStamp;
+            _tokens = Math.min(burst(), _tokens + elapsed * _rate / 1000);
+        }
+        _refillStamp = now;
+    }
+
+    /** Returns the most tokens our bucket will hold, which limits the size of a burst. */
+    protected long burst ()
+    {
+        return Math.max(MIN_BURST, _rate / 4);
+    }
+
+    protected final long _maxRate;
+    protected final boolean _background;
+    protected long _rate;
+    protected long _tokens, _refillStamp;
+
+    protected long _sampleStamp, _sampleBytes, _peak;
+
+    /** The number of milliseconds over which we measure throughput between adjustments. */
+    protected static final long CONTROL_INTERVAL = 2000L;
+
+    /** The fractional shortfall in throughput that causes us to yield. */
+    protected static final double YIELD_THRESHOLD = 0.3;
+
+    /** The factor by which our peak throughput estimate decays each control interval. */
+    protected static final double PEAK_DECAY = 0.98;
+
+    /** The lowest rate (in bytes per second) to which we'll yield. */
+    protected static final long MIN_RATE = 16 * 1024;
+
+    /** The smallest burst we'll allow, which must exceed our largest read. */
+    protected static final long MIN_BURST = 64 * 1024;
+}
@@ -0,0 +1,37 @@
+//
+// Getdown - application installer, patcher and launcher
+// Copyright (C) 2004-2018 Getdown authors
+// https://github.com/threerings/getdown/blob/master/LICENSE
+
+package com.threerings.getdown.net;
+
+import java.io.IOException;
+import java.net.Proxy;
+import java.net.URL;
+import java.net.URLConnection;
+
+/**
+ * Creates the connections used by {@link Connector} to talk to the outside world. Connections are
+ * exposed as {@link URLConnection}s (and, for {@code http} and {@code https} URLs, as {@link
+ * java.net.HttpURLConnection}s) regardless of the underlying protocol implementation so that the
+ * rest of Getdown need not care which transport is in use.
+ */
+public interface Transport
+{
+    /** The default transport, which uses the JDK's built-in {@link URLConnection} support. */
+    Transport DEFAULT = new Transport() {
+        public URLConnection open (URL url, Proxy proxy) throws IOException {
+            return (proxy == null) ? url.openConnection() : url.openConnection(proxy);
+        }
+        @Override public String toString () {
+            return "default";
+        }
+    };
+
+    /**
+     * Creates an unconnected connection to {@code url}.
+     *
+     * @param proxy the proxy via which to connect, or {@code null} to use the system defaults.
+     */
+    URLConnection open (URL url, Proxy proxy) throws IOException;
+}
@@ -0,0 +1,216 @@
+//
+// Getdown - application installer, patcher and launcher
+// Copyright (C) 2004-2018 Getdown authors
+// https://github.com/threerings/getdown/blob/master/LICENSE
+
+package com.threerings.getdown.tools;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Creates binary deltas between two versions of a file which is not a jar (and thus can't be
+ * diffed by {@link JarDiff}). A delta reconstructs the new file from copies of ranges of the old
+ * file and literal additions (see {@link BinaryDiffCodes}), and is applied by {@link
+ * BinaryDiffPatcher}.
+ *
+ * <p>Copies are found in the manner of rsync and VCDIFF encoders: the old file is indexed by a
+ * rolling hash of each of its aligned blocks, the new file is scanned for positions at which the
+ * hash matches that of some block, and each match is extended forwards and backwards as far as
+ * the two files agree. Both files are held in memory while the delta is created, but the index
+ * holds at most {@link #MAX_BLOCKS} blocks, so its size is bounded regardless of the file size
+ * (larger files simply use larger blocks).</p>
+ */
+public class BinaryDiff implements BinaryDiffCodes
+{
+    /**
+     * Creates a delta which transforms {@code oldData} into {@code newData}.
+     *
+     * @param limit the size of the largest delta of interest.
+     * @return the delta, or null if it would have been larger than {@code limit} bytes.
+     */
+    public static byte[] createPatch (byte[] oldData, byte[] newData, long limit)
+        throws IOException
+    {
+        return new BinaryDiff(oldData, newData).encode(limit);
+    }
+
+    protected BinaryDiff (byte[] oldData, byte[] newData)
+    {
+        _old = oldData;
+        _new = newData;
+        _block = MIN_BLOCK;
+        while (oldData.length / _block > MAX_BLOCKS) {
+            _block *= 2;
+        }
+        _pow = 1;
+        for (int ii = 1; ii < _block; ii++) {
+            _pow *= BASE;
+        }
+
+        // size the table to be at most half full, so that probe sequences stay short
+        int blocks = oldData.length / _block;
+        int slots = Integer.highestOneBit(Math.max(blocks, 1)) * 4;
+        _hashes = new int[slots];
+        _offsets = new int[slots];
+        Arrays.fill(_offsets, -1);
+        for (int offset = 0; offset + _block <= oldData.length; offset += _block) {
+            insert(hash(oldData, offset), offset);
+        }
+    }
+
+    protected byte[] encode (long limit) throws IOException
+    {
+        _out.writeInt(MAGIC);
+        _out.writeLong(_old.length);
+        _out.writeLong(_new.length);
+
+        int pos = 0, addStart = 0, length = _new.length;
+        if (length >= _block && _old.length >= _block) {
+            int hash = hash(_new, 0);
+            while (true) {
+                if (findMatch(hash, pos, addStart)) {
+                    add(addStart, _matchNew);
+                    copy(_matchOld, _matchLength);
+                    pos = addStart = _matchNew + _matchLength;
+                    if (_bout.size() > limit) {
+                        return null;
+                    }
+                    if (pos + _block > length) {
+                        break;
+                    }
+                    hash = hash(_new, pos);
+                } else {
+                    if (pos + _block >= length) {
+                        break;
+                    }
+                    // roll the hash along by one byte
+                    hash = (hash - (_new[pos] & 0xFF) * _pow) * BASE + (_new[pos + _block] & 0xFF);
+                    pos++;
+                }
+            }
+        }
+        add(addStart, length);
+        _out.writeByte(END_OP);
+        _out.flush();
+        return (_bout.size() > limit) ? null : _bout.toByteArray();
+    }
+
+    /**
+     * Looks for the longest match of the new data at {@code pos} with a block of the old data
+     * having hash {@code hash}, extending it back as far as {@code addStart}. If a match is found
+     * it is noted in {@link #_matchOld}, {@link #_matchNew} and {@link #_matchLength}.
+     */
+    protected boolean findMatch (int hash, int pos, int addStart)
+    {
+        int mask = _offsets.length - 1, best = 0;
+        for (int idx = mix(hash) & mask, seen = 0; _offsets[idx] >= 0 && seen < MAX_CANDIDATES;
+             idx = (idx + 1) & mask) {
+            if (_hashes[idx] != hash) {
+                continue;
+            }
+            seen++;
+            int offset = _offsets[idx];
+            int fwd = 0, maxFwd = Math.min(_old.length - offset, _new.length - pos);
+            while (fwd < maxFwd && _old[offset + fwd] == _new[pos + fwd]) {
+                fwd++;
+            }
+            // if the block itself doesn't match, the hashes merely collided
+            if (fwd < _block) {
+                continue;
+            }
+            int back = 0, maxBack = Math.min(offset, pos - addStart);
+            while (back < maxBack && _old[offset - back - 1] == _new[pos - back - 1]) {
+                back++;
+            }
+            if (fwd + back > best) {
+                best = fwd + back;
+                _matchOld = offset - back;
+                _matchNew = pos - back;
+            }
+        }
+        _matchLength = best;
+        return best > 0;
+    }
+
+    protected void insert (int hash, int offset)
+    {
+        // we keep only the first few blocks with any given hash, otherwise long runs of identical
+        // blocks (zeros, say) would make for quadratically long probe sequences
+        int mask = _offsets.length - 1, idx = mix(hash) & mask;
+        for (int same = 0; _offsets[idx] >= 0; idx = (idx + 1) & mask) {
+            if (_hashes[idx] == hash && ++same >= MAX_CANDIDATES) {
+                return;
+            }
+        }
+        _hashes[idx] = hash;
+        _offsets[idx] = offset;
+    }
+
+    protected int hash (byte[] data, int offset)
+    {
+        int hash = 0;
+        for (int ii = offset, ll = offset + _block; ii < ll; ii++) {
+            hash = hash * BASE + (data[ii] & 0xFF);
+        }
+        return hash;
+    }
+
+    protected void add (int start, int end) throws IOException
+    {
+        if (end > start) {
+            _out.writeByte(ADD_OP);
+            writeVarLong(end - start);
+            _out.write(_new, start, end - start);
+        }
+    }
+
+    protected void copy (int offset, int length) throws IOException
+    {
+        long delta = offset - _copyEnd;
+        _out.writeByte(COPY_OP);
+        writeVarLong((delta << 1) ^ (delta >> 63));
+        writeVarLong(length);
+        _copyEnd = offset + length;
+    }
+
+    protected void writeVarLong (long value) throws IOException
+    {
+        while ((value & ~0x7FL) != 0) {
+            _out.writeByte((int)(value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        _out.writeByte((int)value);
+    }
+
+    /** Spreads the bits of a rolling hash, whose low bits depend only on the last few bytes. */
+    protected static int mix (int hash)
+    {
+        hash *= 0x9E3779B9;
+        return hash ^ (hash >>> 16);
+    }
+
+    protected final byte[] _old, _new;
+    protected int _block, _pow;
+    protected final int[] _hashes, _offsets;
+
+    protected int _matchOld, _matchNew, _matchLength;
+    protected long _copyEnd;
+
+    protected final ByteArrayOutputStream _bout = new ByteArrayOutputStream();
+    protected final DataOutputStream _out = new DataOutputStream(_bout);
+
+    /** The smallest block size we use to index the old file. */
+    protected static final int MIN_BLOCK = 16;
+
+    /** The most blocks of the old file we'll index. */
+    protected static final int MAX_BLOCKS = 1 << 21;
+
+    /** The most blocks with the same hash that we consider at each position. */
+    protected static final int MAX_CANDIDATES = 8;
+
+    /** The base of our rolling hash. */
+    protected static final int BASE = 0x01000193;
+}
@@ -0,0 +1,36 @@
+//
+// Getdown - application installer, patcher and launcher
+// Copyright (C) 2004-2018 Getdown authors
+// https://github.com/threerings/getdown/blob/master/LICENSE
+
+package com.threerings.getdown.tools;
+
+/**
+ * Constants shared by {@link BinaryDiff} and {@link BinaryDiffPatcher}.
+ *
+ * <p>A binary delta starts with {@link #MAGIC}, followed by the length of the old file and the
+ * length of the new file (each a big-endian long). Then come the instructions which reconstruct
+ * the new file, each a one byte opcode followed by its operands, which are unsigned variable
+ * length integers (seven bits per byte, least significant first):</p>
+ *
+ * <ul>
+ * <li>{@link #COPY_OP} offset length: copies {@code length} bytes from the old file. The offset
+ * is relative to the end of the previous copy (or zero for the first) and zigzag encoded.</li>
+ * <li>{@link #ADD_OP} length bytes: appends the {@code length} bytes which follow.</li>
+ * <li>{@link #END_OP}: ends the delta.</li>
+ * </ul>
+ */
+public interface BinaryDiffCodes
+{
+    /** Identifies a binary delta. */
+    int MAGIC = 0x47444244; // "GDBD"
+
+    /** Ends the delta. */
+    int END_OP = 0;
+
+    /** Copies a range of the old file. */
+    int COPY_OP = 1;
+
+    /** Appends literal bytes. */
+    int ADD_OP = 2;
+}
@@ -0,0 +1,158 @@
+//
+// Getdown - application installer, patcher and launcher
+// Copyright (C) 2004-2018 Getdown authors
+// https://github.com/threerings/getdown/blob/master/LICENSE
+
+package com.threerings.getdown.tools;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+
+import com.threerings.getdown.util.ProgressObserver;
+
+/**
+ * Applies a binary delta created by {@link BinaryDiff} to a file (or to data in memory). The delta
+ * is read as a stream (it need not be written to disk first) and only the ranges of the old file
+ * which it copies are read.
+ */
+public class BinaryDiffPatcher implements BinaryDiffCodes
+{
+    /**
+     * Applies the delta read from {@code delta} to {@code oldFile}, writing the new file to
+     * {@code target}.
+     *
+     * @param observer an optional observer to be notified of patching progress.
+     * @throws IOException if the delta is invalid, was not created from a file the size of
+     * {@code oldFile}, or any problem occurs while reading or writing.
+     */
+    public void patch (File oldFile, InputStream delta, File target, ProgressObserver observer)
+        throws IOException
+    {
+        try (final RandomAccessFile old = new RandomAccessFile(oldFile, "r");
+             OutputStream out = new BufferedOutputStream(new FileOutputStream(target))) {
+            patch(new OldData() {
+                public long length () throws IOException {
+                    return old.length();
+                }
+                public void read (long offset, byte[] buffer, int length) throws IOException {
+                    old.seek(offset);
+                    old.readFully(buffer, 0, length);
+                }
+            }, "'" + oldFile + "'", delta, out, observer);
+        }
+    }
+
+    /**
+     * Applies the delta read from {@code delta} to {@code oldData}, writing the new data to
+     * {@code out} (which is not closed).
+     *
+     * @throws IOException if the delta is invalid, was not created from data the size of
+     * {@code oldData}, or any problem occurs while reading or writing.
+     */
+    public void patch (final byte[] oldData, InputStream delta, OutputStream out)
+        throws IOException
+    {
+        patch(new OldData() {
+            public long length () {
+                return oldData.length;
+            }
+            public void read (long offset, byte[] buffer, int length) {
+                System.arraycopy(oldData, (int)offset, buffer, 0, length);
+            }
+        }, "old data", delta, out, null);
+    }
+
+    /** Provides the data to which a delta is applied. */
+    protected interface OldData
+    {
+        long length () throws IOException;
+        void read (long offset, byte[] buffer, int length) throws IOException;
+    }
+
+    protected void patch (OldData old, String oldName, InputStream delta, OutputStream out,
+                          ProgressObserver observer)
+        throws IOException
+    {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(delta));
+        if (in.readInt() != MAGIC) {
+            throw new IOException("Not a binary delta");
+        }
+        long oldLength = in.readLong(), newLength = in.readLong();
+        if (old.length() != oldLength) {
+            throw new IOException("Delta does not apply to " + oldName + " [expected size=" +
+                                  oldLength + ", size=" + old.length() + "]");
+        }
+
+        byte[] buffer = new byte[COPY_BUFFER_SIZE];
+        long written = 0L, copyEnd = 0L;
+        int percent = -1;
+        for (int op = in.readUnsignedByte(); op != END_OP; op = in.readUnsignedByte()) {
+            long length;
+            if (op == COPY_OP) {
+                long delt = readVarLong(in);
+                long offset = copyEnd + ((delt >>> 1) ^ -(delt & 1));
+                length = readVarLong(in);
+                if (offset < 0 || length < 0 || offset + length > oldLength) {
+                    throw new IOException("Invalid copy in delta [offset=" + offset +
+                                          ", length=" + length + "]");
+                }
+                for (long pos = offset, end = offset + length; pos < end; ) {
+                    int read = (int)Math.min(end - pos, buffer.length);
+                    old.read(pos, buffer, read);
+                    out.write(buffer, 0, read);
+                    pos += read;
+                }
+                copyEnd = offset + length;
+
+            } else if (op == ADD_OP) {
+                length = readVarLong(in);
+                if (length < 0 || written + length > newLength) {
+                    throw new IOException("Invalid addition in delta [length=" + length + "]");
+                }
+                for (long remain = length; remain > 0; ) {
+                    int read = (int)Math.min(remain, buffer.length);
+                    in.readFully(buffer, 0, read);
+                    out.write(buffer, 0, read);
+                    remain -= read;
+                }
+
+            } else {
+                throw new IOException("Invalid delta instruction " + op);
+            }
+
+            written += length;
+            if (written > newLength) {
+                throw new IOException("Delta exceeds expected size " + newLength);
+            }
+            int npercent = (newLength == 0) ? 100 : (int)(100 * written / newLength);
+            if (observer != null && npercent != percent) {
+                observer.progress(percent = npercent);
+            }
+        }
+        if (written != newLength) {
+            throw new IOException("Delta produced " + written + " bytes, expected " + newLength);
+        }
+    }
+
+    protected static long readVarLong (DataInputStream in) throws IOException
+    {
+        long value = 0L;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (long)(b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed length in delta");
+    }
+
+    protected static final int COPY_BUFFER_SIZE = 64 * 1024;
+}
@@ -6,18 +6,33 @@
 package com.threerings.getdown.tools;
 
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
-import java.security.MessageDigest;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.Enumeration;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.GregorianCalendar;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.zip.ZipEntry;
-import java.util.zip.ZipFile;
 import java.util.zip.ZipOutputStream;
 
 import com.threerings.getdown.data.Application;
@@ -35,6 +50,40 @@ import com.threerings.getdown.util.StreamUtil;
  */
 public class Differ
 {
+    /**
+     * Configures the size (in bytes) below which a changed file which is not a jar is included in
+     * patches in full rather than as a binary delta (see {@link BinaryDiff}). A delta is only used
+     * if it is smaller than the new file, but computing it means reading both versions of the file
+     * into memory, which is a waste of time for small files. A negative size disables binary
+     * deltas, both of files and of modified jar entries (see {@link JarDiff}), which is
+     * appropriate if clients running Getdown versions which predate them will apply the patches:
+     * they fail to apply such patches and download the affected files in full.
+     */
+    public void setMinDeltaSize (long minDeltaSize)
+    {
+        _minDeltaSize = minDeltaSize;
+    }
+
+    /**
+     * Configures (roughly) the most memory used to hold files being diffed and the diffs waiting
+     * to be written to the patch file. Defaults to half of the maximum heap size. Fewer resources
+     * are diffed concurrently if need be to stay within the budget, but a single resource which
+     * needs more than the budget is still diffed (alone).
+     */
+    public void setMemoryBudget (long bytes)
+    {
+        _memoryBudget = bytes;
+    }
+
+    /**
+     * Configures the number of threads used to diff resources. Defaults to the number of available
+     * processors.
+     */
+    public void setThreads (int threads)
+    {
+        _threads = Math.max(threads, 1);
+    }
+
     /**
      * Creates a single patch file that contains the differences between
      * the two specified application directories. The patch file will be
@@ -43,111 +92,204 @@ public class Differ
      */
     public void createDiff (File nvdir, File ovdir, boolean verbose)
         throws IOException
+    {
+        createDiffs(nvdir, Collections.singletonList(ovdir), verbose);
+    }
+
+    /**
+     * Creates patch files from each of the specified old application directories to {@code
+     * nvdir}, as if by calling {@link #createDiff} for each. The new version is read and hashed
+     * only once, and any pair of old and new files which appears in more than one old version (a
+     * resource that last changed in the new version, say) is diffed only once, so creating patches
+     * from many old versions costs far less than creating each in turn. Such shared diffs are
+     * held in memory from the first patch which needs them to the last.
+     */
+    public void createDiffs (File nvdir, List<File> ovdirs, boolean verbose)
+        throws IOException
     {
         // sanity check
         String nvers = nvdir.getName();
-        String overs = ovdir.getName();
-        try {
-            if (Long.parseLong(nvers) <= Long.parseLong(overs)) {
-                String err = "New version (" + nvers + ") must be greater " +
-                    "than old version (" + overs + ").";
-                throw new IOException(err);
+        for (File ovdir : ovdirs) {
+            String overs = ovdir.getName();
+            try {
+                if (Long.parseLong(nvers) <= Long.parseLong(overs)) {
+                    String err = "New version (" + nvers + ") must be greater " +
+                        "than old version (" + overs + ").";
+                    throw new IOException(err);
+                }
+            } catch (NumberFormatException nfe) {
+                throw new IOException("Non-numeric versions? [nvers=" + nvers +
+                                      ", overs=" + overs + "].");
             }
-        } catch (NumberFormatException nfe) {
-            throw new IOException("Non-numeric versions? [nvers=" + nvers +
-                                  ", overs=" + overs + "].");
         }
 
-        Application oapp = new Application(new EnvConfig(ovdir));
-        oapp.init(false);
-        List<Resource> orsrcs = new ArrayList<>();
-        orsrcs.addAll(oapp.getCodeResources());
-        orsrcs.addAll(oapp.getResources());
-
         Application napp = new Application(new EnvConfig(nvdir));
         napp.init(false);
-        List<Resource> nrsrcs = new ArrayList<>();
-        nrsrcs.addAll(napp.getCodeResources());
-        nrsrcs.addAll(napp.getResources());
+        List<Application> oapps = new ArrayList<>();
+        for (File ovdir : ovdirs) {
+            Application oapp = new Application(new EnvConfig(ovdir));
+            oapp.init(false);
+            oapps.add(oapp);
+        }
 
+        ExecutorService exec = Executors.newFixedThreadPool(_threads);
+        try {
+            if (oapps.size() > 1) {
+                planReuse(napp, oapps, exec);
+            }
+            for (int ii = 0; ii < oapps.size(); ii++) {
+                createDiff(napp, nvdir, oapps.get(ii), ovdirs.get(ii).getName(), verbose, exec);
+            }
+        } finally {
+            exec.shutdownNow();
+            _digests.clear();
+            _diffs.clear();
+            _uses.clear();
+        }
+    }
+
+    protected void createDiff (Application napp, File nvdir, Application oapp, String overs,
+                               boolean verbose, ExecutorService exec)
+        throws IOException
+    {
         // first create a patch for the main application
         File patch = new File(nvdir, "patch" + overs + ".dat");
-        createPatch(patch, orsrcs, nrsrcs, verbose);
+        createPatch(patch, resources(oapp, null), resources(napp, null), verbose, exec);
 
         // next create patches for any auxiliary resource groups
         for (Application.AuxGroup ag : napp.getAuxGroups()) {
-            orsrcs = new ArrayList<>();
-            Application.AuxGroup oag = oapp.getAuxGroup(ag.name);
-            if (oag != null) {
-                orsrcs.addAll(oag.codes);
-                orsrcs.addAll(oag.rsrcs);
-            }
-            nrsrcs = new ArrayList<>();
-            nrsrcs.addAll(ag.codes);
-            nrsrcs.addAll(ag.rsrcs);
             patch = new File(nvdir, "patch-" + ag.name + overs + ".dat");
-            createPatch(patch, orsrcs, nrsrcs, verbose);
+            createPatch(patch, resources(oapp, ag.name), resources(napp, ag.name), verbose, exec);
         }
     }
 
-    protected void createPatch (File patch, List<Resource> orsrcs,
-                                List<Resource> nrsrcs, boolean verbose)
+    /**
+     * Returns the resources of the specified auxiliary group of {@code app} (which are none if it
+     * has no such group), or of the main application if {@code group} is null.
+     */
+    protected static List<Resource> resources (Application app, String group)
+    {
+        List<Resource> rsrcs = new ArrayList<>();
+        if (group == null) {
+            rsrcs.addAll(app.getCodeResources());
+            rsrcs.addAll(app.getResources());
+        } else {
+            Application.AuxGroup ag = app.getAuxGroup(group);
+            if (ag != null) {
+                rsrcs.addAll(ag.codes);
+                rsrcs.addAll(ag.rsrcs);
+            }
+        }
+        return rsrcs;
+    }
+
+    /**
+     * Determines which diffs will be needed by more than one of the patches from {@code oapps}
+     * (those of files which are the same in several old versions) and notes how many patches need
+     * each in {@link #_uses}. Only those diffs are held once computed, and only until the last
+     * patch which needs them has been written. This hashes the files of every version, but the
+     * hashes are remembered for the patches themselves.
+     */
+    protected void planReuse (Application napp, List<Application> oapps, ExecutorService exec)
         throws IOException
     {
-        int version = Digest.VERSION;
-        MessageDigest md = Digest.getMessageDigest(version);
-        try (FileOutputStream fos = new FileOutputStream(patch);
-             BufferedOutputStream buffered = new BufferedOutputStream(fos);
-             ZipOutputStream jout = new ZipOutputStream(buffered)) {
+        List<String> groups = new ArrayList<>();
+        groups.add(null);
+        for (Application.AuxGroup ag : napp.getAuxGroups()) {
+            groups.add(ag.name);
+        }
 
-            // for each file in the new application, it either already exists
-            // in the old application, or it is new
-            for (Resource rsrc : nrsrcs) {
-                int oidx = orsrcs.indexOf(rsrc);
-                Resource orsrc = (oidx == -1) ? null : orsrcs.remove(oidx);
-                if (orsrc != null) {
-                    // first see if they are the same
-                    String odig = orsrc.computeDigest(version, md, null);
-                    String ndig = rsrc.computeDigest(version, md, null);
-                    if (odig.equals(ndig)) {
-                        if (verbose) {
-                            System.out.println("Unchanged: " + rsrc.getPath());
-                        }
-                        // by leaving it out, it will be left as is during the
-                        // patching process
+        List<Future<String>> keys = new ArrayList<>();
+        for (Application oapp : oapps) {
+            for (String group : groups) {
+                List<Resource> orsrcs = resources(oapp, group);
+                for (final Resource rsrc : resources(napp, group)) {
+                    int oidx = orsrcs.indexOf(rsrc);
+                    if (oidx == -1) {
                         continue;
                     }
-
-                    // otherwise potentially create a jar diff
-                    if (rsrc.getPath().endsWith(".jar")) {
-                        if (verbose) {
-                            System.out.println("JarDiff: " + rsrc.getPath());
+                    final Resource orsrc = orsrcs.get(oidx);
+                    keys.add(exec.submit(new Callable<String>() {
+                        public String call () throws IOException {
+                            return diffKey(orsrc, rsrc);
                         }
-                        // here's a juicy one: JarDiff blindly pulls ZipEntry
-                        // objects out of one jar file and stuffs them into
-                        // another without clearing out things like the
-                        // compressed size, so if, for whatever reason (like
-                        // different JRE versions or phase of the moon) the
-                        // compressed size in the old jar file is different
-                        // than the compressed size generated when creating the
-                        // jardiff jar file, ZipOutputStream will choke and
-                        // we'll be hosed; so we recreate the jar files in
-                        // their entirety before running jardiff on 'em
-                        File otemp = rebuildJar(orsrc.getLocal());
-                        File temp = rebuildJar(rsrc.getLocal());
-                        jout.putNextEntry(new ZipEntry(rsrc.getPath() + Patcher.PATCH));
-                        jarDiff(otemp, temp, jout);
-                        FileUtil.deleteHarder(otemp);
-                        FileUtil.deleteHarder(temp);
-                        continue;
-                    }
+                    }));
                 }
+            }
+        }
 
-                if (verbose) {
-                    System.out.println("Addition: " + rsrc.getPath());
+        Map<String, Integer> counts = new HashMap<>();
+        for (Future<String> key : keys) {
+            String k = await(key);
+            if (k != null) {
+                Integer count = counts.get(k);
+                counts.put(k, (count == null) ? 1 : count + 1);
+            }
+        }
+        for (Map.Entry<String, Integer> entry : counts.entrySet()) {
+            if (entry.getValue() > 1) {
+                _uses.put(entry.getKey(), new AtomicInteger(entry.getValue()));
+            }
+        }
+    }
+
+    /**
+     * Returns the key which identifies the diff of {@code rsrc} against {@code orsrc}: their path
+     * and the digests of both files (as the diff is determined entirely by those), or null if
+     * the files are the same.
+     */
+    protected String diffKey (Resource orsrc, Resource rsrc) throws IOException
+    {
+        String odig = digest(orsrc), ndig = digest(rsrc);
+        return odig.equals(ndig) ? null : rsrc.getPath() + ":" + odig + ":" + ndig;
+    }
+
+    /**
+     * Creates a patch file which transforms {@code orsrcs} into {@code nrsrcs}. The resources are
+     * diffed on {@code exec}, but their entries are written to the patch in the order of {@code
+     * nrsrcs} (followed by removals in the order of {@code orsrcs}), so the patch does not depend
+     * on the order in which the diffs complete.
+     */
+    protected void createPatch (File patch, List<Resource> orsrcs, List<Resource> nrsrcs,
+                                final boolean verbose, ExecutorService exec)
+        throws IOException
+    {
+        // for each file in the new application, it either already exists
+        // in the old application, or it is new
+        List<Callable<PatchEntry>> diffs = new ArrayList<>();
+        List<Long> costs = new ArrayList<>();
+        for (final Resource rsrc : nrsrcs) {
+            int oidx = orsrcs.indexOf(rsrc);
+            final Resource orsrc = (oidx == -1) ? null : orsrcs.remove(oidx);
+            diffs.add(new Callable<PatchEntry>() {
+                public PatchEntry call () throws IOException {
+                    return diffResource(orsrc, rsrc, verbose);
+                }
+            });
+            costs.add(memoryCost(orsrc, rsrc));
+        }
+
+        // we keep only a few diffs in flight beyond the one we're waiting to write, and only as
+        // many as fit in our memory budget, so that completed diffs (which may be large) don't
+        // pile up behind a slow one and we don't read many large files into memory at once; the
+        // diff we're waiting to write is always in flight, even if it alone exceeds the budget
+        Deque<Future<PatchEntry>> pending = new ArrayDeque<>();
+        Deque<Long> pendingCosts = new ArrayDeque<>();
+        long inflight = 0L;
+        boolean created = false;
+        try (FileOutputStream fos = new FileOutputStream(patch);
+             BufferedOutputStream buffered = new BufferedOutputStream(fos);
+             ZipOutputStream jout = new ZipOutputStream(buffered)) {
+
+            for (int next = 0; next < diffs.size() || !pending.isEmpty(); ) {
+                while (next < diffs.size() && pending.size() < 2 * _threads &&
+                       (pending.isEmpty() || inflight + costs.get(next) <= _memoryBudget)) {
+                    inflight += costs.get(next);
+                    pendingCosts.add(costs.get(next));
+                    pending.add(exec.submit(diffs.get(next++)));
                 }
-                jout.putNextEntry(new ZipEntry(rsrc.getPath() + Patcher.CREATE));
-                pipe(rsrc.getLocal(), jout);
+                writeEntry(await(pending.remove()), jout);
+                inflight -= pendingCosts.remove();
             }
 
             // now any file remaining in orsrcs needs to be removed
@@ -156,64 +298,290 @@ public class Differ
                 if (verbose) {
                     System.out.println("Removal: " + rsrc.getPath());
                 }
-                jout.putNextEntry(new ZipEntry(rsrc.getPath() + Patcher.DELETE));
+                jout.putNextEntry(newEntry(rsrc.getPath() + Patcher.DELETE));
             }
+            created = true;
 
-            System.out.println("Created patch file: " + patch);
+        } finally {
+            if (!created) {
+                for (Future<PatchEntry> diff : pending) {
+                    diff.cancel(true);
+                }
+                FileUtil.deleteHarder(patch);
+            }
+        }
+        System.out.println("Created patch file: " + patch);
+    }
 
-        } catch (IOException ioe) {
-            FileUtil.deleteHarder(patch);
-            throw ioe;
+    /**
+     * Returns (roughly) the most memory needed to diff {@code rsrc} against {@code orsrc} and to
+     * hold the resulting patch entry until it is written.
+     */
+    protected long memoryCost (Resource orsrc, Resource rsrc)
+    {
+        if (orsrc == null) {
+            return 0L; // new files are copied straight into the patch
+        }
+        long olength = orsrc.getLocal().length(), nlength = rsrc.getLocal().length();
+        if (rsrc.getPath().endsWith(".jar")) {
+            // JarDiff holds the jardiff (no bigger than the new jar) and some entries in memory
+            return olength + nlength;
         }
+        if (!deltaCandidate(olength, nlength)) {
+            return 0L;
+        }
+        // binaryDiff holds both files and the delta (which is smaller than the new file)
+        return olength + 2 * nlength;
     }
 
-    protected File rebuildJar (File target)
+    /**
+     * Determines how {@code rsrc} is to be patched, given its old version {@code orsrc} (which is
+     * null if the resource is new). This is called concurrently for many resources, and so must
+     * not share mutable state with its counterparts.
+     */
+    protected PatchEntry diffResource (final Resource orsrc, final Resource rsrc,
+                                       final boolean verbose)
         throws IOException
     {
-        File temp = File.createTempFile("differ", "jar");
-        try (ZipFile jar = new ZipFile(target);
-             FileOutputStream tempFos = new FileOutputStream(temp);
-             BufferedOutputStream tempBos = new BufferedOutputStream(tempFos);
-             ZipOutputStream jout = new ZipOutputStream(tempBos)) {
-            byte[] buffer = new byte[4096];
-            for (Enumeration<? extends ZipEntry> iter = jar.entries(); iter.hasMoreElements();) {
-                ZipEntry entry = iter.nextElement();
-                entry.setCompressedSize(-1);
-                jout.putNextEntry(entry);
-                try (InputStream in = jar.getInputStream(entry)) {
-                    int size = in.read(buffer);
-                    while (size != -1) {
-                        jout.write(buffer, 0, size);
-                        size = in.read(buffer);
+        if (orsrc != null) {
+            // first see if they are the same
+            String key = diffKey(orsrc, rsrc);
+            if (key == null) {
+                // by leaving it out, it will be left as is during the
+                // patching process
+                return new PatchEntry(null, null, null,
+                                      verbose ? "Unchanged: " + rsrc.getPath() : null);
+            }
+
+            // otherwise diff them, once only if the same pair of files is in several old versions
+            PatchEntry diff;
+            AtomicInteger uses = _uses.get(key);
+            if (uses == null) {
+                diff = diffChanged(orsrc, rsrc, verbose);
+            } else {
+                diff = memoize(_diffs, key, new Callable<PatchEntry>() {
+                    public PatchEntry call () throws IOException {
+                        return diffChanged(orsrc, rsrc, verbose);
                     }
+                });
+                // once the last patch which needs it has it, we need hold it no longer
+                if (uses.decrementAndGet() == 0) {
+                    _diffs.remove(key);
                 }
             }
+            if (diff != null) {
+                return diff;
+            }
         }
-        return temp;
+
+        return new PatchEntry(rsrc.getPath() + Patcher.CREATE, null, rsrc.getLocal(),
+                              verbose ? "Addition: " + rsrc.getPath() : null);
     }
 
-    protected void jarDiff (File ofile, File nfile, ZipOutputStream jout) throws IOException
+    /**
+     * Diffs {@code rsrc} against its (different) old version {@code orsrc}.
+     *
+     * @return the diff entry, or null if the resource should be included in full.
+     */
+    protected PatchEntry diffChanged (Resource orsrc, Resource rsrc, boolean verbose)
+        throws IOException
     {
-        JarDiff.createPatch(ofile.getPath(), nfile.getPath(), jout, false);
+        // potentially create a jar diff (straight from the jars, as JarDiff recomputes the
+        // compressed size of each entry it copies)
+        if (rsrc.getPath().endsWith(".jar")) {
+            ByteArrayOutputStream diff = new ByteArrayOutputStream();
+            jarDiff(orsrc.getLocal(), rsrc.getLocal(), diff);
+            return new PatchEntry(rsrc.getPath() + Patcher.PATCH, diff.toByteArray(), null,
+                                  verbose ? "JarDiff: " + rsrc.getPath() : null);
+        }
+
+        // otherwise try a binary delta, which we use if it's smaller than the file
+        return binaryDiff(orsrc.getLocal(), rsrc, verbose);
     }
 
-    public static void main (String[] args)
+    /**
+     * Returns the digest of {@code rsrc}, which is computed only once per batch.
+     */
+    protected String digest (final Resource rsrc) throws IOException
     {
-        if (args.length < 2) {
-            System.err.println(
-                "Usage: Differ [-verbose] new_vers_dir old_vers_dir");
-            System.exit(255);
+        return memoize(_digests, rsrc.getLocal(), new Callable<String>() {
+            public String call () throws IOException {
+                int version = Digest.VERSION;
+                return rsrc.computeDigest(version, Digest.getMessageDigest(version), null);
+            }
+        });
+    }
+
+    protected void jarDiff (File ofile, File nfile, OutputStream out) throws IOException
+    {
+        JarDiff.createPatch(ofile.getPath(), nfile.getPath(), out, false, _minDeltaSize >= 0);
+    }
+
+    /**
+     * Creates a binary delta from {@code ofile} to the local file of {@code rsrc} if both are
+     * large enough to be worth diffing (see {@link #setMinDeltaSize}) and the delta is smaller than
+     * the new file.
+     *
+     * @return the delta entry, or null if the file should be included in full.
+     */
+    protected PatchEntry binaryDiff (File ofile, Resource rsrc, boolean verbose)
+        throws IOException
+    {
+        File nfile = rsrc.getLocal();
+        long nlength = nfile.length(), olength = ofile.length();
+        if (!deltaCandidate(olength, nlength)) {
+            return null;
+        }
+
+        byte[] delta = BinaryDiff.createPatch(Files.readAllBytes(ofile.toPath()),
+                                              Files.readAllBytes(nfile.toPath()), nlength - 1);
+        if (delta == null) {
+            return null;
+        }
+        return new PatchEntry(rsrc.getPath() + Patcher.DELTA, delta, null, !verbose ? null :
+                              "BinaryDiff: " + rsrc.getPath() + " (" + delta.length + " of " +
+                              nlength + " bytes)");
+    }
+
+    /**
+     * Returns true if files of the specified old and new lengths are worth (and can be) diffed by
+     * {@link #binaryDiff}.
+     */
+    protected boolean deltaCandidate (long olength, long nlength)
+    {
+        return _minDeltaSize >= 0 && nlength >= _minDeltaSize && olength >= _minDeltaSize &&
+            nlength <= MAX_DELTA_SIZE && olength <= MAX_DELTA_SIZE;
+    }
+
+    /**
+     * Creates a patch file entry with the specified name. Entries are stamped with a fixed time
+     * (rather than the current time) so that the same versions always yield the same patch.
+     */
+    protected static ZipEntry newEntry (String name)
+    {
+        ZipEntry entry = new ZipEntry(name);
+        entry.setTime(ENTRY_TIME);
+        return entry;
+    }
+
+    /**
+     * Writes {@code entry} to {@code jout} (and notes it on stdout if it was created verbosely).
+     */
+    protected void writeEntry (PatchEntry entry, ZipOutputStream jout) throws IOException
+    {
+        if (entry.note != null) {
+            System.out.println(entry.note);
+        }
+        if (entry.name == null) {
+            return;
         }
+        jout.putNextEntry(newEntry(entry.name));
+        if (entry.data != null) {
+            jout.write(entry.data);
+        } else if (entry.file != null) {
+            pipe(entry.file, jout);
+        }
+    }
+
+    /**
+     * Returns the value computed for {@code key} by {@code compute}, which is called only once per
+     * key (by the first thread to ask for it; others wait for its result).
+     */
+    protected static <K, V> V memoize (ConcurrentMap<K, Future<V>> cache, K key,
+                                       Callable<V> compute)
+        throws IOException
+    {
+        Future<V> result = cache.get(key);
+        if (result == null) {
+            FutureTask<V> task = new FutureTask<>(compute);
+            result = cache.putIfAbsent(key, task);
+            if (result == null) {
+                result = task;
+                task.run();
+            }
+        }
+        return await(result);
+    }
+
+    /**
+     * Waits for {@code result} to complete, rethrowing any exception thrown while computing it.
+     */
+    protected static <T> T await (Future<T> result) throws IOException
+    {
+        try {
+            return result.get();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while creating patch");
+        } catch (ExecutionException ee) {
+            Throwable cause = ee.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException)cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException)cause;
+            } else if (cause instanceof Error) {
+                throw (Error)cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    /** An entry to be written to a patch file, as determined by {@link #diffResource}. */
+    protected static class PatchEntry
+    {
+        /** The name of the entry, or null if no entry is needed (the resource is unchanged). */
+        public final String name;
+
+        /** The contents of the entry, or null if they are to be copied from {@link #file}. */
+        public final byte[] data;
+
+        /** The file whose contents make up the entry, if {@link #data} is null. */
+        public final File file;
+
+        /** A description of the entry to be reported in verbose mode, or null. */
+        public final String note;
+
+        public PatchEntry (String name, byte[] data, File file, String note) {
+            this.name = name;
+            this.data = data;
+            this.file = file;
+            this.note = note;
+        }
+    }
+
+    public static void main (String[] args)
+    {
         Differ differ = new Differ();
         boolean verbose = false;
         int aidx = 0;
-        if ("-verbose".equals(args[0])) {
-            verbose = true;
-            aidx++;
+        try {
+            for (; aidx < args.length && args[aidx].startsWith("-"); aidx++) {
+                if ("-verbose".equals(args[aidx])) {
+                    verbose = true;
+                } else if ("-mindelta".equals(args[aidx]) && aidx + 1 < args.length) {
+                    differ.setMinDeltaSize(Long.parseLong(args[++aidx]));
+                } else if ("-threads".equals(args[aidx]) && aidx + 1 < args.length) {
+                    differ.setThreads(Integer.parseInt(args[++aidx]));
+                } else {
+                    aidx = args.length;
+                }
+            }
+        } catch (NumberFormatException nfe) {
+            aidx = args.length;
+        }
+        if (args.length - aidx < 2) {
+            System.err.println(
+                "Usage: Differ [-verbose] [-mindelta bytes] [-threads count] " +
+                "new_vers_dir old_vers_dir [old_vers_dir ...]");
+            System.exit(255);
         }
         try {
-            differ.createDiff(new File(args[aidx++]),
-                              new File(args[aidx++]), verbose);
+            File nvdir = new File(args[aidx++]);
+            List<File> ovdirs = new ArrayList<>();
+            for (; aidx < args.length; aidx++) {
+                ovdirs.add(new File(args[aidx]));
+            }
+            differ.createDiffs(nvdir, ovdirs, verbose);
         } catch (IOException ioe) {
             System.err.println("Error: " + ioe.getMessage());
             System.exit(255);
@@ -226,4 +594,26 @@ public class Differ
             StreamUtil.copy(fin, out);
         }
     }
+
+    protected long _minDeltaSize = DEFAULT_MIN_DELTA_SIZE;
+    protected int _threads = Runtime.getRuntime().availableProcessors();
+    protected long _memoryBudget = Runtime.getRuntime().maxMemory() / 2;
+
+    /**
+     * Work shared by the patches created by a call to {@link #createDiffs}: resource digests
+     * (keyed by file), the number of patches which have yet to use each diff which is needed by
+     * several, and those diffs themselves while they are still needed (keyed by {@link #diffKey}).
+     */
+    protected final ConcurrentMap<File, Future<String>> _digests = new ConcurrentHashMap<>();
+    protected final ConcurrentMap<String, AtomicInteger> _uses = new ConcurrentHashMap<>();
+    protected final ConcurrentMap<String, Future<PatchEntry>> _diffs = new ConcurrentHashMap<>();
+
+    /** The default size below which changed files are included in full. */
+    protected static final long DEFAULT_MIN_DELTA_SIZE = 64 * 1024L;
+
+    /** The time with which patch file entries are stamped: the start of the DOS epoch. */
+    protected static final long ENTRY_TIME = new GregorianCalendar(1980, 0, 1).getTimeInMillis();
+
+    /** The largest file we can diff, as both versions are read into arrays. */
+    protected static final long MAX_DELTA_SIZE = Integer.MAX_VALUE - 8;
 }
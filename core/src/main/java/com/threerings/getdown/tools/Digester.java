@@ -16,9 +16,13 @@ import java.security.PrivateKey;
 import java.security.Signature;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import com.threerings.getdown.data.Application;
+import com.threerings.getdown.data.ChunkTree;
 import com.threerings.getdown.data.Digest;
 import com.threerings.getdown.data.EnvConfig;
 import com.threerings.getdown.data.Resource;
@@ -38,15 +42,23 @@ public class Digester
     public static void main (String[] args)
         throws IOException, GeneralSecurityException
     {
+        // an optional leading "-incremental stat_cache" enables incremental digesting
+        File statCache = null;
+        if (args.length > 1 && args[0].equals("-incremental")) {
+            statCache = new File(args[1]);
+            args = Arrays.copyOfRange(args, 2, args.length);
+        }
+
         switch (args.length) {
         case 1:
-            createDigests(new File(args[0]), null, null, null);
+            createDigests(new File(args[0]), statCache, null, null, null);
             break;
         case 4:
-            createDigests(new File(args[0]), new File(args[1]), args[2], args[3]);
+            createDigests(new File(args[0]), statCache, new File(args[1]), args[2], args[3]);
             break;
         default:
-            System.err.println("Usage: Digester app_dir [keystore_path password alias]");
+            System.err.println(
+                "Usage: Digester [-incremental stat_cache] app_dir [keystore_path password alias]");
             System.exit(255);
         }
     }
@@ -57,9 +69,58 @@ public class Digester
     public static void createDigests (File appdir, File keystore, String password, String alias)
         throws IOException, GeneralSecurityException
     {
-        for (int version = 1; version <= Digest.VERSION; version++) {
-            createDigest(version, appdir);
-            if (keystore != null) {
+        createDigests(appdir, null, keystore, password, alias);
+    }
+
+    /**
+     * Creates digest file(s) and optionally signs them if {@code keystore} is not null.
+     *
+     * @param statCache if not null, the file in which the attributes of the resources are
+     * recorded between runs. Resources which are unchanged since the previous run have their
+     * digests copied from the previous digest files rather than being rehashed.
+     */
+    public static void createDigests (File appdir, File statCache, File keystore,
+                                      String password, String alias)
+        throws IOException, GeneralSecurityException
+    {
+        List<Resource> rsrcs = loadResources(appdir);
+
+        // note the attributes of the resources before we hash them
+        Map<Resource, StatCache.Stat> stats = new HashMap<>();
+        for (Resource rsrc : rsrcs) {
+            stats.put(rsrc, StatCache.stat(rsrc.getLocal()));
+        }
+
+        StatCache cache = (statCache == null) ? null : new StatCache(statCache);
+        Map<Resource, String[]> known = new HashMap<>();
+        if (cache != null) {
+            Digest[] previous = readDigests(appdir);
+            if (previous != null && cache.describes(metaDigests(previous))) {
+                for (Resource rsrc : rsrcs) {
+                    if (cache.isUnchanged(rsrc.getPath(), stats.get(rsrc))) {
+                        String[] values = Digest.getValues(previous, rsrc);
+                        if (values != null && hasChunkTree(rsrc, values)) {
+                            known.put(rsrc, values);
+                        }
+                    }
+                }
+            }
+            System.out.println("Reusing digests of " + known.size() + " of " + rsrcs.size() +
+                               " resources.");
+        }
+
+        System.out.println("Generating digest files in '" + appdir + "'...");
+        Digest.createDigests(rsrcs, appdir, known);
+
+        if (cache != null) {
+            for (Resource rsrc : rsrcs) {
+                cache.record(rsrc.getPath(), stats.get(rsrc), StatCache.stat(rsrc.getLocal()));
+            }
+            cache.save(metaDigests(readDigests(appdir)));
+        }
+
+        if (keystore != null) {
+            for (int version = 1; version <= Digest.LATEST_VERSION; version++) {
                 signDigest(version, appdir, keystore, password, alias);
             }
         }
@@ -74,6 +135,18 @@ public class Digester
         File target = new File(appdir, Digest.digestFile(version));
         System.out.println("Generating digest file '" + target + "'...");
 
+        List<Resource> rsrcs = loadResources(appdir);
+        // now generate the digest file
+        Digest.createDigest(version, rsrcs, target);
+    }
+
+    /**
+     * Parses the application in the specified directory and returns the resources which are
+     * listed in its digest files.
+     */
+    protected static List<Resource> loadResources (File appdir)
+        throws IOException
+    {
         // create our application and instruct it to parse its business
         EnvConfig envc = new EnvConfig(appdir);
         Application app = new Application(envc);
@@ -92,9 +165,57 @@ public class Digester
 
         // reinit app just to verify that getdown.txt has valid format
         app.init(true);
+        return rsrcs;
+    }
 
-        // now generate the digest file
-        Digest.createDigest(version, rsrcs, target);
+    /**
+     * Reads the digest files of every version in the specified application directory, returning
+     * them indexed by version, or null if any of them is missing or invalid.
+     */
+    protected static Digest[] readDigests (File appdir)
+    {
+        Digest[] digests = new Digest[Digest.LATEST_VERSION+1];
+        for (int version = 1; version <= Digest.LATEST_VERSION; version++) {
+            if (!new File(appdir, Digest.digestFile(version)).exists()) {
+                return null;
+            }
+            try {
+                // digest files contain no comments, but their paths may contain '#'
+                digests[version] = new Digest(appdir, version, true);
+            } catch (IOException ioe) {
+                System.err.println("Ignoring invalid " + Digest.digestFile(version) + ": " + ioe);
+                return null;
+            }
+        }
+        return digests;
+    }
+
+    protected static String[] metaDigests (Digest[] digests)
+    {
+        String[] metas = new String[Digest.LATEST_VERSION];
+        for (int version = 1; version <= Digest.LATEST_VERSION; version++) {
+            metas[version-1] = (digests == null) ? "-" : digests[version].getMetaDigest();
+        }
+        return metas;
+    }
+
+    /**
+     * Returns true if the chunk tree sidecar of {@code rsrc} is in place and matches the root in
+     * its previous digest {@code values}, or if it is not large enough to have one.
+     */
+    protected static boolean hasChunkTree (Resource rsrc, String[] values)
+    {
+        String[] bits = values[Digest.CHUNKED_VERSION].split(" ");
+        if (bits.length < 3) {
+            return rsrc.getLocal().length() < ChunkTree.CHUNKED_THRESHOLD;
+        }
+        File sidecar = new File(rsrc.getLocal().getPath() + ChunkTree.SUFFIX);
+        try {
+            return sidecar.exists() &&
+                ChunkTree.read(sidecar, rsrc.getLocal().length()).root().equals(bits[2]);
+        } catch (IOException ioe) {
+            return false;
+        }
     }
 
     /**
@@ -53,6 +53,8 @@ import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 import java.util.zip.ZipOutputStream;
 
+import com.threerings.getdown.util.StreamUtil;
+
 import static java.nio.charset.StandardCharsets.UTF_8;
 
 /**
@@ -67,8 +69,11 @@ import static java.nio.charset.StandardCharsets.UTF_8;
 public class JarDiff implements JarDiffCodes
 {
     private static final int DEFAULT_READ_SIZE = 2048;
-    private static final byte[] newBytes = new byte[DEFAULT_READ_SIZE];
-    private static final byte[] oldBytes = new byte[DEFAULT_READ_SIZE];
+
+    // Entries smaller than this are not worth diffing, and those larger than this are not diffed
+    // so that patchers, which apply deltas in memory, need not hold huge entries in memory.
+    private static final long MIN_DELTA_SIZE = 256;
+    private static final long MAX_DELTA_SIZE = 32 * 1024 * 1024;
 
     // The JARDiff.java is the stand-alone jardiff.jar tool. Thus, we do not depend on Globals.java
     // and other stuff here. Instead, we use an explicit _debug flag.
@@ -79,6 +84,19 @@ public class JarDiff implements JarDiffCodes
      */
     public static void createPatch (String oldPath, String newPath,
                                     OutputStream os, boolean minimal) throws IOException
+    {
+        createPatch(oldPath, newPath, os, minimal, false);
+    }
+
+    /**
+     * Creates a patch from the two passed in files, writing the result to {@code os}.
+     *
+     * @param deltas if true, modified entries are stored as binary deltas against the old entry
+     * when that is smaller than the new entry. Such patches can only be applied by patchers that
+     * understand {@link #DELTA_COMMAND}.
+     */
+    public static void createPatch (String oldPath, String newPath, OutputStream os,
+                                    boolean minimal, boolean deltas) throws IOException
     {
         try (ZipFile2 oldArchive = new ZipFile2(oldPath);
              ZipFile2 newArchive = new ZipFile2(newPath)) {
@@ -184,13 +202,36 @@ public class JarDiff implements JarDiffCodes
                 }
             }
 
+            // modified entries which also exist under the same name in the old archive may be
+            // shipped as binary deltas against the old entry
+            Map<String,byte[]> deltaMap = new HashMap<>();
+            if (deltas) {
+                for (String newName : newEntries) {
+                    byte[] delta = createDelta(oldArchive, newArchive, newName);
+                    if (delta != null) {
+                        deltaMap.put(newName, delta);
+                    }
+                }
+            }
+
             ZipOutputStream jos = new ZipOutputStream(os);
 
-            // Write out all the MOVEs and REMOVEs
-            createIndex(jos, deleted, moved);
+            // Write out all the MOVEs, REMOVEs and DELTAs
+            createIndex(jos, deleted, moved, deltaMap.keySet(), new File(newPath).lastModified());
 
             // Put in New and Modified entries
             for (String newName : newEntries) {
+                byte[] delta = deltaMap.get(newName);
+                if (delta != null) {
+                    if (_debug) {
+                        System.out.println("Delta File: " + newName);
+                    }
+                    ZipEntry entry = new ZipEntry(newName);
+                    entry.setTime(newArchive.getEntryByName(newName).getTime());
+                    jos.putNextEntry(entry);
+                    jos.write(delta);
+                    continue;
+                }
                 if (_debug) {
                     System.out.println("New File: " + newName);
                 }
@@ -202,17 +243,43 @@ public class JarDiff implements JarDiffCodes
         }
     }
 
+    /**
+     * Returns a binary delta from the old entry with the specified name to the new one, or null
+     * if there is no such old entry, either entry is too small to be worth diffing or too large
+     * to be patched in memory, or the delta is no smaller than the new entry.
+     */
+    private static byte[] createDelta (ZipFile2 oldArchive, ZipFile2 newArchive, String name)
+        throws IOException
+    {
+        ZipEntry oldEntry = oldArchive.getEntryByName(name);
+        ZipEntry newEntry = newArchive.getEntryByName(name);
+        if (oldEntry == null || oldEntry.isDirectory() ||
+            oldEntry.getSize() < MIN_DELTA_SIZE || oldEntry.getSize() > MAX_DELTA_SIZE ||
+            newEntry.getSize() < MIN_DELTA_SIZE || newEntry.getSize() > MAX_DELTA_SIZE) {
+            return null;
+        }
+        byte[] oldData, newData;
+        try (InputStream in = oldArchive.getArchive().getInputStream(oldEntry)) {
+            oldData = StreamUtil.toByteArray(in);
+        }
+        try (InputStream in = newArchive.getArchive().getInputStream(newEntry)) {
+            newData = StreamUtil.toByteArray(in);
+        }
+        return BinaryDiff.createPatch(oldData, newData, newData.length - 1);
+    }
+
     /**
      * Writes the index file out to {@code jos}.
      * {@code oldEntries} gives the names of the files that were removed,
-     * {@code movedMap} maps from the new name to the old name.
+     * {@code movedMap} maps from the new name to the old name,
+     * {@code deltas} gives the names of the entries which are binary deltas.
      */
     private static void createIndex (ZipOutputStream jos, List<String> oldEntries,
-                                     Map<String,String> movedMap)
+                                     Map<String,String> movedMap, Set<String> deltas, long time)
         throws IOException
     {
         StringWriter writer = new StringWriter();
-        writer.write(VERSION_HEADER);
+        writer.write(deltas.isEmpty() ? VERSION_HEADER : DELTA_VERSION_HEADER);
         writer.write("\r\n");
 
         // Write out entries that have been removed
@@ -234,7 +301,19 @@ public class JarDiff implements JarDiffCodes
             writer.write("\r\n");
         }
 
-        jos.putNextEntry(new ZipEntry(INDEX_NAME));
+        // And those that are deltas
+        for (String name : deltas) {
+            writer.write(DELTA_COMMAND);
+            writer.write(" ");
+            writeEscapedString(writer, name);
+            writer.write("\r\n");
+        }
+
+        // the index is stamped with the new archive's time (rather than the current time) so that
+        // the same archives always yield the same jardiff
+        ZipEntry index = new ZipEntry(INDEX_NAME);
+        index.setTime(time);
+        jos.putNextEntry(index);
         byte[] bytes = writer.toString().getBytes(UTF_8);
         jos.write(bytes, 0, bytes.length);
     }
@@ -271,8 +350,15 @@ public class JarDiff implements JarDiffCodes
     private static void writeEntry (ZipOutputStream jos, ZipEntry entry, ZipFile2 file)
         throws IOException
     {
+        // buffers are allocated per call (not shared) so that patches can be created concurrently
+        byte[] newBytes = new byte[DEFAULT_READ_SIZE];
+        // we write a copy of the entry without its compressed size: our deflater may well compress
+        // the entry differently than did whatever created the archive, and ZipOutputStream would
+        // choke on the mismatch (the size and CRC still apply, and are checked as we write)
+        ZipEntry copy = new ZipEntry(entry);
+        copy.setCompressedSize(-1);
         try (InputStream data = file.getArchive().getInputStream(entry)) {
-            jos.putNextEntry(entry);
+            jos.putNextEntry(copy);
             int size = data.read(newBytes);
             while (size != -1) {
                 jos.write(newBytes, 0, size);
@@ -314,6 +400,8 @@ public class JarDiff implements JarDiffCodes
          * Returns true if the two InputStreams differ.
          */
         private static boolean differs (InputStream oldIS, InputStream newIS) throws IOException {
+            byte[] newBytes = new byte[DEFAULT_READ_SIZE];
+            byte[] oldBytes = new byte[DEFAULT_READ_SIZE];
             int newSize = 0;
             int oldSize;
             int total = 0;
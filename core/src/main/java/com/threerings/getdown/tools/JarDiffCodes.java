@@ -16,9 +16,17 @@ public interface JarDiffCodes
     /** The version header used in the control file. */
     String VERSION_HEADER = "version 1.0";
 
+    /** The version header used in the control file of jardiffs which contain {@link
+      * #DELTA_COMMAND}s, which older patchers do not understand. */
+    String DELTA_VERSION_HEADER = "version 1.1";
+
     /** A jardiff command to remove an entry. */
     String REMOVE_COMMAND = "remove";
 
     /** A jardiff command to move an entry. */
     String MOVE_COMMAND = "move";
+
+    /** A jardiff command noting that an entry in the jardiff is not the new entry itself but a
+      * binary delta (see {@link BinaryDiff}) to be applied to the old entry of the same name. */
+    String DELTA_COMMAND = "delta";
 }
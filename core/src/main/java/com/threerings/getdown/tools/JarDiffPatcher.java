@@ -6,6 +6,7 @@
 package com.threerings.getdown.tools;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
@@ -22,9 +23,11 @@ import java.util.Set;
 import java.util.jar.JarOutputStream;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
 import java.util.zip.ZipOutputStream;
 
 import com.threerings.getdown.util.ProgressObserver;
+import com.threerings.getdown.util.StreamUtil;
 import static java.nio.charset.StandardCharsets.UTF_8;
 
 /**
@@ -46,13 +49,39 @@ public class JarDiffPatcher implements JarDiffCodes
     public void patchJar (String jarPath, String diffPath, File target, ProgressObserver observer)
         throws IOException
     {
-        File oldFile = new File(jarPath), diffFile = new File(diffPath);
+        try (InputStream diff = new FileInputStream(diffPath)) {
+            patchJar(jarPath, diff, target, observer);
+        }
+    }
+
+    /**
+     * Patches the specified jar file using the jardiff read from {@code diff} and writing the new
+     * jar file to the supplied target. The jardiff is read as a stream, so it can be read straight
+     * out of the patch file which contains it, but its index must be its first entry (as it is in
+     * jardiffs created by {@link JarDiff}).
+     *
+     * @param jarPath the path to the original jar file.
+     * @param diff the stream from which the jardiff is read (which is not closed).
+     * @param target the output stream to which we will write the patched jar.
+     * @param observer an optional observer to be notified of patching progress.
+     *
+     * @throws IOException if any problem occurs during patching.
+     */
+    public void patchJar (String jarPath, InputStream diff, File target, ProgressObserver observer)
+        throws IOException
+    {
+        File oldFile = new File(jarPath);
+        ZipInputStream jarDiff = new ZipInputStream(diff);
         try (ZipFile oldJar = new ZipFile(oldFile);
-             ZipFile jarDiff = new ZipFile(diffFile);
              ZipOutputStream jos = makeOutputStream(oldFile, target)) {
+            ZipEntry index = jarDiff.getNextEntry();
+            if (index == null || !INDEX_NAME.equals(index.getName())) {
+                throw new IOException("error.noindex");
+            }
             Set<String> ignoreSet = new HashSet<>();
             Map<String, String> renameMap = new HashMap<>();
-            determineNameMapping(jarDiff, ignoreSet, renameMap);
+            Set<String> deltaSet = new HashSet<>();
+            determineNameMapping(jarDiff, ignoreSet, renameMap, deltaSet);
 
             // get all keys in renameMap
             String[] keys = renameMap.keySet().toArray(new String[renameMap.size()]);
@@ -70,8 +99,9 @@ public class JarDiffPatcher implements JarDiffCodes
             // counter for each loop that do the actual writes to the output file
             // since oldjarNames.size() changes in the first two loop below, we
             // need to adjust the size accordingly also when oldjarNames.size()
-            // changes
-            double size = oldjarNames.size() + keys.length + jarDiff.size();
+            // changes; we don't know how many entries the jardiff has until we've
+            // read them all, so each is added to the size as it is read
+            double size = oldjarNames.size() + keys.length;
             double currentEntry = 0;
 
             // Handle all remove commands
@@ -79,29 +109,24 @@ public class JarDiffPatcher implements JarDiffCodes
             size -= ignoreSet.size();
 
             // Add content from JARDiff
-            Enumeration<? extends ZipEntry> entries = jarDiff.entries();
-            if (entries != null) {
-                while (entries.hasMoreElements()) {
-                    ZipEntry entry = entries.nextElement();
-                    if (!INDEX_NAME.equals(entry.getName())) {
-                        updateObserver(observer, currentEntry, size);
-                        currentEntry++;
-                        writeEntry(jos, entry, jarDiff);
-
-                        // Remove entry from oldjarNames since no implicit move is
-                        // needed
-                        boolean wasInOld = oldjarNames.remove(entry.getName());
-
-                        // Update progress counters. If it was in old, we do not
-                        // need an implicit move, so adjust total size.
-                        if (wasInOld) {
-                            size--;
-                        }
+            for (ZipEntry entry; (entry = jarDiff.getNextEntry()) != null; ) {
+                size++;
+                updateObserver(observer, currentEntry, size);
+                currentEntry++;
+                if (deltaSet.contains(entry.getName())) {
+                    writeDelta(jos, entry, jarDiff, oldJar);
+                } else {
+                    writeEntry(jos, entry, jarDiff);
+                }
 
-                    } else {
-                        // no write is done, decrement size
-                        size--;
-                    }
+                // Remove entry from oldjarNames since no implicit move is
+                // needed
+                boolean wasInOld = oldjarNames.remove(entry.getName());
+
+                // Update progress counters. If it was in old, we do not
+                // need an implicit move, so adjust total size.
+                if (wasInOld) {
+                    size--;
                 }
             }
 
@@ -166,19 +191,18 @@ public class JarDiffPatcher implements JarDiffCodes
         }
     }
 
+    /**
+     * Reads the jardiff index from {@code is} (which is read to its end but not closed).
+     */
     protected void determineNameMapping (
-        ZipFile jarDiff, Set<String> ignoreSet, Map<String, String> renameMap)
+        InputStream is, Set<String> ignoreSet, Map<String, String> renameMap,
+        Set<String> deltaSet)
         throws IOException
     {
-        InputStream is = jarDiff.getInputStream(jarDiff.getEntry(INDEX_NAME));
-        if (is == null) {
-            throw new IOException("error.noindex");
-        }
-
         LineNumberReader indexReader =
             new LineNumberReader(new InputStreamReader(is, UTF_8));
         String line = indexReader.readLine();
-        if (line == null || !line.equals(VERSION_HEADER)) {
+        if (line == null || !(line.equals(VERSION_HEADER) || line.equals(DELTA_VERSION_HEADER))) {
             throw new IOException("jardiff.error.badheader: " + line);
         }
 
@@ -205,6 +229,14 @@ public class JarDiffPatcher implements JarDiffCodes
                     throw new IOException("error.badmove: " + line);
                 }
 
+            } else if (line.startsWith(DELTA_COMMAND)) {
+                List<String> sub = getSubpaths(
+                    line.substring(DELTA_COMMAND.length()));
+                if (sub.size() != 1) {
+                    throw new IOException("error.baddelta: " + line);
+                }
+                deltaSet.add(sub.get(0));
+
             } else if (line.length() > 0) {
                 throw new IOException("error.badcommand: " + line);
             }
@@ -265,6 +297,26 @@ public class JarDiffPatcher implements JarDiffCodes
         }
     }
 
+    /**
+     * Writes the entry obtained by applying the binary delta in {@code entry} (read from {@code
+     * delta}) to the entry of the same name in {@code oldJar}.
+     */
+    protected void writeDelta (ZipOutputStream jos, ZipEntry entry, InputStream delta,
+                               ZipFile oldJar)
+        throws IOException
+    {
+        ZipEntry oldEntry = oldJar.getEntry(entry.getName());
+        if (oldEntry == null) {
+            throw new IOException("error.baddelta: " + entry.getName());
+        }
+        byte[] oldData;
+        try (InputStream in = oldJar.getInputStream(oldEntry)) {
+            oldData = StreamUtil.toByteArray(in);
+        }
+        jos.putNextEntry(new ZipEntry(entry.getName()));
+        new BinaryDiffPatcher().patch(oldData, delta, jos);
+    }
+
     protected void writeEntry (ZipOutputStream jos, ZipEntry entry, InputStream data)
         throws IOException
     {
@@ -15,7 +15,6 @@ import java.util.zip.ZipFile;
 
 import com.threerings.getdown.util.FileUtil;
 import com.threerings.getdown.util.ProgressObserver;
-import com.threerings.getdown.util.StreamUtil;
 import static com.threerings.getdown.Log.log;
 
 /**
@@ -32,6 +31,10 @@ public class Patcher
     /** A suffix appended to file names to indicate that a file should be patched. */
     public static final String PATCH = ".patch";
 
+    /** A suffix appended to file names to indicate that a file should be patched with a binary
+      * delta (see {@link BinaryDiff}). */
+    public static final String DELTA = ".delta";
+
     /** A suffix appended to file names to indicate that a file should be deleted. */
     public static final String DELETE = ".delete";
 
@@ -70,6 +73,11 @@ public class Patcher
                     log.info("Patching " + path + "...");
                     patchFile(file, entry, appdir, path);
 
+                } else if (path.endsWith(DELTA)) {
+                    path = strip(path, DELTA);
+                    log.info("Patching " + path + "...");
+                    deltaFile(file, entry, appdir, path);
+
                 } else if (path.endsWith(DELETE)) {
                     path = strip(path, DELETE);
                     log.info("Removing " + path + "...");
@@ -122,50 +130,62 @@ public class Patcher
     }
 
     protected void patchFile (ZipFile file, ZipEntry entry, File appdir, String path)
+    {
+        // the jardiff is read straight out of the patch file
+        replaceFile(file, entry, appdir, path, new Applier() {
+            public void apply (File otarget, InputStream in, File target, ProgressObserver obs)
+                throws IOException {
+                new JarDiffPatcher().patchJar(otarget.getPath(), in, target, obs);
+            }
+        });
+    }
+
+    protected void deltaFile (ZipFile file, ZipEntry entry, File appdir, String path)
+    {
+        // the delta is applied straight from the patch file, and reads only the parts of the old
+        // file that it needs
+        replaceFile(file, entry, appdir, path, new Applier() {
+            public void apply (File otarget, InputStream in, File target, ProgressObserver obs)
+                throws IOException {
+                new BinaryDiffPatcher().patch(otarget, in, target, obs);
+            }
+        });
+    }
+
+    /**
+     * Replaces the file at {@code path} with the result of applying the diff in the supplied patch
+     * file entry to it. The current file is moved aside to {@code .old} while the diff is applied,
+     * and removed afterwards.
+     */
+    protected void replaceFile (ZipFile file, ZipEntry entry, File appdir, String path,
+                                Applier applier)
     {
         File target = new File(appdir, path);
-        File patch = new File(appdir, entry.getName());
         File otarget = new File(appdir, path + ".old");
-        JarDiffPatcher patcher = null;
 
         // make sure no stale old target is lying around to mess us up
         FileUtil.deleteHarder(otarget);
 
-        // pipe the contents of the patch into a file
-        try (InputStream in = file.getInputStream(entry);
-             FileOutputStream fout = new FileOutputStream(patch)) {
-
-            StreamUtil.copy(in, fout);
-            StreamUtil.close(fout);
+        // move the current version of the file to .old
+        if (!FileUtil.renameTo(target, otarget)) {
+            log.warning("Failed to .oldify '" + target + "'.");
+            return;
+        }
 
-            // move the current version of the jar to .old
-            if (!FileUtil.renameTo(target, otarget)) {
-                log.warning("Failed to .oldify '" + target + "'.");
-                return;
+        // we'll need this to pass progress along to our observer
+        final long elength = entry.getCompressedSize();
+        ProgressObserver obs = new ProgressObserver() {
+            public void progress (int percent) {
+                updateProgress((int)(percent * elength / 100));
             }
+        };
 
-            // we'll need this to pass progress along to our observer
-            final long elength = entry.getCompressedSize();
-            ProgressObserver obs = new ProgressObserver() {
-                public void progress (int percent) {
-                    updateProgress((int)(percent * elength / 100));
-                }
-            };
-
-            // now apply the patch to create the new target file
-            patcher = new JarDiffPatcher();
-            patcher.patchJar(otarget.getPath(), patch.getPath(), target, obs);
-
+        // now apply the diff to create the new target file
+        try (InputStream in = file.getInputStream(entry)) {
+            applier.apply(otarget, in, target, obs);
         } catch (IOException ioe) {
-            if (patcher == null) {
-                log.warning("Failed to write patch file '" + patch + "': " + ioe);
-            } else {
-                log.warning("Error patching '" + target + "': " + ioe);
-            }
-
+            log.warning("Error patching '" + target + "': " + ioe);
         } finally {
-            // clean up our temporary files
-            FileUtil.deleteHarder(patch);
             FileUtil.deleteHarder(otarget);
         }
     }
@@ -193,6 +213,13 @@ public class Patcher
         }
     }
 
+    /** Applies one kind of diff (read from {@code in}) to an old file to create a new one. */
+    protected interface Applier
+    {
+        void apply (File otarget, InputStream in, File target, ProgressObserver obs)
+            throws IOException;
+    }
+
     protected ProgressObserver _obs;
     protected long _complete, _plength;
     protected byte[] _buffer;
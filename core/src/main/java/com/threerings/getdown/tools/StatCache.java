@@ -0,0 +1,165 @@
+//
+// Getdown - application installer, patcher and launcher
+// Copyright (C) 2004-2018 Getdown authors
+// https://github.com/threerings/getdown/blob/master/LICENSE
+
+package com.threerings.getdown.tools;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.threerings.getdown.util.FileUtil;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Records the size, modification time and (where the platform provides one) file key of each
+ * resource as of the last time the {@link Digester} created digest files. A later run uses it to
+ * determine which resources are unchanged since, and takes their digests from the previous digest
+ * files rather than rehashing them. The cache also records the digests of those digest files, so
+ * that it is ignored if they have since been replaced by some other means.
+ */
+public class StatCache
+{
+    /** The attributes of a file at some point in time. */
+    public static class Stat
+    {
+        public final long size, modified;
+        public final String fileKey;
+
+        public Stat (long size, long modified, String fileKey) {
+            this.size = size;
+            this.modified = modified;
+            this.fileKey = fileKey;
+        }
+
+        public boolean matches (Stat other) {
+            return other != null && size == other.size && modified == other.modified &&
+                fileKey.equals(other.fileKey);
+        }
+    }
+
+    /**
+     * Returns the current attributes of {@code file}.
+     */
+    public static Stat stat (File file) throws IOException
+    {
+        BasicFileAttributes attrs = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+        Object fileKey = attrs.fileKey();
+        return new Stat(attrs.size(), attrs.lastModifiedTime().toMillis(),
+                        (fileKey == null) ? "-" : fileKey.toString().replace('\t', ' '));
+    }
+
+    /**
+     * Creates a stat cache which is loaded from, and saved to, {@code file}.
+     */
+    public StatCache (File file)
+    {
+        _file = file;
+        if (file.exists()) {
+            load();
+        }
+    }
+
+    /**
+     * Returns true if the cache was saved along with digest files having the supplied digests
+     * (i.e. those files are the ones the cache describes).
+     */
+    public boolean describes (String[] metaDigests)
+    {
+        return _metaDigests != null && Arrays.equals(_metaDigests, metaDigests);
+    }
+
+    /**
+     * Returns true if the resource with the specified path was last digested when it had the
+     * attributes {@code stat}.
+     */
+    public boolean isUnchanged (String path, Stat stat)
+    {
+        return stat.matches(_stats.get(path));
+    }
+
+    /**
+     * Records the attributes of the resource with the specified path as of the current run.
+     * Nothing is recorded if the resource was modified while it was being digested ({@code
+     * before} and {@code after} differ), or so recently that a further modification might go
+     * unnoticed, in which case it will be hashed again in the next run.
+     */
+    public void record (String path, Stat before, Stat after)
+    {
+        if (before.matches(after) && System.currentTimeMillis() - before.modified > RACY_MILLIS) {
+            _current.put(path, before);
+        }
+    }
+
+    /**
+     * Replaces the cache file with the attributes recorded in the current run, noting that they
+     * describe the digest files with the supplied digests.
+     */
+    public void save (String[] metaDigests) throws IOException
+    {
+        File temp = new File(_file.getPath() + "_new");
+        try (PrintWriter out = new PrintWriter(
+                 new OutputStreamWriter(new FileOutputStream(temp), UTF_8))) {
+            out.println(HEADER);
+            StringBuilder digests = new StringBuilder();
+            for (String digest : metaDigests) {
+                digests.append(digests.length() == 0 ? "" : " ").append(digest);
+            }
+            out.println(digests);
+            for (Map.Entry<String, Stat> entry : _current.entrySet()) {
+                Stat stat = entry.getValue();
+                out.println(entry.getKey() + "\t" + stat.size + "\t" + stat.modified + "\t" +
+                            stat.fileKey);
+            }
+        }
+        if (!FileUtil.renameTo(temp, _file)) {
+            throw new IOException("Failed to replace stat cache " + _file);
+        }
+    }
+
+    protected void load ()
+    {
+        try (BufferedReader in = new BufferedReader(
+                 new InputStreamReader(new FileInputStream(_file), UTF_8))) {
+            String line = in.readLine();
+            if (!HEADER.equals(line) || (line = in.readLine()) == null) {
+                System.err.println("Ignoring stat cache in unknown format: " + _file);
+                return;
+            }
+            _metaDigests = line.split(" ");
+            while ((line = in.readLine()) != null) {
+                String[] bits = line.split("\t");
+                if (bits.length != 4) {
+                    continue;
+                }
+                try {
+                    _stats.put(bits[0], new Stat(
+                        Long.parseLong(bits[1]), Long.parseLong(bits[2]), bits[3]));
+                } catch (NumberFormatException nfe) {
+                    // skip it, we'll just rehash the resource
+                }
+            }
+        } catch (IOException ioe) {
+            System.err.println("Failed to read stat cache " + _file + ": " + ioe);
+            _metaDigests = null;
+            _stats.clear();
+        }
+    }
+
+    protected final File _file;
+    protected String[] _metaDigests;
+    protected final Map<String, Stat> _stats = new HashMap<>();
+    protected final Map<String, Stat> _current = new HashMap<>();
+
+    /** Identifies the format of the cache file. */
+    protected static final String HEADER = "# getdown digester stat cache 1";
+
+    /** Files modified this recently are not recorded: a further modification made within the
+      * resolution of the file system's timestamps would go unnoticed. */
+    protected static final long RACY_MILLIS = 3000L;
+}
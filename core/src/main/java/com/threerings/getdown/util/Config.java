@@ -262,6 +262,14 @@ public class Config
         return Boolean.parseBoolean(getString(name));
     }
 
+    /**
+     * Returns the specified config value as a boolean, or {@code def} if no value is provided.
+     */
+    public boolean getBoolean (String name, boolean def) {
+        String value = getString(name);
+        return value == null ? def : Boolean.parseBoolean(value);
+    }
+
     /**
      * Returns the specified config value as an enum value. The string value of the config is
      * converted to all upper case and then turned into an enum via {@link Enum#valueOf}.
@@ -155,6 +155,29 @@ public final class StringUtil {
         return (bytes == null) ? "" : hexlate(bytes, bytes.length);
     }
 
+    /**
+     * Turns a string generated by {@link #hexlate} back into the bytes from which it was
+     * generated.
+     *
+     * @throws IllegalArgumentException if the string is not valid hex.
+     */
+    public static byte[] unhexlate (String hex)
+    {
+        if (hex.length() % 2 != 0) {
+            throw new IllegalArgumentException("Odd length hex string: " + hex);
+        }
+        byte[] bytes = new byte[hex.length()/2];
+        for (int i = 0; i < bytes.length; i++) {
+            int hi = Character.digit(hex.charAt(2*i), 16);
+            int lo = Character.digit(hex.charAt(2*i+1), 16);
+            if (hi < 0 || lo < 0) {
+                throw new IllegalArgumentException("Invalid hex string: " + hex);
+            }
+            bytes[i] = (byte)(hi*16 + lo);
+        }
+        return bytes;
+    }
+
     /**
      * Joins an array of strings (or objects which will be converted to strings) into a single
      * string separated by commas.
@@ -5,16 +5,29 @@
 
 package com.threerings.getdown.data;
 
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.PrintWriter;
 import java.io.StringReader;
 import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
 
 import org.junit.*;
+import org.junit.rules.TemporaryFolder;
 import static org.junit.Assert.*;
 
+import com.threerings.getdown.tools.Digester;
 import com.threerings.getdown.util.Config;
+import com.threerings.getdown.util.ProgressObserver;
 
 public class ApplicationTest {
 
@@ -63,6 +76,95 @@ public class ApplicationTest {
         assertEquals(new URL(expectAppbase), app.getRemoteURL(""));
     }
 
+    @Test public void shouldLaunchOptimisticallyOnlyIfResourcesLookIntact () throws Exception {
+        Application app = createOptimisticApp();
+        Resource data = find(app, "data.txt"), natives = find(app, "native.jar");
+
+        // nothing has been validated since the (simulated) update, and the natives must be
+        // unpacked before launch, but the other resources may be checked after launch
+        assertFalse(app.canLaunchOptimistically());
+        natives.markAsValid();
+        assertTrue(app.canLaunchOptimistically());
+
+        // a pending update must be installed first
+        File dnew = data.getLocalNew();
+        Files.write(dnew.toPath(), new byte[] { 1 });
+        assertFalse(app.canLaunchOptimistically());
+        assertTrue(dnew.delete());
+
+        // as must a resource with the wrong size, validated or not
+        byte[] original = Files.readAllBytes(data.getLocal().toPath());
+        Files.write(data.getLocal().toPath(), new byte[] { 1 }, StandardOpenOption.APPEND);
+        assertFalse(app.canLaunchOptimistically());
+        data.markAsValid();
+        assertFalse(app.canLaunchOptimistically());
+        Files.write(data.getLocal().toPath(), original);
+        assertTrue(app.canLaunchOptimistically());
+
+        // and a missing one
+        assertTrue(find(app, "app.jar").getLocal().delete());
+        assertFalse(app.canLaunchOptimistically());
+    }
+
+    @Test public void shouldOnlyHashResourcesAfterLaunch () throws Exception {
+        Application app = createOptimisticApp();
+        Resource data = find(app, "data.txt"), natives = find(app, "native.jar");
+
+        // corrupt a resource that was validated before, without changing its size
+        data.markAsValid();
+        byte[] bytes = Files.readAllBytes(data.getLocal().toPath());
+        bytes[0] ^= 1;
+        Files.write(data.getLocal().toPath(), bytes);
+
+        Set<Resource> toDownload = new HashSet<>();
+        app.verifyLaunchedResources(new ProgressObserver() {
+            public void progress (int percent) {}
+        }, toDownload);
+        assertEquals(Collections.singleton(data), toDownload);
+
+        // resources that are intact are left exactly as they were
+        assertFalse(new File(natives.getUnpacked(), "native.so").exists());
+        assertFalse(natives.isMarkedValid());
+        assertFalse(find(app, "app.jar").isMarkedValid());
+    }
+
+    protected Application createOptimisticApp () throws Exception {
+        File appdir = _folder.getRoot();
+        try (PrintWriter out = new PrintWriter(new File(appdir, "getdown.txt"), "UTF-8")) {
+            out.println("appbase = http://localhost/app/");
+            out.println("class = Main");
+            out.println("optimistic_launch = true");
+            out.println("code = app.jar");
+            out.println("resource = data.txt");
+            out.println("uresource = native.jar");
+        }
+        writeJar(new File(appdir, "app.jar"), "Main.class");
+        writeJar(new File(appdir, "native.jar"), "native.so");
+        Files.write(new File(appdir, "data.txt").toPath(), "some data".getBytes("UTF-8"));
+        Digester.createDigests(appdir, null, null, null);
+
+        Application app = new Application(new EnvConfig(appdir));
+        app.init(false);
+        app._digest = new Digest(appdir, false);
+        return app;
+    }
+
+    protected static Resource find (Application app, String path) {
+        for (Resource rsrc : app.getAllActiveResources()) {
+            if (rsrc.getPath().equals(path)) {
+                return rsrc;
+            }
+        }
+        throw new AssertionError("No such resource: " + path);
+    }
+
+    protected static void writeJar (File jar, String entry) throws IOException {
+        try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(jar))) {
+            out.putNextEntry(new ZipEntry(entry));
+            out.write(entry.getBytes("UTF-8"));
+        }
+    }
+
     protected static StringReader toReader (String... pairs)
     {
         StringBuilder builder = new StringBuilder();
@@ -72,4 +174,5 @@ public class ApplicationTest {
         return new StringReader(builder.toString());
     }
 
+    @Rule public final TemporaryFolder _folder = new TemporaryFolder();
 }
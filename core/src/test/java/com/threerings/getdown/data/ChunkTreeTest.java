@@ -0,0 +1,118 @@
+//
+// Getdown - application installer, patcher and launcher
+// Copyright (C) 2004-2018 Getdown authors
+// https://github.com/threerings/getdown/blob/master/LICENSE
+
+package com.threerings.getdown.data;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.*;
+import org.junit.rules.TemporaryFolder;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.*;
+
+/**
+ * Tests {@link ChunkTree}.
+ */
+public class ChunkTreeTest
+{
+    @Test public void shouldRoundTripThroughSidecar () throws IOException
+    {
+        File file = write("data.bin", createData(1000));
+        ChunkTree tree = ChunkTree.compute(file, 64);
+        File sidecar = new File(file.getPath() + ChunkTree.SUFFIX);
+        tree.write(sidecar);
+
+        ChunkTree read = ChunkTree.read(sidecar, 1000);
+        assertEquals(1000, read.length());
+        assertEquals(tree.root(), read.root());
+        assertEquals(0, read.findCorrupt(file).ranges.size());
+    }
+
+    @Test public void shouldRejectBogusHeaders () throws IOException
+    {
+        String[] headers = { "1 1000", "1 9223372036854775807", "-1 1000", "64 999" };
+        for (String header : headers) {
+            File sidecar = write("bogus.bin" + ChunkTree.SUFFIX,
+                                 (ChunkTree.HEADER + " " + header + "\n").getBytes(UTF_8));
+            try {
+                ChunkTree.read(sidecar, 1000);
+                fail("Accepted " + header);
+            } catch (IOException ioe) {
+                // expected
+            }
+        }
+    }
+
+    @Test public void shouldCommitToEveryChunk () throws IOException
+    {
+        byte[] data = createData(1000);
+        String root = ChunkTree.compute(write("a.bin", data), 64).root();
+        data[999] ^= 1;
+        assertNotEquals(root, ChunkTree.compute(write("b.bin", data), 64).root());
+        // the chunk size is part of the root as well
+        assertNotEquals(root, ChunkTree.compute(write("c.bin", createData(1000)), 128).root());
+    }
+
+    @Test public void shouldFindCorruptRanges () throws IOException
+    {
+        byte[] data = createData(1000);
+        ChunkTree tree = ChunkTree.compute(write("orig.bin", data), 100);
+
+        // corrupt chunks 1 and 2 (which are merged) and 5, and truncate the last chunk
+        byte[] bad = Arrays.copyOf(data, 950);
+        bad[150] ^= 1;
+        bad[299] ^= 1;
+        bad[512] ^= 1;
+        ChunkTree.Repair repair = tree.findCorrupt(write("bad.bin", bad));
+        assertEquals(1000, repair.length);
+        assertEquals(3, repair.ranges.size());
+        assertArrayEquals(new long[] { 100, 299 }, repair.ranges.get(0));
+        assertArrayEquals(new long[] { 500, 599 }, repair.ranges.get(1));
+        assertArrayEquals(new long[] { 900, 999 }, repair.ranges.get(2));
+        assertEquals(400, repair.bytes());
+    }
+
+    @Test public void shouldRecordChunkRootsInDigest () throws IOException
+    {
+        File file = write("big.bin", createData((int)ChunkTree.CHUNKED_THRESHOLD));
+        File small = write("small.bin", createData(10));
+        Resource big = new Resource("big.bin", null, file, Resource.NORMAL);
+        Resource little = new Resource("small.bin", null, small, Resource.NORMAL);
+        int version = Digest.CHUNKED_VERSION;
+        Digest.createDigest(version, Arrays.asList(big, little),
+                            _folder.newFile(Digest.digestFile(version)));
+
+        Digest digest = new Digest(_folder.getRoot(), version, false);
+        File sidecar = new File(file.getPath() + ChunkTree.SUFFIX);
+        assertEquals(ChunkTree.read(sidecar, file.length()).root(), digest.getChunkRoot(big));
+        assertEquals(file.length(), digest.getSize(big));
+        assertTrue(digest.validateResource(big, null));
+        assertNull(digest.getChunkRoot(little));
+        assertEquals(10, digest.getSize(little));
+    }
+
+    protected static byte[] createData (int length)
+    {
+        byte[] data = new byte[length];
+        new Random(length).nextBytes(data);
+        return data;
+    }
+
+    protected File write (String path, byte[] data) throws IOException
+    {
+        File file = new File(_folder.getRoot(), path);
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(data);
+        }
+        return file;
+    }
+
+    @Rule public final TemporaryFolder _folder = new TemporaryFolder();
+}
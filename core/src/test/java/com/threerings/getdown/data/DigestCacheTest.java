@@ -0,0 +1,88 @@
+//
+// Getdown - application installer, patcher and launcher
+// Copyright (C) 2004-2018 Getdown authors
+// https://github.com/threerings/getdown/blob/master/LICENSE
+
+package com.threerings.getdown.data;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+
+import org.junit.*;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests {@link DigestCache}.
+ */
+public class DigestCacheTest
+{
+    @Test public void shouldReuseDigestOfUnchangedFile () throws IOException
+    {
+        File file = _folder.newFile("data.bin");
+        long stamp = write(file, new byte[] { 1, 2, 3 });
+        DigestCache cache = new DigestCache(new File(_folder.getRoot(), "digests.dat"));
+        String digest = computeDigest(cache, file);
+
+        // change the contents without changing the size or timestamp, so that we can tell that
+        // the cached digest is used
+        write(file, new byte[] { 4, 5, 6 });
+        file.setLastModified(stamp);
+        assertEquals(digest, computeDigest(cache, file));
+
+        // but a change in size is noticed
+        write(file, new byte[] { 4, 5, 6, 7 });
+        assertNotEquals(digest, computeDigest(cache, file));
+    }
+
+    @Test public void shouldPersistDigests () throws IOException
+    {
+        File file = _folder.newFile("data.bin");
+        File cfile = new File(_folder.getRoot(), "digests.dat");
+        long stamp = write(file, new byte[] { 1, 2, 3 });
+        DigestCache cache = new DigestCache(cfile);
+        String digest = computeDigest(cache, file);
+        cache.save();
+        assertTrue(cfile.exists());
+
+        write(file, new byte[] { 4, 5, 6 });
+        file.setLastModified(stamp);
+        assertEquals(digest, computeDigest(new DigestCache(cfile), file));
+    }
+
+    @Test public void shouldNotCacheRecentlyModifiedFiles () throws IOException
+    {
+        File file = _folder.newFile("data.bin");
+        write(file, new byte[] { 1, 2, 3 });
+        long stamp = System.currentTimeMillis();
+        file.setLastModified(stamp);
+        DigestCache cache = new DigestCache(new File(_folder.getRoot(), "digests.dat"));
+        String digest = computeDigest(cache, file);
+
+        write(file, new byte[] { 4, 5, 6 });
+        file.setLastModified(stamp);
+        assertNotEquals(digest, computeDigest(cache, file));
+    }
+
+    protected static String computeDigest (DigestCache cache, File file) throws IOException
+    {
+        MessageDigest md = Digest.getMessageDigest(Digest.VERSION);
+        return cache.computeDigest(Digest.VERSION, file, md, null);
+    }
+
+    /** Writes {@code data} to {@code file} and backdates it, returning its modification time. */
+    protected static long write (File file, byte[] data) throws IOException
+    {
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(data);
+        }
+        long stamp = (System.currentTimeMillis() - 60*1000L) / 1000 * 1000;
+        file.setLastModified(stamp);
+        return stamp;
+    }
+
+    @Rule public final TemporaryFolder _folder = new TemporaryFolder();
+}
@@ -0,0 +1,100 @@
+//
+// Getdown - application installer, patcher and launcher
+// Copyright (C) 2004-2018 Getdown authors
+// https://github.com/threerings/getdown/blob/master/LICENSE
+
+package com.threerings.getdown.data;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.URL;
+import java.security.MessageDigest;
+
+import com.threerings.getdown.util.StringUtil;
+
+import org.junit.*;
+import org.junit.rules.TemporaryFolder;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.*;
+
+/**
+ * Tests {@link DigestIndex}.
+ */
+public class DigestIndexTest
+{
+    @Test public void shouldAnswerLikeParsedDigest () throws IOException
+    {
+        writeDigest("b.jar = " + hash("b") + " 20 " + hash("root"),
+                    "a.txt = " + hash("a") + " 10",
+                    "dir/été.txt = " + hash("c") + " 0");
+
+        Digest parsed = new Digest(_folder.getRoot(), VERSION, false, true);
+        assertNull(parsed._index);
+        assertTrue(indexFile().exists());
+        Digest indexed = new Digest(_folder.getRoot(), VERSION, false, true);
+        assertNotNull(indexed._index);
+        assertEquals(3, indexed._index.size());
+
+        assertEquals(parsed.getMetaDigest(), indexed.getMetaDigest());
+        for (String path : new String[] { "a.txt", "b.jar", "dir/été.txt", "c.txt" }) {
+            Resource rsrc = createResource(path);
+            assertEquals(path, parsed.getDigest(rsrc), indexed.getDigest(rsrc));
+            assertEquals(path, parsed.getSize(rsrc), indexed.getSize(rsrc));
+            assertEquals(path, parsed.getChunkRoot(rsrc), indexed.getChunkRoot(rsrc));
+        }
+        assertEquals(hash("root"), indexed.getChunkRoot(createResource("b.jar")));
+        assertNull(indexed.getDigest(createResource("c.txt")));
+    }
+
+    @Test public void shouldIgnoreStaleIndex () throws IOException
+    {
+        writeDigest("a.txt = " + hash("a") + " 10");
+        new Digest(_folder.getRoot(), VERSION, false, true);
+        assertTrue(indexFile().exists());
+
+        writeDigest("a.txt = " + hash("b") + " 11");
+        Digest digest = new Digest(_folder.getRoot(), VERSION, false, true);
+        assertNull(digest._index);
+        assertEquals(hash("b"), digest.getDigest(createResource("a.txt")));
+        assertEquals(11, digest.getSize(createResource("a.txt")));
+        // and the index was rebuilt from the new digest file
+        assertNotNull(new Digest(_folder.getRoot(), VERSION, false, true)._index);
+    }
+
+    protected void writeDigest (String... lines) throws IOException
+    {
+        StringBuilder data = new StringBuilder();
+        for (String line : lines) {
+            data.append(line).append("\n");
+        }
+        MessageDigest md = Digest.getMessageDigest(VERSION);
+        String meta = StringUtil.hexlate(md.digest(data.toString().getBytes(UTF_8)));
+        data.append(Digest.digestFile(VERSION)).append(" = ").append(meta).append("\n");
+        File file = new File(_folder.getRoot(), Digest.digestFile(VERSION));
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(data.toString().getBytes(UTF_8));
+        }
+    }
+
+    protected File indexFile ()
+    {
+        return new File(_folder.getRoot(), Digest.digestFile(VERSION) + DigestIndex.SUFFIX);
+    }
+
+    protected Resource createResource (String path) throws IOException
+    {
+        return new Resource(path, new URL("http://localhost/" + path),
+                            new File(_folder.getRoot(), path), Resource.NORMAL);
+    }
+
+    protected static String hash (String data)
+    {
+        return StringUtil.hexlate(Digest.getMessageDigest(VERSION).digest(data.getBytes(UTF_8)));
+    }
+
+    protected static final int VERSION = Digest.CHUNKED_VERSION;
+
+    @Rule public final TemporaryFolder _folder = new TemporaryFolder();
+}
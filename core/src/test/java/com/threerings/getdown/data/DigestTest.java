@@ -0,0 +1,77 @@
+//
+// Getdown - application installer, patcher and launcher
+// Copyright (C) 2004-2018 Getdown authors
+// https://github.com/threerings/getdown/blob/master/LICENSE
+
+package com.threerings.getdown.data;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.*;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests {@link Digest}.
+ */
+public class DigestTest
+{
+    @Test public void shouldRecordSizesInLatestVersion () throws IOException
+    {
+        List<Resource> rsrcs = createResources();
+        for (int version = 1; version <= Digest.LATEST_VERSION; version++) {
+            Digest.createDigest(version, rsrcs, _folder.newFile(Digest.digestFile(version)));
+        }
+
+        Digest digest = new Digest(_folder.getRoot(), false);
+        assertEquals(Digest.LATEST_VERSION, digest.getVersion());
+        assertEquals(3, digest.getSize(rsrcs.get(0)));
+        assertEquals(0, digest.getSize(rsrcs.get(1)));
+        for (Resource rsrc : rsrcs) {
+            assertTrue(digest.validateResource(rsrc, null));
+        }
+
+        // the hashes in the sized digest match those of the required version
+        Digest required = new Digest(_folder.getRoot(), Digest.VERSION, false);
+        assertEquals(required.getDigest(rsrcs.get(0)), digest.getDigest(rsrcs.get(0)));
+        assertEquals(-1, required.getSize(rsrcs.get(0)));
+    }
+
+    @Test public void shouldFallBackToRequiredVersion () throws IOException
+    {
+        List<Resource> rsrcs = createResources();
+        for (int version = 1; version <= Digest.VERSION; version++) {
+            Digest.createDigest(version, rsrcs, _folder.newFile(Digest.digestFile(version)));
+        }
+
+        Digest digest = new Digest(_folder.getRoot(), false);
+        assertEquals(Digest.VERSION, digest.getVersion());
+        assertEquals(-1, digest.getSize(rsrcs.get(0)));
+        assertTrue(digest.validateResource(rsrcs.get(0), null));
+    }
+
+    protected List<Resource> createResources () throws IOException
+    {
+        List<Resource> rsrcs = new ArrayList<>();
+        rsrcs.add(createResource("a.txt", new byte[] { 1, 2, 3 }));
+        rsrcs.add(createResource("b.txt", new byte[0]));
+        return rsrcs;
+    }
+
+    protected Resource createResource (String path, byte[] data) throws IOException
+    {
+        File file = new File(_folder.getRoot(), path);
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(data);
+        }
+        return new Resource(path, new URL("http://localhost/" + path), file, Resource.NORMAL);
+    }
+
+    @Rule public final TemporaryFolder _folder = new TemporaryFolder();
+}
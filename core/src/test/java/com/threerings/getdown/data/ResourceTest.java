@@ -0,0 +1,160 @@
+//
+// Getdown - application installer, patcher and launcher
+// Copyright (C) 2004-2018 Getdown authors
+// https://github.com/threerings/getdown/blob/master/LICENSE
+
+package com.threerings.getdown.data;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import com.threerings.getdown.util.ProgressObserver;
+import com.threerings.getdown.util.StringUtil;
+
+import org.junit.*;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests {@link Resource}.
+ */
+public class ResourceTest
+{
+    @Test public void shouldUseRecordedDigestForUnchangedNewFile () throws IOException
+    {
+        Resource rsrc = createResource("data.bin");
+        write(rsrc.getLocalNew(), new byte[] { 1, 2, 3 });
+        MessageDigest md = Digest.getMessageDigest(Digest.VERSION);
+        rsrc.recordDigest(md.getAlgorithm(), "recorded");
+        assertEquals("recorded", rsrc.computeDigest(Digest.VERSION, md, null));
+        // a digest recorded with a different algorithm is not used
+        assertNotEquals("recorded", rsrc.computeDigest(1, Digest.getMessageDigest(1), null));
+    }
+
+    @Test public void shouldIgnoreRecordedDigestForModifiedNewFile () throws IOException
+    {
+        Resource rsrc = createResource("data.bin");
+        write(rsrc.getLocalNew(), new byte[] { 1, 2, 3 });
+        MessageDigest md = Digest.getMessageDigest(Digest.VERSION);
+        rsrc.recordDigest(md.getAlgorithm(), "recorded");
+
+        write(rsrc.getLocalNew(), new byte[] { 1, 2, 3, 4 });
+        assertNotEquals("recorded", rsrc.computeDigest(Digest.VERSION, md, null));
+    }
+
+    @Test public void shouldHashEntryTreeRegardlessOfOrderOrParallelism () throws IOException
+    {
+        File zip1 = new File(_folder.getRoot(), "one.zip");
+        File zip2 = new File(_folder.getRoot(), "two.zip");
+        writeZip(zip1, "a.txt", "b/c.txt", "d.txt");
+        writeZip(zip2, "d.txt", "a.txt", "b/c.txt");
+
+        int version = Digest.ENTRY_TREE_VERSION;
+        MessageDigest md = Digest.getMessageDigest(version);
+        String digest = Resource.computeDigest(version, zip1, md, null);
+        assertEquals(digest, Resource.computeDigest(version, zip2, md, null));
+        try (ZipFile zip = new ZipFile(zip2)) {
+            assertEquals(digest, Resource.computeEntryTreeDigest(version, zip, md, null, false));
+        }
+        // the entry tree digest differs from the flat digest of older versions
+        assertNotEquals(digest, Resource.computeDigest(Digest.VERSION, zip1, md, null));
+    }
+
+    @Test public void shouldHashLargeArchivesInParallel () throws IOException
+    {
+        File zfile = new File(_folder.getRoot(), "big.zip");
+        byte[] data = new byte[(int)(Resource.PARALLEL_DIGEST_THRESHOLD / 4)];
+        try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(zfile))) {
+            for (int ii = 0; ii < 5; ii++) {
+                data[ii] = 1;
+                out.putNextEntry(new ZipEntry("entry" + ii));
+                out.write(data);
+                out.closeEntry();
+            }
+        }
+
+        int version = Digest.ENTRY_TREE_VERSION;
+        MessageDigest md = Digest.getMessageDigest(version);
+        try (ZipFile zip = new ZipFile(zfile)) {
+            assertEquals(Resource.computeEntryTreeDigest(version, zip, md, null, false),
+                         Resource.computeEntryTreeDigest(version, zip, md, null, true));
+        }
+    }
+
+    @Test public void shouldHashPlainFilesWithThrottledProgress () throws IOException
+    {
+        byte[] data = new byte[Resource.FILE_BUFFER_SIZE * 3 + 17];
+        for (int ii = 0; ii < data.length; ii++) {
+            data[ii] = (byte)ii;
+        }
+        File file = new File(_folder.getRoot(), "data.bin");
+        write(file, data);
+
+        final List<Integer> progress = new ArrayList<>();
+        ProgressObserver obs = new ProgressObserver() {
+            public void progress (int percent) {
+                progress.add(percent);
+            }
+        };
+        MessageDigest md = Digest.getMessageDigest(Digest.VERSION);
+        String digest = Resource.computeDigest(Digest.VERSION, file, md, obs);
+        assertEquals(StringUtil.hexlate(md.digest(data)), digest);
+        // one report per read, and none that repeat a percentage
+        assertEquals(4, progress.size());
+        assertEquals(100, (int)progress.get(progress.size()-1));
+        assertEquals(new HashSet<>(progress).size(), progress.size());
+    }
+
+    @Test public void shouldComputeAllVersionsInOneRead () throws IOException
+    {
+        File jar = new File(_folder.getRoot(), "code.jar");
+        writeZip(jar, "b.class", "META-INF/MANIFEST.MF", "a.class");
+        File plain = new File(_folder.getRoot(), "data.bin");
+        write(plain, new byte[] { 1, 2, 3 });
+
+        for (File file : new File[] { jar, plain }) {
+            String[] digests = Resource.computeDigests(file, null);
+            for (int version = 1; version <= Digest.LATEST_VERSION; version++) {
+                MessageDigest md = Digest.getMessageDigest(version);
+                assertEquals(file + " v" + version,
+                             Resource.computeDigest(version, file, md, null), digests[version]);
+            }
+        }
+    }
+
+    protected Resource createResource (String path) throws IOException
+    {
+        File file = new File(_folder.getRoot(), path);
+        return new Resource(path, new URL("http://localhost/" + path), file, Resource.NORMAL);
+    }
+
+    protected static void write (File file, byte[] data) throws IOException
+    {
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(data);
+        }
+    }
+
+    protected static void writeZip (File file, String... names) throws IOException
+    {
+        try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(file))) {
+            for (String name : names) {
+                out.putNextEntry(new ZipEntry(name));
+                out.write(name.getBytes("UTF-8"));
+                out.closeEntry();
+            }
+        }
+    }
+
+    @Rule public final TemporaryFolder _folder = new TemporaryFolder();
+}
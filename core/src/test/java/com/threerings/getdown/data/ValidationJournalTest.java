@@ -0,0 +1,108 @@
+//
+// Getdown - application installer, patcher and launcher
+// Copyright (C) 2004-2018 Getdown authors
+// https://github.com/threerings/getdown/blob/master/LICENSE
+
+package com.threerings.getdown.data;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.URL;
+import java.util.Arrays;
+
+import org.junit.*;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests {@link ValidationJournal}.
+ */
+public class ValidationJournalTest
+{
+    @Test public void shouldPersistMarks () throws IOException
+    {
+        ValidationJournal journal = new ValidationJournal(journalFile());
+        journal.markValid("a.jar");
+        journal.markValid("b.jar");
+        journal.markValid("c.jar");
+        journal.clear("b.jar");
+        journal.close();
+
+        ValidationJournal reread = new ValidationJournal(journalFile());
+        assertTrue(reread.isValid("a.jar"));
+        assertFalse(reread.isValid("b.jar"));
+        assertTrue(reread.isValid("c.jar"));
+        assertFalse(reread.isMigrating());
+
+        reread.clear(Arrays.asList("a.jar", "b.jar"));
+        assertFalse(new ValidationJournal(journalFile()).isValid("a.jar"));
+        assertTrue(new ValidationJournal(journalFile()).isValid("c.jar"));
+    }
+
+    @Test public void shouldIgnoreTornRecords () throws IOException
+    {
+        ValidationJournal journal = new ValidationJournal(journalFile());
+        journal.markValid("a.jar");
+        journal.markValid("b.jar");
+        journal.close();
+
+        // chop off the end of the last record, as if we crashed while writing it
+        try (RandomAccessFile raf = new RandomAccessFile(journalFile(), "rw")) {
+            raf.setLength(raf.length() - 3);
+        }
+        ValidationJournal reread = new ValidationJournal(journalFile());
+        assertTrue(reread.isValid("a.jar"));
+        assertFalse(reread.isValid("b.jar"));
+
+        // the journal is repaired, so later records are not lost
+        reread.markValid("c.jar");
+        reread.close();
+        assertTrue(new ValidationJournal(journalFile()).isValid("c.jar"));
+    }
+
+    @Test public void shouldMigrateMarkerFiles () throws IOException
+    {
+        ValidationJournal journal = new ValidationJournal(journalFile());
+        Resource valid = createResource("valid.jar", journal);
+        Resource cleared = createResource("cleared.jar", journal);
+        Resource invalid = createResource("invalid.jar", journal);
+        File vmarker = new File(valid.getLocal().getPath() + "v");
+        File cmarker = new File(cleared.getLocal().getPath() + "v");
+        assertTrue(vmarker.createNewFile());
+        assertTrue(cmarker.createNewFile());
+
+        assertTrue(journal.isMigrating());
+        assertTrue(valid.isMarkedValid());
+        assertFalse(vmarker.exists());
+        assertFalse(invalid.isMarkedValid());
+        cleared.clearMarker();
+        assertFalse(cmarker.exists());
+        assertFalse(cleared.isMarkedValid());
+        journal.close();
+
+        ValidationJournal reread = new ValidationJournal(journalFile());
+        assertFalse(reread.isMigrating());
+        assertTrue(reread.isValid("valid.jar"));
+        assertFalse(reread.isValid("cleared.jar"));
+    }
+
+    protected File journalFile ()
+    {
+        return new File(_folder.getRoot(), "validated.dat");
+    }
+
+    protected Resource createResource (String path, ValidationJournal journal) throws IOException
+    {
+        File file = new File(_folder.getRoot(), path);
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(path.getBytes("UTF-8"));
+        }
+        return new Resource(path, new URL("http://localhost/" + path), file, Resource.NORMAL,
+                            journal);
+    }
+
+    @Rule public final TemporaryFolder _folder = new TemporaryFolder();
+}
@@ -0,0 +1,105 @@
+//
+// Getdown - application installer, patcher and launcher
+// Copyright (C) 2004-2018 Getdown authors
+// https://github.com/threerings/getdown/blob/master/LICENSE
+
+package com.threerings.getdown.data;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.*;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests {@link VerifyScheduler}.
+ */
+public class VerifySchedulerTest
+{
+    @Test public void shouldOrderLargestFirst ()
+    {
+        assertEquals(Arrays.asList(2, 0, 3, 1),
+                     VerifyScheduler.largestFirst(new long[] { 10, 0, 300, 5 }));
+        assertEquals(Collections.<Integer>emptyList(), VerifyScheduler.largestFirst(new long[0]));
+    }
+
+    @Test public void shouldHonorFixedStrategies ()
+    {
+        List<File> files = Collections.emptyList();
+        VerifyScheduler seq = new VerifyScheduler(VerifyScheduler.Strategy.SEQUENTIAL, files);
+        assertEquals(VerifyScheduler.Strategy.SEQUENTIAL, seq.strategy());
+        assertEquals(1, seq.threads());
+        VerifyScheduler par = new VerifyScheduler(VerifyScheduler.Strategy.PARALLEL, files);
+        assertEquals(VerifyScheduler.Strategy.PARALLEL, par.strategy());
+        assertEquals(SysProps.threadPoolSize(), par.threads());
+    }
+
+    @Test public void shouldProbeLargeResources () throws IOException
+    {
+        List<File> files = new ArrayList<>();
+        for (int ii = 0; ii < 2 * VerifyScheduler.PROBE_FILES; ii++) {
+            files.add(createFile("f" + ii, VerifyScheduler.PROBE_BLOCK * 2));
+        }
+        VerifyScheduler sched = new VerifyScheduler(VerifyScheduler.Strategy.AUTO, files);
+        assertNotEquals(VerifyScheduler.Strategy.AUTO, sched.strategy());
+        assertTrue(sched._serialRate >= 0);
+        assertTrue(sched._parallelRate >= 0);
+
+        // but don't bother probing small ones
+        files.set(files.size()-1, createFile("small", 10));
+        VerifyScheduler small = new VerifyScheduler(VerifyScheduler.Strategy.AUTO, files);
+        assertEquals(VerifyScheduler.Strategy.PARALLEL, small.strategy());
+        assertEquals(-1, small._serialRate);
+    }
+
+    @Test public void shouldWidenOnlyWhenParallelReadsMeasuredFaster () throws IOException
+    {
+        int threads = SysProps.threadPoolSize();
+        int wide = Math.max(threads, Runtime.getRuntime().availableProcessors());
+        List<File> files = Collections.singletonList(createFile("f", 10));
+
+        // no probe, no widening
+        VerifyScheduler sched = new VerifyScheduler(VerifyScheduler.Strategy.AUTO, files);
+        assertEquals(threads, sched.threads());
+
+        // nor when reads were fast (cached) either way
+        sched._serialRate = sched._parallelRate = 2 * VerifyScheduler.FAST_RATE;
+        assertEquals(threads, sched.threads());
+
+        // only when parallel reads were measured to be faster
+        sched._serialRate = 100;
+        sched._parallelRate = 400;
+        assertEquals(wide, sched.threads());
+
+        // and never over an explicit thread pool size
+        String prop = System.getProperty("thread_pool_size");
+        System.setProperty("thread_pool_size", "1");
+        try {
+            assertEquals(1, sched.threads());
+        } finally {
+            if (prop == null) {
+                System.clearProperty("thread_pool_size");
+            } else {
+                System.setProperty("thread_pool_size", prop);
+            }
+        }
+    }
+
+    protected File createFile (String name, long length) throws IOException
+    {
+        File file = new File(_folder.getRoot(), name);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(length);
+        }
+        return file;
+    }
+
+    @Rule public final TemporaryFolder _folder = new TemporaryFolder();
+}
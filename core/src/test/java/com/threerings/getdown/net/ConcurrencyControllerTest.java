@@ -0,0 +1,123 @@
+//
+// Getdown - application installer, patcher and launcher
+// Copyright (C) 2004-2018 Getdown authors
+// https://github.com/threerings/getdown/blob/master/LICENSE
+
+package com.threerings.getdown.net;
+
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+
+public class ConcurrencyControllerTest
+{
+    @Test public void shouldStartMidway ()
+    {
+        assertEquals(3, new ConcurrencyController(1, 4).limit());
+        assertEquals(2, new ConcurrencyController(2, 2).limit());
+        assertEquals(1, new ConcurrencyController(0, 1).limit());
+    }
+
+    @Test public void shouldIncreaseAdditively ()
+    {
+        ConcurrencyController cc = new ConcurrencyController(1, 8);
+        long bytes = 0, now = 1000;
+        cc.sample(bytes, now);
+        cc.sample(bytes += 2000, now += 2000);
+        assertEquals(6, cc.limit());
+        // the interval after a change is not measured, even if throughput looks terrible
+        cc.sample(bytes += 10, now += 2000);
+        assertEquals(6, cc.limit());
+        // a plateau is no reason not to keep probing for more, one transfer at a time
+        cc.sample(bytes += 2000, now += 2000);
+        assertEquals(7, cc.limit());
+        // samples within the control interval are ignored
+        cc.sample(bytes += 100000, now += 10);
+        assertEquals(7, cc.limit());
+        cc.sample(bytes += 2000, now += 2000);
+        cc.sample(bytes += 2000, now += 2000);
+        assertEquals(8, cc.limit());
+        // we hold at the maximum
+        cc.sample(bytes += 2000, now += 2000);
+        cc.sample(bytes += 2000, now += 2000);
+        assertEquals(8, cc.limit());
+    }
+
+    @Test public void shouldHalveOnceOnLossAndRecover ()
+    {
+        ConcurrencyController cc = new ConcurrencyController(2, 16);
+        long bytes = 0, now = 1000;
+        cc.sample(bytes, now);
+        cc.sample(bytes += 10000, now += 2000);
+        assertEquals(10, cc.limit());
+        cc.sample(bytes += 10000, now += 2000);
+        // streams start fighting, so throughput collapses and we halve our streams
+        cc.sample(bytes += 5000, now += 2000);
+        assertEquals(5, cc.limit());
+        // halving costs throughput while transfers wind down, but that's not a further loss
+        cc.sample(bytes += 2500, now += 2000);
+        assertEquals(5, cc.limit());
+        cc.sample(bytes += 5000, now += 2000);
+        assertEquals(6, cc.limit());
+        // and we probe upward again from there
+        cc.sample(bytes += 5000, now += 2000);
+        cc.sample(bytes += 5000, now += 2000);
+        assertEquals(7, cc.limit());
+    }
+
+    @Test public void shouldJudgeLossAtTheSameLimit ()
+    {
+        ConcurrencyController cc = new ConcurrencyController(1, 4);
+        long bytes = 0, now = 1000;
+        cc.sample(bytes, now);
+        cc.sample(bytes += 8000, now += 2000);
+        assertEquals(4, cc.limit());
+        cc.sample(bytes += 8000, now += 2000);
+        cc.sample(bytes += 8000, now += 2000);
+        assertEquals(4, cc.limit());
+        // throughput at the same limit drops, so we halve
+        cc.sample(bytes += 4000, now += 2000);
+        assertEquals(2, cc.limit());
+        // the lower throughput at the lower limit is not compared to that at the higher limit
+        cc.sample(bytes += 4000, now += 2000);
+        cc.sample(bytes += 1000, now += 2000);
+        assertEquals(3, cc.limit());
+        cc.sample(bytes += 1000, now += 2000);
+        cc.sample(bytes += 1000, now += 2000);
+        assertEquals(4, cc.limit());
+    }
+
+    @Test public void shouldNotDropBelowMinimum ()
+    {
+        ConcurrencyController cc = new ConcurrencyController(3, 4);
+        long bytes = 0, now = 1000;
+        cc.sample(bytes, now);
+        cc.sample(bytes += 8000, now += 2000);
+        cc.sample(bytes += 8000, now += 2000);
+        cc.sample(bytes += 8000, now += 2000);
+        cc.sample(bytes += 1000, now += 2000);
+        assertEquals(3, cc.limit());
+    }
+
+    @Test public void shouldLimitActiveTransfers () throws Exception
+    {
+        final ConcurrencyController cc = new ConcurrencyController(1, 1);
+        cc.acquire();
+        final boolean[] acquired = new boolean[1];
+        Thread waiter = new Thread() {
+            @Override public void run () {
+                try {
+                    cc.acquire();
+                    acquired[0] = true;
+                } catch (InterruptedException ie) {
+                    // test will fail
+                }
+            }
+        };
+        waiter.start();
+        waiter.join(100);
+        assertEquals(false, acquired[0]);
+        cc.release();
+        waiter.join(1000);
+        assertEquals(true, acquired[0]);
+    }
+}
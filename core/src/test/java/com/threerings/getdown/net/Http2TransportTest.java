@@ -0,0 +1,162 @@
+//
+// Getdown - application installer, patcher and launcher
+// Copyright (C) 2004-2018 Getdown authors
+// https://github.com/threerings/getdown/blob/master/LICENSE
+
+package com.threerings.getdown.net;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CountDownLatch;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
+
+public class Http2TransportTest
+{
+    @Before public void setUp () throws IOException
+    {
+        assumeTrue(Http2Transport.isSupported());
+        _server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        _server.createContext("/", new HttpHandler() {
+            @Override public void handle (HttpExchange ex) throws IOException {
+                if (!ex.getRequestURI().getPath().equals("/data")) {
+                    ex.sendResponseHeaders(404, -1);
+                    ex.close();
+                    return;
+                }
+                String range = ex.getRequestHeaders().getFirst("Range");
+                int start = 0;
+                if (range != null) {
+                    start = Integer.parseInt(range.substring("bytes=".length(), range.length()-1));
+                    ex.getResponseHeaders().set(
+                        "Content-Range", "bytes " + start + "-" + (DATA.length-1) + "/" +
+                        DATA.length);
+                }
+                ex.sendResponseHeaders(range == null ? 200 : 206, DATA.length - start);
+                try (OutputStream out = ex.getResponseBody()) {
+                    out.write(DATA, start, DATA.length - start);
+                }
+            }
+        });
+        _server.start();
+        _base = new URL("http://127.0.0.1:" + _server.getAddress().getPort() + "/");
+    }
+
+    @After public void tearDown ()
+    {
+        if (_server != null) {
+            _server.stop(0);
+        }
+    }
+
+    @Test public void shouldCreateHttpConnections () throws IOException
+    {
+        assertTrue(Http2Transport.create() instanceof Http2Transport);
+        URLConnection conn = Http2Transport.create().open(new URL(_base, "data"), null);
+        assertTrue(conn instanceof Http2Transport.Http2Connection);
+    }
+
+    @Test public void shouldDownload () throws IOException
+    {
+        HttpURLConnection conn = open("data");
+        assertEquals(200, conn.getResponseCode());
+        assertEquals(DATA.length, conn.getContentLengthLong());
+        assertEquals(new String(DATA, StandardCharsets.UTF_8), read(conn));
+    }
+
+    @Test public void shouldPassRequestHeaders () throws IOException
+    {
+        HttpURLConnection conn = open("data");
+        conn.setRequestProperty("Range", "bytes=6-");
+        assertEquals(206, conn.getResponseCode());
+        assertEquals("bytes 6-" + (DATA.length-1) + "/" + DATA.length,
+                     conn.getHeaderField("content-range"));
+        assertEquals("world", read(conn));
+    }
+
+    @Test(expected=FileNotFoundException.class)
+    public void shouldReportMissingFiles () throws IOException
+    {
+        HttpURLConnection conn = open("missing");
+        assertEquals(404, conn.getResponseCode());
+        conn.getInputStream();
+    }
+
+    @Test public void shouldTimeOutBlockedReadsOnly () throws IOException
+    {
+        // each read takes well under the timeout, though all of them take well over it
+        final CountDownLatch closed = new CountDownLatch(1);
+        InputStream slow = new InputStream() {
+            @Override public int read () throws IOException {
+                try {
+                    if (_reads++ < 10) {
+                        Thread.sleep(50);
+                        return 'x';
+                    }
+                    closed.await(); // then block until the stream is closed
+                } catch (InterruptedException ie) {
+                    throw new IOException(ie);
+                }
+                throw new IOException("Stream closed");
+            }
+            @Override public void close () {
+                closed.countDown();
+            }
+            protected int _reads;
+        };
+
+        try (InputStream in = new Http2Transport.TimeoutInputStream(slow, 200)) {
+            for (int ii = 0; ii < 10; ii++) {
+                assertEquals('x', in.read());
+            }
+            try {
+                in.read();
+                fail("Blocked read did not time out");
+            } catch (SocketTimeoutException ste) {
+                // expected
+            }
+        }
+    }
+
+    protected HttpURLConnection open (String path) throws IOException
+    {
+        return (HttpURLConnection)_transport.open(new URL(_base, path), null);
+    }
+
+    protected static String read (URLConnection conn) throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (InputStream in = conn.getInputStream()) {
+            byte[] buffer = new byte[1024];
+            for (int read; (read = in.read(buffer)) != -1; ) {
+                out.write(buffer, 0, read);
+            }
+        }
+        return out.toString("UTF-8");
+    }
+
+    protected HttpServer _server;
+    protected URL _base;
+    protected final Transport _transport = Http2Transport.create();
+
+    protected static final byte[] DATA = "hello world".getBytes(StandardCharsets.UTF_8);
+}
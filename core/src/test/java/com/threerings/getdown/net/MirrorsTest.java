@@ -0,0 +1,88 @@
+//
+// Getdown - application installer, patcher and launcher
+// Copyright (C) 2004-2018 Getdown authors
+// https://github.com/threerings/getdown/blob/master/LICENSE
+
+package com.threerings.getdown.net;
+
+import java.net.URL;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class MirrorsTest
+{
+    @Test public void shouldResolveVersionedUrls () throws Exception
+    {
+        Mirrors mirrors = new Mirrors(
+            "http://primary.com/app/%VERSION%/", Arrays.asList("http://mirror.com/%VERSION%/"), 0);
+        Mirrors.Mirror primary = mirrors.getMirrors().get(0);
+        Mirrors.Mirror mirror = mirrors.getMirrors().get(1);
+
+        URL remote = new URL("http://primary.com/app/42/lib/foo.jar");
+        assertSame(remote, mirrors.resolve(remote, primary));
+        assertEquals(new URL("http://mirror.com/42/lib/foo.jar"), mirrors.resolve(remote, mirror));
+
+        // URLs from elsewhere are left alone
+        URL other = new URL("http://elsewhere.com/app/42/lib/foo.jar");
+        assertSame(other, mirrors.resolve(other, mirror));
+    }
+
+    @Test public void shouldResolveUnversionedUrls () throws Exception
+    {
+        Mirrors mirrors = new Mirrors(
+            "http://primary.com/app/", Arrays.asList("https://mirror.com/"), 0);
+        assertEquals(new URL("https://mirror.com/lib/foo.jar"),
+                     mirrors.resolve(new URL("http://primary.com/app/lib/foo.jar"),
+                                     mirrors.getMirrors().get(1)));
+    }
+
+    @Test public void shouldSpreadTransfers ()
+    {
+        Mirrors mirrors = createMirrors();
+        Mirrors.Mirror near = mirrors.getMirrors().get(0), far = mirrors.getMirrors().get(1);
+        Set<Mirrors.Mirror> none = Collections.emptySet();
+
+        // transfers go to the nearest mirror...
+        assertSame(near, mirrors.select(1024*1024, none));
+        // ...until it's busy enough that the far mirror will finish sooner
+        assertSame(far, mirrors.select(1000, none));
+
+        mirrors.completed(near, 1024*1024, 1024*1024, 500);
+        assertSame(near, mirrors.select(1000, none));
+    }
+
+    @Test public void shouldAvoidFailedMirrors ()
+    {
+        Mirrors mirrors = createMirrors();
+        Mirrors.Mirror near = mirrors.getMirrors().get(0), far = mirrors.getMirrors().get(1);
+        Set<Mirrors.Mirror> tried = new HashSet<>();
+
+        assertSame(near, mirrors.select(1000, tried));
+        mirrors.failed(near, 1000);
+        tried.add(near);
+        assertSame(far, mirrors.select(1000, tried));
+        mirrors.failed(far, 1000);
+        tried.add(far);
+        assertNull(mirrors.select(1000, tried));
+
+        // once a mirror is unhealthy, it's used only as a last resort
+        mirrors.failed(near, 0);
+        assertSame(far, mirrors.select(1000, Collections.<Mirrors.Mirror>emptySet()));
+    }
+
+    protected static Mirrors createMirrors ()
+    {
+        Mirrors mirrors = new Mirrors(
+            "http://near.com/", Arrays.asList("http://far.com/"), 0);
+        mirrors.getMirrors().get(0)._latency = 10;
+        mirrors.getMirrors().get(1)._latency = 200;
+        return mirrors;
+    }
+}
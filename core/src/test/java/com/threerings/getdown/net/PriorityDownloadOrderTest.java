@@ -0,0 +1,49 @@
+//
+// Getdown - application installer, patcher and launcher
+// Copyright (C) 2004-2018 Getdown authors
+// https://github.com/threerings/getdown/blob/master/LICENSE
+
+package com.threerings.getdown.net;
+
+import java.io.File;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+
+import com.threerings.getdown.data.Resource;
+
+public class PriorityDownloadOrderTest
+{
+    @Test public void shouldOrderByClassThenSize () throws Exception
+    {
+        Map<Resource, Long> sizes = new HashMap<>();
+        Resource media = createResource("media.pak", Resource.NORMAL, 1000000000L, sizes);
+        Resource small = createResource("small.dat", Resource.NORMAL, 10L, sizes);
+        Resource code = createResource("code.jar", Resource.NORMAL, 1000L, sizes);
+        Resource big = createResource("big.jar", Resource.NORMAL, 100000L, sizes);
+        Resource preload = createResource("splash.png", Resource.PRELOAD, 50000L, sizes);
+
+        DownloadOrder order = new PriorityDownloadOrder(Arrays.asList(code, big));
+        List<Resource> ordered = new ArrayList<>(Arrays.asList(small, media, code, big, preload));
+        Collections.sort(ordered, order.comparator(sizes));
+        assertEquals(Arrays.asList(preload, big, code, media, small), ordered);
+    }
+
+    protected static Resource createResource (String path, EnumSet<Resource.Attr> attrs,
+                                              long size, Map<Resource, Long> sizes)
+        throws Exception
+    {
+        Resource rsrc = new Resource(path, new URL("http://localhost/" + path),
+                                     new File(path), attrs);
+        sizes.put(rsrc, size);
+        return rsrc;
+    }
+}
@@ -0,0 +1,68 @@
+//
+// Getdown - application installer, patcher and launcher
+// Copyright (C) 2004-2018 Getdown authors
+// https://github.com/threerings/getdown/blob/master/LICENSE
+
+package com.threerings.getdown.net;
+
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class RateLimiterTest
+{
+    @Test public void shouldNotLimitByDefault () throws Exception
+    {
+        RateLimiter limiter = new RateLimiter(0, false);
+        assertEquals(Long.MAX_VALUE, limiter.rate());
+        long start = System.currentTimeMillis();
+        for (int ii = 0; ii < 1000; ii++) {
+            limiter.acquire(1024*1024);
+        }
+        assertTrue(System.currentTimeMillis() - start < 1000);
+    }
+
+    @Test public void shouldCapRate () throws Exception
+    {
+        RateLimiter limiter = new RateLimiter(200*1000, false);
+        long start = System.currentTimeMillis();
+        // the first burst is free, the next 100k should take half a second
+        limiter.acquire(64*1024);
+        for (int ii = 0; ii < 10; ii++) {
+            limiter.acquire(10*1000);
+        }
+        long elapsed = System.currentTimeMillis() - start;
+        assertTrue("Too fast: " + elapsed, elapsed >= 400);
+        assertTrue("Too slow: " + elapsed, elapsed < 2000);
+    }
+
+    @Test public void shouldYieldInBackground ()
+    {
+        RateLimiter limiter = new RateLimiter(0, true);
+        long bytes = 0, now = 1000;
+        limiter.sample(bytes, now);
+        // we get the whole link (1MB/s) to ourselves for a while
+        limiter.sample(bytes += 2000*1000, now += 2000);
+        limiter.sample(bytes += 2000*1000, now += 2000);
+        assertEquals(Long.MAX_VALUE, limiter.rate());
+
+        // then someone else starts using it, so we drop to half of what we're getting
+        limiter.sample(bytes += 1000*1000, now += 2000);
+        assertEquals(250*1000, limiter.rate());
+
+        // once we're getting what we allow ourselves, we take a bit more
+        limiter.sample(bytes += 500*1000, now += 2000);
+        assertTrue(limiter.rate() > 250*1000);
+    }
+
+    @Test public void shouldNotExceedCapInBackground ()
+    {
+        RateLimiter limiter = new RateLimiter(300*1000, true);
+        long bytes = 0, now = 1000;
+        limiter.sample(bytes, now);
+        for (int ii = 0; ii < 10; ii++) {
+            limiter.sample(bytes += 600*1000, now += 2000);
+            assertEquals(300*1000, limiter.rate());
+        }
+    }
+}
@@ -0,0 +1,107 @@
+//
+// Getdown - application installer, patcher and launcher
+// Copyright (C) 2004-2018 Getdown authors
+// https://github.com/threerings/getdown/blob/master/LICENSE
+
+package com.threerings.getdown.tools;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.*;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests {@link BinaryDiff} and {@link BinaryDiffPatcher}.
+ */
+public class BinaryDiffTest
+{
+    @Test public void shouldReconstructEditedData () throws IOException
+    {
+        byte[] odata = createData(200000, 1);
+        byte[] ndata = new byte[odata.length + 500];
+        // an insertion, some scattered changes, a deletion and a block moved to the end
+        System.arraycopy(odata, 0, ndata, 0, 50000);
+        System.arraycopy(createData(1000, 2), 0, ndata, 50000, 1000);
+        System.arraycopy(odata, 50000, ndata, 51000, 100000);
+        for (int ii = 60000; ii < 140000; ii += 9999) {
+            ndata[ii] ^= 0x55;
+        }
+        System.arraycopy(odata, 160000, ndata, 151000, 40000);
+        System.arraycopy(odata, 0, ndata, 191000, 9500);
+
+        byte[] delta = BinaryDiff.createPatch(odata, ndata, Long.MAX_VALUE);
+        assertArrayEquals(ndata, apply(odata, delta));
+        // the delta need only carry the inserted and changed bytes
+        assertTrue("Delta too large: " + delta.length, delta.length < 2000);
+    }
+
+    @Test public void shouldHandleDegenerateData () throws IOException
+    {
+        byte[] data = createData(10000, 3);
+        byte[][] cases = { new byte[0], new byte[5], data, new byte[100000],
+                           Arrays.copyOf(data, 9999) };
+        for (byte[] odata : cases) {
+            for (byte[] ndata : cases) {
+                byte[] delta = BinaryDiff.createPatch(odata, ndata, Long.MAX_VALUE);
+                assertArrayEquals(ndata, apply(odata, delta));
+            }
+        }
+    }
+
+    @Test public void shouldGiveUpOnLargeDelta () throws IOException
+    {
+        byte[] odata = createData(10000, 4), ndata = createData(10000, 5);
+        assertNull(BinaryDiff.createPatch(odata, ndata, ndata.length - 1));
+    }
+
+    @Test(expected=IOException.class) public void shouldRejectOtherBase () throws IOException
+    {
+        byte[] odata = createData(10000, 6);
+        byte[] delta = BinaryDiff.createPatch(odata, createData(10000, 7), Long.MAX_VALUE);
+        apply(Arrays.copyOf(odata, 9000), delta);
+    }
+
+    @Test public void shouldApplyDeltaPatchEntries () throws IOException
+    {
+        File appdir = _folder.newFolder("app");
+        byte[] odata = createData(100000, 8), ndata = odata.clone();
+        ndata[5000] ^= 1;
+        Files.write(new File(appdir, "data.pak").toPath(), odata);
+
+        File patch = _folder.newFile("patch.dat");
+        try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(patch))) {
+            out.putNextEntry(new ZipEntry("data.pak" + Patcher.DELTA));
+            out.write(BinaryDiff.createPatch(odata, ndata, Long.MAX_VALUE));
+        }
+        new Patcher().patch(appdir, patch, null);
+        assertArrayEquals(ndata, Files.readAllBytes(new File(appdir, "data.pak").toPath()));
+        assertFalse(new File(appdir, "data.pak.old").exists());
+    }
+
+    protected byte[] apply (byte[] odata, byte[] delta) throws IOException
+    {
+        File ofile = _folder.newFile(), target = _folder.newFile();
+        Files.write(ofile.toPath(), odata);
+        new BinaryDiffPatcher().patch(ofile, new ByteArrayInputStream(delta), target, null);
+        return Files.readAllBytes(target.toPath());
+    }
+
+    protected static byte[] createData (int length, long seed)
+    {
+        byte[] data = new byte[length];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+
+    @Rule public final TemporaryFolder _folder = new TemporaryFolder();
+}
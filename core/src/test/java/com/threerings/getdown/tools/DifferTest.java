@@ -0,0 +1,185 @@
+//
+// Getdown - application installer, patcher and launcher
+// Copyright (C) 2004-2018 Getdown authors
+// https://github.com/threerings/getdown/blob/master/LICENSE
+
+package com.threerings.getdown.tools;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.*;
+import org.junit.rules.TemporaryFolder;
+
+import com.threerings.getdown.data.Resource;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests {@link Differ} (and {@link Patcher} applying the patches it creates).
+ */
+public class DifferTest
+{
+    @Test public void shouldCreateSamePatchConcurrently () throws IOException
+    {
+        File odir = createVersion("1", 1), ndir = createVersion("2", 2);
+        File patch = new File(ndir, "patch1.dat");
+
+        Differ differ = new Differ();
+        differ.setThreads(1);
+        differ.createDiff(ndir, odir, false);
+        byte[] serial = Files.readAllBytes(patch.toPath());
+
+        differ.setThreads(4);
+        differ.createDiff(ndir, odir, false);
+        assertArrayEquals(serial, Files.readAllBytes(patch.toPath()));
+
+        // a budget too small for even one diff still diffs everything, one at a time
+        differ.setMemoryBudget(1);
+        differ.createDiff(ndir, odir, false);
+        assertArrayEquals(serial, Files.readAllBytes(patch.toPath()));
+
+        new Patcher().patch(odir, patch, null);
+        for (String name : new String[] { "lib0.jar", "lib1.jar", "lib2.jar", "data0.pak",
+                                          "data1.pak", "data2.pak", "added2.txt" }) {
+            assertEntriesEqual(name, new File(ndir, name), new File(odir, name));
+        }
+        assertFalse(new File(odir, "removed1.txt").exists());
+    }
+
+    @Test public void shouldDiffSharedPairsOnce () throws IOException
+    {
+        // versions 1 and 2 differ only in their version (and one file which the new version
+        // lacks), so every diff needed by one patch is needed by the other
+        File odir1 = createVersion("1", 1), odir2 = createVersion("2", 1);
+        File ndir = createVersion("3", 3);
+
+        final Map<String, Integer> diffs = new HashMap<>();
+        Differ differ = new Differ() {
+            @Override protected PatchEntry diffChanged (
+                Resource orsrc, Resource rsrc, boolean verbose) throws IOException {
+                synchronized (diffs) {
+                    Integer count = diffs.get(rsrc.getPath());
+                    diffs.put(rsrc.getPath(), (count == null) ? 1 : count + 1);
+                }
+                return super.diffChanged(orsrc, rsrc, verbose);
+            }
+        };
+        differ.setThreads(4);
+        differ.createDiffs(ndir, Arrays.asList(odir1, odir2), false);
+
+        for (String name : new String[] { "lib0.jar", "lib1.jar", "lib2.jar",
+                                          "data1.pak", "data2.pak" }) {
+            assertEquals(name, Integer.valueOf(1), diffs.get(name));
+        }
+        try (ZipFile patch1 = new ZipFile(new File(ndir, "patch1.dat"));
+             ZipFile patch2 = new ZipFile(new File(ndir, "patch2.dat"))) {
+            for (String name : new String[] { "lib0.jar.patch", "data1.pak.delta" }) {
+                assertArrayEquals(name, readEntry(patch1, name), readEntry(patch2, name));
+            }
+        }
+    }
+
+    protected static byte[] readEntry (ZipFile zip, String name) throws IOException
+    {
+        ZipEntry entry = zip.getEntry(name);
+        assertNotNull(name, entry);
+        try (InputStream in = zip.getInputStream(entry)) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            for (int read; (read = in.read(buffer)) != -1; ) {
+                out.write(buffer, 0, read);
+            }
+            return out.toByteArray();
+        }
+    }
+
+    protected void assertEntriesEqual (String name, File expect, File got) throws IOException
+    {
+        if (name.endsWith(".jar")) {
+            // jars are rebuilt by patching, so only their contents are the same
+            Map<String, byte[]> eentries = JarDiffTest.readJar(expect);
+            Map<String, byte[]> gentries = JarDiffTest.readJar(got);
+            assertEquals(eentries.keySet(), gentries.keySet());
+            for (Map.Entry<String, byte[]> entry : eentries.entrySet()) {
+                assertArrayEquals(name, entry.getValue(), gentries.get(entry.getKey()));
+            }
+        } else {
+            assertArrayEquals(name, Files.readAllBytes(expect.toPath()),
+                              Files.readAllBytes(got.toPath()));
+        }
+    }
+
+    /**
+     * Creates an application version in which some of the jars and data files (which are large
+     * enough to be binary diffed) differ from those of every other version, and the rest are the
+     * same in every version.
+     */
+    protected File createVersion (String version, int seed) throws IOException
+    {
+        File dir = _folder.newFolder(version);
+        try (PrintWriter out = new PrintWriter(new File(dir, "getdown.txt"), "UTF-8")) {
+            out.println("appbase = http://localhost/app/%VERSION%");
+            out.println("version = " + version);
+            out.println("class = Main");
+            for (int ii = 0; ii < 3; ii++) {
+                Map<String, byte[]> entries = new LinkedHashMap<>();
+                for (int jj = 0; jj < 20; jj++) {
+                    byte[] data = createData(3000, 100 * ii + jj);
+                    if (jj % 3 == ii) {
+                        data[10] ^= seed;
+                    }
+                    entries.put("p/C" + jj + ".class", data);
+                }
+                writeJar(new File(dir, "lib" + ii + ".jar"), entries);
+                out.println("code = lib" + ii + ".jar");
+            }
+            for (int ii = 0; ii < 3; ii++) {
+                byte[] data = createData(100000, ii);
+                if (ii > 0) {
+                    data[5000 * ii] ^= seed;
+                }
+                Files.write(new File(dir, "data" + ii + ".pak").toPath(), data);
+                out.println("resource = data" + ii + ".pak");
+            }
+            String other = (seed == 1 ? "removed" : "added") + version + ".txt";
+            Files.write(new File(dir, other).toPath(), createData(100, seed));
+            out.println("resource = " + other);
+        }
+        return dir;
+    }
+
+    protected static void writeJar (File jar, Map<String, byte[]> entries) throws IOException
+    {
+        try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(jar))) {
+            for (Map.Entry<String, byte[]> entry : entries.entrySet()) {
+                ZipEntry ze = new ZipEntry(entry.getKey());
+                ze.setTime(0L);
+                out.putNextEntry(ze);
+                out.write(entry.getValue());
+            }
+        }
+    }
+
+    protected static byte[] createData (int length, long seed)
+    {
+        byte[] data = new byte[length];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+
+    @Rule public final TemporaryFolder _folder = new TemporaryFolder();
+}
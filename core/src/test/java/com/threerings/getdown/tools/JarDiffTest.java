@@ -0,0 +1,172 @@
+//
+// Getdown - application installer, patcher and launcher
+// Copyright (C) 2004-2018 Getdown authors
+// https://github.com/threerings/getdown/blob/master/LICENSE
+
+package com.threerings.getdown.tools;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import com.threerings.getdown.util.StreamUtil;
+
+import org.junit.*;
+import org.junit.rules.TemporaryFolder;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.*;
+
+/**
+ * Tests {@link JarDiff} and {@link JarDiffPatcher}.
+ */
+public class JarDiffTest
+{
+    @Test public void shouldPatchWithEntryDeltas () throws IOException
+    {
+        Map<String, byte[]> oentries = new LinkedHashMap<>(), nentries = new LinkedHashMap<>();
+        byte[] big = createData(100000, 1), small = createData(100, 2);
+        oentries.put("a/Big.class", big);
+        oentries.put("a/Small.class", small);
+        oentries.put("a/Same.class", createData(5000, 3));
+        oentries.put("a/Gone.class", createData(5000, 4));
+        nentries.put("a/Big.class", modify(big, 500));
+        nentries.put("a/Small.class", modify(small, 50));
+        nentries.put("a/Same.class", oentries.get("a/Same.class"));
+        nentries.put("a/Added.class", createData(5000, 5));
+
+        File ojar = createJar("old.jar", oentries), njar = createJar("new.jar", nentries);
+        File diff = new File(_folder.getRoot(), "diff.jardiff");
+        try (FileOutputStream out = new FileOutputStream(diff)) {
+            JarDiff.createPatch(ojar.getPath(), njar.getPath(), out, false, true);
+        }
+
+        // only the large modified entry is worth a delta, and it's much smaller than the entry
+        Map<String, byte[]> dentries = readJar(diff);
+        String index = new String(dentries.get(JarDiffCodes.INDEX_NAME), UTF_8);
+        assertTrue(index, index.startsWith(JarDiffCodes.DELTA_VERSION_HEADER));
+        assertTrue(index, index.contains("delta a/Big.class"));
+        assertFalse(index, index.contains("delta a/Small.class"));
+        assertTrue(dentries.get("a/Big.class").length < 1000);
+
+        File target = new File(_folder.getRoot(), "patched.jar");
+        new JarDiffPatcher().patchJar(ojar.getPath(), diff.getPath(), target, null);
+        assertEntriesEqual(nentries, readJar(target));
+    }
+
+    @Test public void shouldOmitDeltasUnlessRequested () throws IOException
+    {
+        Map<String, byte[]> oentries = new HashMap<>(), nentries = new HashMap<>();
+        byte[] big = createData(100000, 6);
+        oentries.put("Big.class", big);
+        nentries.put("Big.class", modify(big, 500));
+
+        File ojar = createJar("old.jar", oentries), njar = createJar("new.jar", nentries);
+        File diff = new File(_folder.getRoot(), "diff.jardiff");
+        try (FileOutputStream out = new FileOutputStream(diff)) {
+            JarDiff.createPatch(ojar.getPath(), njar.getPath(), out, false);
+        }
+        Map<String, byte[]> dentries = readJar(diff);
+        String index = new String(dentries.get(JarDiffCodes.INDEX_NAME), UTF_8);
+        assertTrue(index, index.startsWith(JarDiffCodes.VERSION_HEADER));
+        assertFalse(index, index.contains(JarDiffCodes.DELTA_COMMAND));
+        assertEquals(big.length, dentries.get("Big.class").length);
+    }
+
+    @Test public void shouldDiffDifferentlyCompressedJars () throws IOException
+    {
+        // entries compressed other than as JarDiff would compress them must be recompressed
+        Map<String, byte[]> oentries = new HashMap<>(), nentries = new HashMap<>();
+        oentries.put("Old.class", createText(20000));
+        nentries.put("New.class", createText(30000));
+        File ojar = createJar("old.jar", oentries, Deflater.BEST_COMPRESSION);
+        File njar = createJar("new.jar", nentries, Deflater.BEST_COMPRESSION);
+
+        File diff = new File(_folder.getRoot(), "diff.jardiff");
+        try (FileOutputStream out = new FileOutputStream(diff)) {
+            JarDiff.createPatch(ojar.getPath(), njar.getPath(), out, false, true);
+        }
+        File target = new File(_folder.getRoot(), "patched.jar");
+        try (InputStream in = new FileInputStream(diff)) {
+            new JarDiffPatcher().patchJar(ojar.getPath(), in, target, null);
+        }
+        assertEntriesEqual(nentries, readJar(target));
+    }
+
+    protected void assertEntriesEqual (Map<String, byte[]> expect, Map<String, byte[]> got)
+    {
+        assertEquals(expect.keySet(), got.keySet());
+        for (Map.Entry<String, byte[]> entry : expect.entrySet()) {
+            assertArrayEquals(entry.getKey(), entry.getValue(), got.get(entry.getKey()));
+        }
+    }
+
+    protected File createJar (String name, Map<String, byte[]> entries) throws IOException
+    {
+        return createJar(name, entries, Deflater.DEFAULT_COMPRESSION);
+    }
+
+    protected File createJar (String name, Map<String, byte[]> entries, int level)
+        throws IOException
+    {
+        File jar = new File(_folder.getRoot(), name);
+        try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(jar))) {
+            out.setLevel(level);
+            for (Map.Entry<String, byte[]> entry : entries.entrySet()) {
+                out.putNextEntry(new ZipEntry(entry.getKey()));
+                out.write(entry.getValue());
+            }
+        }
+        return jar;
+    }
+
+    protected static Map<String, byte[]> readJar (File jar) throws IOException
+    {
+        Map<String, byte[]> entries = new HashMap<>();
+        try (ZipFile zip = new ZipFile(jar)) {
+            for (ZipEntry entry : Collections.list(zip.entries())) {
+                try (InputStream in = zip.getInputStream(entry)) {
+                    entries.put(entry.getName(), StreamUtil.toByteArray(in));
+                }
+            }
+        }
+        return entries;
+    }
+
+    protected static byte[] modify (byte[] data, int offset)
+    {
+        byte[] modified = data.clone();
+        modified[offset] ^= 1;
+        return modified;
+    }
+
+    protected static byte[] createText (int length)
+    {
+        StringBuilder text = new StringBuilder();
+        Random rando = new Random(length);
+        while (text.length() < length) {
+            text.append("word").append(rando.nextInt(1000)).append(' ');
+        }
+        return text.substring(0, length).getBytes(UTF_8);
+    }
+
+    protected static byte[] createData (int length, long seed)
+    {
+        byte[] data = new byte[length];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+
+    @Rule public final TemporaryFolder _folder = new TemporaryFolder();
+}
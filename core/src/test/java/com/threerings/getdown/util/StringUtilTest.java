@@ -8,6 +8,9 @@ package com.threerings.getdown.util;
 import org.junit.Test;
 
 import static com.threerings.getdown.util.StringUtil.couldBeValidUrl;
+import static com.threerings.getdown.util.StringUtil.hexlate;
+import static com.threerings.getdown.util.StringUtil.unhexlate;
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
@@ -25,4 +28,16 @@ public class StringUtilTest
         assertFalse(couldBeValidUrl("http://www.foo.com & echo hello"));
         assertFalse(couldBeValidUrl("http://www.foo.com\""));
     }
+
+    @Test public void testUnhexlate ()
+    {
+        byte[] bytes = { 0, 1, 127, -128, -1, 42 };
+        assertArrayEquals(bytes, unhexlate(hexlate(bytes)));
+        assertArrayEquals(new byte[0], unhexlate(""));
+    }
+
+    @Test(expected = IllegalArgumentException.class) public void testUnhexlateInvalid ()
+    {
+        unhexlate("0g");
+    }
 }
@@ -31,6 +31,9 @@ import java.util.List;
 import java.util.Locale;
 import java.util.ResourceBundle;
 import java.util.Set;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 
 import javax.imageio.ImageIO;
@@ -43,10 +46,14 @@ import com.samskivert.swing.util.SwingUtil;
 import com.threerings.getdown.data.Application;
 import com.threerings.getdown.data.Application.UpdateInterface.Step;
 import com.threerings.getdown.data.Build;
+import com.threerings.getdown.data.ChunkTree;
 import com.threerings.getdown.data.EnvConfig;
 import com.threerings.getdown.data.Resource;
 import com.threerings.getdown.data.SysProps;
+import com.threerings.getdown.net.Connector;
 import com.threerings.getdown.net.Downloader;
+import com.threerings.getdown.net.Http2Transport;
+import com.threerings.getdown.net.PriorityDownloadOrder;
 import com.threerings.getdown.tools.Patcher;
 import com.threerings.getdown.util.Config;
 import com.threerings.getdown.util.FileUtil;
@@ -197,6 +204,13 @@ public abstract class Getdown
             throw new RuntimeException(e);
         }
 
+        // configure connection reuse before we make any HTTP connections, as the JDK only reads
+        // its keep-alive settings once
+        Connector.configurePool(_app.httpPoolSize(), _app.httpIdleTimeout());
+        if (_app.useHttp2()) {
+            Connector.setTransport(Http2Transport.create());
+        }
+
         if (_app.useAuthentication()) {
             _app.readAuthentication();
             if (_app.getUsername() == null || _app.getPassword() == null) {
@@ -370,12 +384,30 @@ public abstract class Getdown
                     continue;
                 }
 
+                // if our resources look intact, launch the app straight away and verify them
+                // while it runs (see verifyAfterLaunch)
+                if (canLaunchOptimistically()) {
+                    log.info("Launching before verifying resources.");
+                    _verifyAfterLaunch = true;
+                    _app.lockForUpdates();
+                    launch();
+                    return;
+                }
+
                 // now verify (and download) our resources...
                 setStep(Step.VERIFY_RESOURCES);
                 setStatusAsync("m.validating", -1, -1L, false);
                 Set<Resource> toDownload = new HashSet<>();
-                _app.verifyResources(_progobs, alreadyValid, unpacked,
-                                     _toInstallResources, toDownload);
+                if (_app.pipelineDownloads()) {
+                    // resources downloaded here are verified along the way, so we only need to
+                    // loop back if some of their downloads failed
+                    if (!verifyAndDownload(alreadyValid, unpacked)) {
+                        continue;
+                    }
+                } else {
+                    _app.verifyResources(_progobs, alreadyValid, unpacked,
+                                         _toInstallResources, toDownload);
+                }
 
                 if (toDownload.size() > 0) {
                     // we have resources to download, also note them as to-be-installed
@@ -653,11 +685,123 @@ public abstract class Getdown
         readConfig(false);
     }
 
+    /**
+     * Verifies the app's resources and downloads those that are invalid, overlapping the two:
+     * each invalid resource starts downloading as soon as it is found, while the remaining
+     * resources are verified, and each download is verified as soon as it completes. An update
+     * thus takes about as long as the longer of its verification and its download, rather than
+     * their sum.
+     *
+     * @return true if all resources are valid or were downloaded and found to be valid, false if
+     * some downloads failed (or were themselves invalid), in which case the resources should be
+     * verified (and downloaded) again.
+     */
+    protected boolean verifyAndDownload (final int[] alreadyValid, Set<Resource> unpacked)
+        throws InterruptedException, IOException
+    {
+        Set<Resource> toDownload = new HashSet<>();
+        final Downloader[] dl = new Downloader[1];
+        // downloads are verified on a thread of their own, so that they hold up neither the
+        // verification of the resources on disk nor the remaining downloads
+        _downloadChecks = Executors.newSingleThreadExecutor();
+        _downloadsVerified = new ConcurrentSkipListSet<>();
+        _verifying = true;
+        try {
+            _app.verifyResources(_progobs, alreadyValid, unpacked, _toInstallResources, toDownload,
+                                 new Application.InvalidResourceListener() {
+                public void resourceInvalid (Resource rsrc) {
+                    if (dl[0] == null) {
+                        // if any of our resources have already been marked valid this is not a
+                        // first time install and we don't want to enable tracking
+                        _enableTracking = (alreadyValid[0] == 0);
+                        reportTrackingEvent("app_start", -1);
+                        dl[0] = createDownloader();
+                        dl[0].start(_app.maxConcurrentDownloads());
+                    }
+                    try {
+                        dl[0].enqueue(rsrc);
+                    } catch (InterruptedException ie) {
+                        // verification will notice and fail in turn
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            });
+            _verifying = false;
+            if (dl[0] == null) {
+                return true;
+            }
+
+            // we have resources to download, also note them as to-be-installed
+            _toInstallResources.addAll(toDownload);
+            log.info(toDownload.size() + " of " + _app.getAllActiveResources().size() +
+                     " rsrcs require update (" + alreadyValid[0] + " assumed valid).");
+            setStep(Step.REDOWNLOAD_RESOURCES);
+            boolean completed = dl[0].finish();
+            dl[0] = null;
+            if (!completed) {
+                // if we aborted due to detecting another getdown running, we want to report here
+                throw new MultipleGetdownRunning();
+            }
+            reportTrackingEvent("app_complete", -1);
+
+            _downloadChecks.shutdown();
+            _downloadChecks.awaitTermination(10, TimeUnit.DAYS);
+            return _downloadsVerified.containsAll(toDownload);
+
+        } finally {
+            _verifying = false;
+            _enableTracking = false;
+            // if verification failed, stop any downloads already under way
+            if (dl[0] != null) {
+                dl[0].abort();
+                dl[0].finish();
+            }
+            _downloadChecks.shutdownNow();
+            _downloadChecks = null;
+        }
+    }
+
+    /**
+     * Called when {@code rsrc} has been downloaded. If we're verifying and downloading at the
+     * same time (see {@link #verifyAndDownload}), this verifies the download.
+     */
+    protected void verifyDownload (final Resource rsrc)
+    {
+        final ExecutorService checks = _downloadChecks;
+        final Set<Resource> verified = _downloadsVerified;
+        if (checks == null) {
+            return;
+        }
+        checks.execute(new Runnable() {
+            public void run () {
+                if (_app.verifyDownload(rsrc, new ProgressObserver() {
+                    public void progress (int percent) {}
+                })) {
+                    verified.add(rsrc);
+                } else {
+                    log.warning("Downloaded resource failed verification", "rsrc", rsrc);
+                }
+            }
+        });
+    }
+
     /**
      * Called if the application is determined to require resource downloads.
      */
     protected void download (Collection<Resource> resources)
         throws IOException
+    {
+        Downloader dl = createDownloader();
+        if (!dl.download(resources, _app.maxConcurrentDownloads())) {
+            // if we aborted due to detecting another getdown running, we want to report here
+            throw new MultipleGetdownRunning();
+        }
+    }
+
+    /**
+     * Creates and configures the downloader used to download resources.
+     */
+    protected Downloader createDownloader ()
     {
         // create our user interface
         createInterfaceAsync(false);
@@ -667,6 +811,14 @@ public abstract class Getdown
                 updateStatus("m.resolving");
             }
 
+            @Override protected long expectedSize (Resource rsrc) {
+                return _app.getExpectedSize(rsrc);
+            }
+
+            @Override protected ChunkTree.Repair repairFor (Resource rsrc) {
+                return _app.getRepair(rsrc);
+            }
+
             @Override protected void downloadProgress (int percent, long remaining) {
                 // check for another getdown running at 0 and every 10% after that
                 if (_lastCheck == -1 || percent >= _lastCheck + 10) {
@@ -678,12 +830,20 @@ public abstract class Getdown
                     }
                     _lastCheck = percent;
                 }
+                // while we're still verifying, we display the verification progress
+                if (_verifying) {
+                    return;
+                }
                 setStatusAsync("m.downloading", stepToGlobalPercent(percent), remaining, true);
                 if (percent > 0) {
                     reportTrackingEvent("progress", percent);
                 }
             }
 
+            @Override protected void downloadCompleted (Resource rsrc) {
+                verifyDownload(rsrc);
+            }
+
             @Override protected void downloadFailed (Resource rsrc, Exception e) {
                 updateStatus(MessageUtil.tcompose("m.failure", e.getMessage()));
                 log.warning("Download failed", "rsrc", rsrc, e);
@@ -697,10 +857,19 @@ public abstract class Getdown
              * having checked at all. */
             private int _lastCheck = -1;
         };
-        if (!dl.download(resources, _app.maxConcurrentDownloads())) {
-            // if we aborted due to detecting another getdown running, we want to report here
-            throw new MultipleGetdownRunning();
+        dl.setResume(_app.resumeDownloads());
+        dl.setSegmentThreshold(_app.segmentedDownloadThreshold());
+        dl.setMirrors(_app.getMirrors());
+        // get the application launchable as soon as we can by fetching its code first
+        dl.setOrder(new PriorityDownloadOrder(_app.getActiveCodeResources()));
+        if (_app.adaptiveDownloads()) {
+            dl.setAdaptiveConcurrency(_app.minConcurrentDownloads());
         }
+        // when we're updating silently or after a delay, the user is busy with other things, so
+        // we stay out of the way of their network traffic if so configured
+        boolean background = _app.backgroundDownloads() && (_silent || _delay > 0);
+        dl.setRateLimit(_app.maxDownloadRate(), background);
+        return dl;
     }
 
     /**
@@ -802,6 +971,10 @@ public abstract class Getdown
                 }
             }
 
+            if (_verifyAfterLaunch) {
+                verifyAfterLaunch();
+            }
+
             // if we have a UI open and we haven't been around for at least 5 seconds (the default
             // for min_show_seconds), don't stick a fork in ourselves straight away but give our
             // lovely user a chance to see what we're doing
@@ -823,6 +996,51 @@ public abstract class Getdown
         }
     }
 
+    /**
+     * Returns true if the app can be launched before its resources are verified: it must be
+     * configured to allow that, its resources must look intact (see {@link
+     * Application#canLaunchOptimistically}), and nothing else must need doing before launch.
+     */
+    protected boolean canLaunchOptimistically ()
+    {
+        // when running in the same JVM we exit as soon as the app is launched, and when not
+        // launching at all, there's nothing to be gained
+        return !invokeDirect() && (!_silent || _launchInSilent) &&
+            !Boolean.getBoolean("check_unpacked") && _app.canLaunchOptimistically() &&
+            _app.haveValidJavaVersion();
+    }
+
+    /**
+     * Verifies the app's resources after it has been launched without verifying them, by hashing
+     * every one of them (see {@link Application#verifyLaunchedResources}). As the running app may
+     * be using them, resources are left as they are: those found to be corrupt are downloaded to
+     * their {@code _new} files, and are installed the next time the app is started.
+     */
+    protected void verifyAfterLaunch ()
+    {
+        // the app is up, so we do the rest of our work out of sight
+        disposeContainer();
+        _container = null;
+        _silent = true;
+        try {
+            Set<Resource> toDownload = new HashSet<>();
+            _app.verifyLaunchedResources(_progobs, toDownload);
+            if (toDownload.isEmpty()) {
+                log.info("Verified resources after launch.");
+                return;
+            }
+            log.info("Downloading replacements for corrupt resources, to be installed on next " +
+                     "launch", "count", toDownload.size());
+            // make sure these are verified (and their replacements installed) next time
+            for (Resource rsrc : toDownload) {
+                rsrc.clearMarker();
+            }
+            download(toDownload);
+        } catch (Exception e) {
+            log.warning("Failed to verify resources after launch.", e);
+        }
+    }
+
     /**
      * Creates our user interface, which we avoid doing unless we actually have to update
      * something. NOTE: this happens on the next UI tick, not immediately.
@@ -1155,6 +1373,20 @@ public abstract class Getdown
     protected Set<Resource> _toInstallResources;
     protected boolean _readyToInstall;
 
+    /** Whether the app is being launched before its resources are verified, in which case we
+      * verify them after launching it. */
+    protected boolean _verifyAfterLaunch;
+
+    /** Whether resources are being verified while others are downloaded. */
+    protected volatile boolean _verifying;
+
+    /** Verifies downloads as they complete while verification and downloading are pipelined
+      * (see {@link #verifyAndDownload}), or null. */
+    protected volatile ExecutorService _downloadChecks;
+
+    /** The downloaded resources found to be valid by {@link #_downloadChecks}. */
+    protected volatile Set<Resource> _downloadsVerified;
+
     protected boolean _enableTracking = true;
     protected int _reportedProgress = 0;
 